@@ -0,0 +1,124 @@
+package repcrecdb;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Binary layout of a site checkpoint, all integers are big-endian:
+ *   header:   magic, format version, site ID, commit sequence number, time, fail count, variable count
+ *   failures: one int per fail time
+ *   entries:  variable ID, value, version, commit time, flags(1 byte, bit 0 readable)
+ * Only the latest version of each variable is kept, older versions are
+ * needed by active read-only transactions only and none survives a restart.
+ */
+public class Checkpoint {
+    public static final int MAGIC = 0x52435243; // "RCRC"
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_SIZE = 7 * 4;
+    public static final int ENTRY_SIZE = 4 * 4 + 1;
+    private static final byte READABLE = 1;
+
+    /**
+     * Description: write the state of a site to a checkpoint file
+     * Input: site, commit sequence number and time covered by the checkpoint, file path
+     * Output: void
+     * Side effect: the checkpoint is written to a temporary file, forced to disk and moved over the old one,
+     * then the move is forced to disk, so that the redo log covered by the checkpoint can be truncated
+     */
+    public static void write(DataManager dm, int commitSeq, int currentTime, Path path) throws IOException {
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(dm.siteID);
+            out.writeInt(commitSeq);
+            out.writeInt(currentTime);
+            out.writeInt(dm.failTimes.size());
+            out.writeInt(dm.dataTable.size());
+            for (Integer failTime : dm.failTimes) {
+                out.writeInt(failTime);
+            }
+            for (int varID : dm.dataTable.keys()) {
+                out.writeInt(varID);
+                out.writeInt(dm.dataTable.get(varID));
+                out.writeInt(dm.getVersion(varID));
+                out.writeInt(dm.history.get(varID).lastCommitTime());
+                boolean readable = !dm.placement.isReplicated(varID) || dm.repVarReadableTable.getOrDefault(varID, false);
+                out.writeByte(readable ? READABLE : 0);
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(path.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Description: force the entries of a directory to disk, so that a file moved into it survives a crash
+     * Input: directory path
+     * Output: void
+     */
+    static void forceDirectory(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            // Directories can not be opened on some platforms(e.g. Windows), whose moves are durable anyway
+        }
+    }
+
+    /**
+     * Description: load the state of a site from a memory-mapped checkpoint file
+     * Input: site, file path
+     * Output: commit sequence number and time covered by the checkpoint
+     * Side effect: replace the data, readable flags, history and fail times of the site
+     */
+    public static int[] load(DataManager dm, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.getInt() != MAGIC || mapped.getInt() != FORMAT_VERSION) {
+                throw new IOException("Not a checkpoint file: " + path);
+            }
+            int siteID = mapped.getInt();
+            if (siteID != dm.siteID) {
+                throw new IOException(String.format("Checkpoint of site %d loaded into site %d", siteID, dm.siteID));
+            }
+            int commitSeq = mapped.getInt();
+            int currentTime = mapped.getInt();
+            int failCnt = mapped.getInt();
+            int varCnt = mapped.getInt();
+
+            dm.failTimes.clear();
+            for (int i = 0; i < failCnt; i++) {
+                dm.failTimes.add(mapped.getInt());
+            }
+            dm.dataTable.clear();
+            dm.varIndex.clear();
+            dm.history.clear();
+            dm.repVarReadableTable.clear();
+            for (int i = 0; i < varCnt; i++) {
+                int varID = mapped.getInt();
+                int value = mapped.getInt();
+                int version = mapped.getInt();
+                int commitTime = mapped.getInt();
+                byte flags = mapped.get();
+                dm.installVersion(varID, value, version, commitTime);
+                if (dm.placement.isReplicated(varID)) {
+                    dm.repVarReadableTable.put(varID, (flags & READABLE) != 0);
+                }
+            }
+            return new int[] { commitSeq, currentTime };
+        }
+    }
+}
@@ -1,21 +1,128 @@
 package repcrecdb;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NavigableSet;
 import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 enum LockType
 { 
-    READ, WRITE;
+    READ, WRITE, INCREMENT, // increment locks are shared by incrementers and conflict with reads and writes
+    UPDATE; // read with intent to write, held by one transaction at a time alongside existing readers
 }
 
+class LockRequest {
+    public LockType lockType;
+    public String transactionName;
+
+    public LockRequest(LockType lockType, String transactionName) {
+        this.lockType = lockType;
+        this.transactionName = transactionName;
+    }
+}
+
+/**
+ * Transaction IDs used by lock entries, one per live transaction name and shared by all sites of this
+ * process, so that a lock entry holds ints instead of strings(0 is no transaction). The TransactionManager
+ * interns a name when its transaction begins and releases it once the transaction has released its locks,
+ * released IDs are reused by later transactions.
+ */
+class TransactionIDs {
+    private static final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private static final ArrayList<String> names = new ArrayList<String>(Collections.singletonList(""));
+    private static final ArrayDeque<Integer> freeIDs = new ArrayDeque<Integer>();
+
+    /**
+     * Description: get the ID of a transaction name, assigning one if the name has none
+     * Input: transaction name
+     * Output: transaction ID, 0 for the empty name
+     */
+    static synchronized int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            if (name.length() == 0) {
+                return 0;
+            }
+            id = freeIDs.isEmpty() ? names.size() : freeIDs.pop();
+            ids.put(name, id);
+            if (id == names.size()) {
+                names.add(name);
+            } else {
+                names.set(id, name);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Description: look up the ID of a transaction name without assigning one
+     * Input: transaction name
+     * Output: transaction ID, 0 if the name has none
+     */
+    static synchronized int of(String name) {
+        Integer id = ids.get(name);
+        return id == null ? 0 : id;
+    }
+
+    static synchronized String nameOf(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * Description: drop the ID of a transaction name so that it can be reused
+     * Input: transaction name
+     * Output: void
+     */
+    static synchronized void release(String name) {
+        Integer id = ids.remove(name);
+        if (id != null) {
+            names.set(id, "");
+            freeIDs.push(id);
+        }
+    }
+
+    static synchronized int size() {
+        return ids.size();
+    }
+}
+
+/**
+ * Locks and waiting requests of one variable. The lock mode, the transaction ID of the writer and
+ * up to INLINE_READERS reader IDs are kept inline, wider read sharing spills the readers to a set.
+ * The holder of an update lock is one of the readers, the mode is UPDATE while it holds it.
+ * The wait queue is allocated when a request first waits.
+ */
 class LockEntry {
+    public static final int INLINE_READERS = 8;
+
     public LockType lockType;
-    public String writeLockTransaction;
-    public HashSet<String> readLockTransactions; // Set<TransactionName>
+    private int writer; // transaction ID holding the write lock, 0 if none
+    private int updater; // transaction ID holding the update lock, 0 if none
+    private int[] readers; // transaction IDs holding a shared(read or increment) lock, null if none
+    private int readerCnt;
+    private HashSet<Integer> readerSet; // transaction IDs holding a shared lock once there are more than INLINE_READERS
+    public LinkedList<LockRequest> waitQueue; // waiting requests in arrival order, null if none
+
+    /**
+     * Description: initialize a lock entry no transaction holds
+     * Input: N/A
+     * Output: N/A
+     */
+    public LockEntry() {
+        this.lockType = LockType.READ;
+    }
 
     /**
      * Description: initialize all fileds
@@ -23,14 +130,7 @@ class LockEntry {
      * Output: N/A
      */
     public LockEntry(LockType lockType, String transactionName) {
-        this.lockType = lockType;
-        this.readLockTransactions = new HashSet<String>();
-        if (lockType == LockType.READ) {
-            this.readLockTransactions.add(transactionName);
-            this.writeLockTransaction = "";
-        } else if (lockType == LockType.WRITE) {
-            this.writeLockTransaction = transactionName;
-        }
+        setLock(lockType, transactionName);
     }
 
     /**
@@ -40,52 +140,593 @@ class LockEntry {
      * Side effect: add to read lock records or write lock record according to lock type
      */
     public boolean setLock(LockType lockType, String transactionName) {
-        this.lockType = lockType;
-        if (lockType == LockType.READ) {
-            this.readLockTransactions.add(transactionName);
-            this.writeLockTransaction = "";
+        // Readers joining an update lock keep the entry in update mode
+        this.lockType = lockType == LockType.READ && updater != 0 ? LockType.UPDATE : lockType;
+        if (lockType == LockType.READ || lockType == LockType.INCREMENT) {
+            addReader(TransactionIDs.intern(transactionName));
+            this.writer = 0;
+        } else if (lockType == LockType.UPDATE) {
+            addReader(TransactionIDs.intern(transactionName));
+            this.updater = TransactionIDs.intern(transactionName);
+            this.writer = 0;
         } else if (lockType == LockType.WRITE) {
-            this.writeLockTransaction = transactionName;
+            this.writer = TransactionIDs.intern(transactionName);
+            this.updater = 0;
         }
         return true;
     }
+
+    /**
+     * Description: check if no transaction holds this lock
+     * Input: N/A
+     * Output: true if there is neither a write lock nor a read lock
+     */
+    public boolean isFree() {
+        return writer == 0 && getReaderCount() == 0;
+    }
+
+    /**
+     * Description: get the transaction holding the write lock
+     * Input: N/A
+     * Output: transaction name, empty if none
+     */
+    public String getWriter() {
+        return TransactionIDs.nameOf(writer);
+    }
+
+    public void setWriter(String transactionName) {
+        writer = TransactionIDs.intern(transactionName);
+    }
+
+    public boolean isWriter(String transactionName) {
+        return writer != 0 && writer == TransactionIDs.of(transactionName);
+    }
+
+    /**
+     * Description: get the transaction holding the update lock
+     * Input: N/A
+     * Output: transaction name, empty if none
+     */
+    public String getUpdater() {
+        return TransactionIDs.nameOf(updater);
+    }
+
+    public void setUpdater(String transactionName) {
+        updater = TransactionIDs.intern(transactionName);
+    }
+
+    public boolean isUpdater(String transactionName) {
+        return updater != 0 && updater == TransactionIDs.of(transactionName);
+    }
+
+    public boolean isReader(String transactionName) {
+        return hasReader(TransactionIDs.of(transactionName));
+    }
+
+    public int getReaderCount() {
+        return readerSet != null ? readerSet.size() : readerCnt;
+    }
+
+    /**
+     * Description: get the transactions holding a read lock
+     * Input: N/A
+     * Output: set of transaction names
+     */
+    public HashSet<String> getReaders() {
+        HashSet<String> names = new HashSet<String>();
+        if (readerSet != null) {
+            for (int id : readerSet) {
+                names.add(TransactionIDs.nameOf(id));
+            }
+        }
+        for (int i = 0; i < readerCnt; i++) {
+            names.add(TransactionIDs.nameOf(readers[i]));
+        }
+        return names;
+    }
+
+    public void addReader(String transactionName) {
+        addReader(TransactionIDs.intern(transactionName));
+    }
+
+    public void removeReader(String transactionName) {
+        removeReader(TransactionIDs.of(transactionName));
+    }
+
+    private boolean hasReader(int id) {
+        if (readerSet != null) {
+            return readerSet.contains(id);
+        }
+        for (int i = 0; i < readerCnt; i++) {
+            if (readers[i] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Description: add a read lock holder
+     * Input: transaction ID
+     * Output: void
+     * Side effect: grow the inline reader array, or move the readers to a set past INLINE_READERS
+     */
+    private void addReader(int id) {
+        if (hasReader(id)) {
+            return;
+        }
+        if (readerSet != null) {
+            readerSet.add(id);
+            return;
+        }
+        if (readers == null) {
+            readers = new int[2];
+        } else if (readerCnt == readers.length) {
+            if (readerCnt == INLINE_READERS) {
+                readerSet = new HashSet<Integer>();
+                for (int i = 0; i < readerCnt; i++) {
+                    readerSet.add(readers[i]);
+                }
+                readerSet.add(id);
+                readers = null;
+                readerCnt = 0;
+                return;
+            }
+            readers = Arrays.copyOf(readers, readerCnt * 2);
+        }
+        readers[readerCnt++] = id;
+    }
+
+    private void removeReader(int id) {
+        if (id == 0) {
+            return;
+        }
+        if (updater == id) {
+            updater = 0;
+            lockType = LockType.READ;
+        }
+        if (readerSet != null) {
+            readerSet.remove(id);
+            if (readerSet.isEmpty()) {
+                readerSet = null;
+            }
+            return;
+        }
+        for (int i = 0; i < readerCnt; i++) {
+            if (readers[i] == id) {
+                readers[i] = readers[--readerCnt];
+                if (readerCnt == 0) {
+                    readers = null;
+                }
+                return;
+            }
+        }
+    }
+
+    private void clearReaders() {
+        readers = null;
+        readerCnt = 0;
+        readerSet = null;
+    }
+
+    /**
+     * Description: check if any request waits for this lock
+     * Input: N/A
+     * Output: true if the wait queue is not empty
+     */
+    public boolean hasWaiters() {
+        return waitQueue != null && !waitQueue.isEmpty();
+    }
+
+    /**
+     * Description: get the waiting requests
+     * Input: N/A
+     * Output: requests in arrival order, empty if none
+     */
+    public List<LockRequest> getWaiters() {
+        return waitQueue == null ? Collections.<LockRequest>emptyList() : waitQueue;
+    }
+
+    /**
+     * Description: append a request to the wait queue
+     * Input: lock request
+     * Output: void
+     */
+    public void addWaiter(LockRequest request) {
+        if (waitQueue == null) {
+            waitQueue = new LinkedList<LockRequest>();
+        }
+        waitQueue.add(request);
+    }
+
+    /**
+     * Description: put a request at the head of the wait queue(the write request of the update lock holder,
+     * every other waiting request conflicts with its update lock anyway)
+     * Input: lock request
+     * Output: void
+     */
+    public void addFirstWaiter(LockRequest request) {
+        if (waitQueue == null) {
+            waitQueue = new LinkedList<LockRequest>();
+        }
+        waitQueue.addFirst(request);
+    }
+
+    /**
+     * Description: take a request out of the wait queue
+     * Input: lock request
+     * Output: void
+     * Side effect: drop the queue once it is empty
+     */
+    public void removeWaiter(LockRequest request) {
+        if (waitQueue != null) {
+            waitQueue.remove(request);
+            if (waitQueue.isEmpty()) {
+                waitQueue = null;
+            }
+        }
+    }
+
+    /**
+     * Description: remove all locks and waiting requests of one transaction
+     * Input: transaction name
+     * Output: void
+     */
+    public void remove(String transactionName) {
+        int id = TransactionIDs.of(transactionName);
+        if (id != 0 && lockType == LockType.WRITE && writer == id) {
+            // A write lock is exclusive, it may be an upgraded read lock of the same T
+            writer = 0;
+            clearReaders();
+        } else {
+            removeReader(id);
+        }
+        if (waitQueue != null) {
+            Iterator<LockRequest> it = waitQueue.iterator();
+            while (it.hasNext()) {
+                if (it.next().transactionName.equals(transactionName)) {
+                    it.remove();
+                }
+            }
+            if (waitQueue.isEmpty()) {
+                waitQueue = null;
+            }
+        }
+    }
+
+    /**
+     * Description: find the waiting request of one transaction
+     * Input: transaction name
+     * Output: the waiting request, null if this transaction is not waiting
+     */
+    public LockRequest findRequest(String transactionName) {
+        for (LockRequest request : getWaiters()) {
+            if (request.transactionName.equals(transactionName)) {
+                return request;
+            }
+        }
+        return null;
+    }
+}
+
+/**
+ * Lock entries of the locked variables of a site, keyed by variable ID
+ */
+class LockTable extends IntKeyTable {
+    @Override
+    protected Object newValues(int capacity) {
+        return new LockEntry[capacity];
+    }
+
+    public LockEntry get(int varID) {
+        return ((LockEntry[]) values)[slot(varID)];
+    }
+
+    public void put(int varID, LockEntry lockEntry) {
+        int i = insert(varID);
+        ((LockEntry[]) values)[i] = lockEntry;
+    }
+
+    /**
+     * Description: drop the lock entry of a variable
+     * Input: variable ID
+     * Output: the dropped lock entry, null if none
+     */
+    public LockEntry remove(int varID) {
+        LockEntry lockEntry = get(varID);
+        delete(varID);
+        return lockEntry;
+    }
+}
+
+class Version {
+    public int value;
+    public int commitTime;
+
+    public Version(int value, int commitTime) {
+        this.value = value;
+        this.commitTime = commitTime;
+    }
+}
+
+/**
+ * Committed versions of one variable in commit sequence order, delta encoded in a byte array.
+ * Every BASE_INTERVAL-th version is a base holding its commit sequence number, commit time and value
+ * in full, the versions after it hold the differences to the version before as variable length integers.
+ * A lookup finds the nearest base by binary search and decodes at most BASE_INTERVAL versions from it.
+ *
+ * Versions are added by one writer at a time and read without locks. Readers see the state published
+ * last through a volatile field, and the part of the arrays a published state covers is never changed:
+ * a version is appended after it in place, or into copies of the arrays when they are full.
+ */
+class VersionChain {
+    public static final int BASE_INTERVAL = 16;
+    private static final int MAX_VERSION_SIZE = 15; // three 5-byte variable length integers
+
+    /**
+     * Versions visible to readers
+     */
+    private static final class State {
+        final byte[] data;
+        final int length; // bytes of data in use
+        final int[] baseOffsets; // offset of each base in data
+        final int[] baseSeqs; // commit sequence number of each base
+        final int size;
+        final int lastSeq;
+        final int lastValue;
+        final int lastCommitTime;
+
+        State(byte[] data, int length, int[] baseOffsets, int[] baseSeqs, int size, int lastSeq, int lastValue,
+            int lastCommitTime)
+        {
+            this.data = data;
+            this.length = length;
+            this.baseOffsets = baseOffsets;
+            this.baseSeqs = baseSeqs;
+            this.size = size;
+            this.lastSeq = lastSeq;
+            this.lastValue = lastValue;
+            this.lastCommitTime = lastCommitTime;
+        }
+    }
+
+    private volatile State state;
+
+    public VersionChain() {
+        state = new State(new byte[16], 0, new int[1], new int[1], 0, 0, 0, 0);
+    }
+
+    /**
+     * Description: add a committed version
+     * Input: commit sequence number, value, commit time
+     * Output: void
+     * Side effect:
+     *      Publish the new version to readers after it is written
+     *      A version older than the last one(or replacing one) is merged by encoding the chain again
+     */
+    public void add(int seq, int value, int commitTime) {
+        State s = state;
+        if (s.size > 0 && seq <= s.lastSeq) {
+            TreeMap<Integer, Version> versions = toMap();
+            versions.put(seq, new Version(value, commitTime));
+            state = fromMap(versions).state;
+            return;
+        }
+        byte[] data = s.data;
+        if (s.length + MAX_VERSION_SIZE > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, s.length + MAX_VERSION_SIZE));
+        }
+        int[] baseOffsets = s.baseOffsets;
+        int[] baseSeqs = s.baseSeqs;
+        int length = s.length;
+        if (s.size % BASE_INTERVAL == 0) {
+            int base = s.size / BASE_INTERVAL;
+            if (base == baseOffsets.length) {
+                baseOffsets = Arrays.copyOf(baseOffsets, base * 2);
+                baseSeqs = Arrays.copyOf(baseSeqs, base * 2);
+            }
+            baseOffsets[base] = length;
+            baseSeqs[base] = seq;
+            length = VarInt.write(data, length, VarInt.zigzag(seq));
+            length = VarInt.write(data, length, VarInt.zigzag(commitTime));
+            length = VarInt.write(data, length, VarInt.zigzag(value));
+        } else {
+            length = VarInt.write(data, length, seq - s.lastSeq);
+            length = VarInt.write(data, length, VarInt.zigzag(commitTime - s.lastCommitTime));
+            length = VarInt.write(data, length, VarInt.zigzag(value - s.lastValue));
+        }
+        state = new State(data, length, baseOffsets, baseSeqs, s.size + 1, seq, value, commitTime);
+    }
+
+    /**
+     * Description: find the latest version up to a commit sequence number
+     * Input: commit sequence number
+     * Output: {commit sequence number, value, commit time} of the version, null if none
+     */
+    public int[] floor(int maxSeq) {
+        State s = state;
+        if (s.size == 0 || s.baseSeqs[0] > maxSeq) {
+            return null;
+        }
+        if (maxSeq >= s.lastSeq) {
+            return new int[] { s.lastSeq, s.lastValue, s.lastCommitTime };
+        }
+        int lo = 0;
+        int hi = (s.size - 1) / BASE_INTERVAL;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (s.baseSeqs[mid] <= maxSeq) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        int[] offset = { s.baseOffsets[lo] };
+        int[] version = { VarInt.unzigzag(VarInt.read(s.data, offset)), 0, 0 };
+        version[2] = VarInt.unzigzag(VarInt.read(s.data, offset));
+        version[1] = VarInt.unzigzag(VarInt.read(s.data, offset));
+        int end = Math.min(s.size, (lo + 1) * BASE_INTERVAL);
+        for (int i = lo * BASE_INTERVAL + 1; i < end; i++) {
+            int seqDelta = VarInt.read(s.data, offset);
+            if (version[0] + seqDelta > maxSeq) {
+                break;
+            }
+            version[0] += seqDelta;
+            version[2] += VarInt.unzigzag(VarInt.read(s.data, offset));
+            version[1] += VarInt.unzigzag(VarInt.read(s.data, offset));
+        }
+        return version;
+    }
+
+    public int lastSeq() {
+        return state.lastSeq;
+    }
+
+    public int lastCommitTime() {
+        return state.lastCommitTime;
+    }
+
+    public int size() {
+        return state.size;
+    }
+
+    /**
+     * Description: get the memory used by the encoded versions
+     * Input: N/A
+     * Output: size in bytes of the version data and the base index
+     */
+    public int encodedSize() {
+        State s = state;
+        return s.length + 8 * ((s.size + BASE_INTERVAL - 1) / BASE_INTERVAL);
+    }
+
+    /**
+     * Description: decode all versions
+     * Input: N/A
+     * Output: (commit sequence number, committed version)
+     */
+    public TreeMap<Integer, Version> toMap() {
+        State s = state;
+        TreeMap<Integer, Version> versions = new TreeMap<Integer, Version>();
+        int[] offset = { 0 };
+        int seq = 0;
+        int value = 0;
+        int commitTime = 0;
+        for (int i = 0; i < s.size; i++) {
+            if (i % BASE_INTERVAL == 0) {
+                seq = VarInt.unzigzag(VarInt.read(s.data, offset));
+                commitTime = VarInt.unzigzag(VarInt.read(s.data, offset));
+                value = VarInt.unzigzag(VarInt.read(s.data, offset));
+            } else {
+                seq += VarInt.read(s.data, offset);
+                commitTime += VarInt.unzigzag(VarInt.read(s.data, offset));
+                value += VarInt.unzigzag(VarInt.read(s.data, offset));
+            }
+            versions.put(seq, new Version(value, commitTime));
+        }
+        return versions;
+    }
+
+    /**
+     * Description: encode versions
+     * Input: (commit sequence number, committed version)
+     * Output: version chain
+     */
+    public static VersionChain fromMap(TreeMap<Integer, Version> versions) {
+        VersionChain chain = new VersionChain();
+        for (Entry<Integer, Version> entry : versions.entrySet()) {
+            chain.add(entry.getKey(), entry.getValue().value, entry.getValue().commitTime);
+        }
+        return chain;
+    }
+}
+
+class VariableState {
+    public int value;
+    public boolean readable;
+    public TreeMap<Integer, Version> history; // (commit sequence number, committed version)
+    public LockEntry lockEntry; // locks and waiting requests, null if none
+
+    public VariableState(int value, boolean readable, TreeMap<Integer, Version> history, LockEntry lockEntry) {
+        this.value = value;
+        this.readable = readable;
+        this.history = history;
+        this.lockEntry = lockEntry;
+    }
 }
 
-public class DataManager {
+public class DataManager implements Site {
     public int siteID;
-    public HashMap<Integer, Integer> dataTable;
-    public HashMap<Integer, LockEntry> lockTable; // (varName, lock entry)
-    public HashMap<Integer, String> pendingWriteTable; // (varName, pend write transaction name)
+    public StorageEngine dataTable; // (varID, current value)
+    public ConcurrentSkipListSet<Integer> varIndex; // IDs of the stored variables in order, for range scans
+    public LockTable lockTable; // (varID, lock entry)
     public HashMap<Integer, Boolean> repVarReadableTable; // (varID, isReadable?)
-    public TreeMap<Integer, HashMap<Integer, Integer>> snapshots; // (time, map(varID, val))
+    public ConcurrentHashMap<Integer, VersionChain> history; // (varID, committed versions), read without locks
+    public ConcurrentSkipListSet<Integer> failTimes; // times this site failed
+    public RedoLog redoLog; // log of committed writes since the last checkpoint, null if not enabled
+    public PlacementMap placement; // which sites hold each variable
 
     /**
-     * Description: initialize site’s data
+     * Description: initialize site’s data with the standard placement
      * Input: site ID
      * Output: N/A
      */
     public DataManager(int index) {
+        this(index, PlacementMap.standard(PlacementMap.DEFAULT_SITE_COUNT, PlacementMap.DEFAULT_VAR_COUNT));
+    }
+
+    /**
+     * Description: initialize site’s data
+     * Input: site ID, placement of variables
+     * Output: N/A
+     */
+    public DataManager(int index, PlacementMap placement) {
+        this(index, placement, StorageEngine.HASH);
+    }
+
+    /**
+     * Description: initialize site’s data
+     * Input: site ID, placement of variables, storage engine name
+     * Output: N/A
+     */
+    public DataManager(int index, PlacementMap placement, String storage) {
         siteID = index;
-        lockTable = new HashMap<Integer, LockEntry>();
-        pendingWriteTable = new HashMap<Integer, String>();
-        snapshots = new TreeMap<Integer, HashMap<Integer, Integer>>();
+        this.placement = placement;
+        lockTable = new LockTable();
+        failTimes = new ConcurrentSkipListSet<Integer>();
 
-        dataTable = new HashMap<Integer, Integer>();
-        for (int i = 1; i <= 20; i++) {
-            if (i % 2 == 0 || 1 + (i%10) == siteID) {
+        dataTable = StorageEngine.create(storage, placement.varCount);
+        varIndex = new ConcurrentSkipListSet<Integer>();
+        for (int i = 1; i <= placement.varCount; i++) {
+            if (placement.isStoredAt(i, siteID)) {
                 dataTable.put(i, 10*i);
+                varIndex.add(i);
             }
         }
 
         // All replicated variables are readable at first
         repVarReadableTable = new HashMap<Integer, Boolean>();
-        for (Integer varId : dataTable.keySet()) {
-            if (varId % 2 == 0) {
+        history = new ConcurrentHashMap<Integer, VersionChain>();
+        for (int varId : dataTable.keys()) {
+            if (placement.isReplicated(varId)) {
                 repVarReadableTable.put(varId, true);
             }
+            // Initial values are committed at time 0 with version 0
+            VersionChain versions = new VersionChain();
+            versions.add(0, dataTable.get(varId), 0);
+            history.put(varId, versions);
         }
     }
 
+    /**
+     * Description: get the ID of this site
+     * Input: N/A
+     * Output: site ID
+     */
+    public int getSiteID() {
+        return siteID;
+    }
+
     /**
      * Description: check is one lock is obtainable
      * Input: transaction name, variable ID, lock type
@@ -93,68 +734,81 @@ public class DataManager {
      */
     public HashSet<String> checkLock(String transactionName, int varID, LockType lockType) {
         LockEntry lockEntry = lockTable.get(varID);
-        String pendingWriteTran = pendingWriteTable.get(varID);
-        boolean suc = 
-            // No lock entry and no pending write 
-            // or this transaction is the pending one
-            (lockEntry == null
-                && (pendingWriteTran == null
-                    || (pendingWriteTran != null
-                        && lockType ==  LockType.WRITE
-                        && pendingWriteTran.equals(transactionName)))
-            )
-            // Both are read lock and no pending write
-            || (lockEntry != null
-                && lockEntry.lockType == LockType.READ
-                && lockType == LockType.READ
-                && (pendingWriteTran == null || lockEntry.readLockTransactions.contains(transactionName)))
-            // Promote read lock to write lock if there is only one read lock and
-            // this read lock comes from this T
-            || (lockType == LockType.WRITE
-                && lockEntry != null
-                && lockEntry.lockType == LockType.READ
-                && lockEntry.readLockTransactions.size() == 1
-                && lockEntry.readLockTransactions.contains(transactionName)
-                && (pendingWriteTran == null || pendingWriteTran.equals(transactionName)));
+        if (lockEntry == null) {
+            return new HashSet<>();
+        }
+
+        boolean alreadyHeld = (lockType == LockType.WRITE && lockEntry.isWriter(transactionName))
+            || (lockType == LockType.READ && lockEntry.isReader(transactionName)
+                && lockEntry.lockType != LockType.INCREMENT)
+            || (lockType == LockType.INCREMENT && lockEntry.isReader(transactionName)
+                && lockEntry.lockType == LockType.INCREMENT)
+            || (lockType == LockType.UPDATE
+                && (lockEntry.isUpdater(transactionName) || lockEntry.isWriter(transactionName)));
+        // Promote a shared lock to a write lock if there is only one holder and
+        // it is this T(a read lock asking for an increment lock or the other way round too)
+        boolean isUpgrade = isUpgrade(lockEntry, transactionName, lockType);
+        // An update lock joins read locks, but new readers wait for the update lock holder
+        // so that it can upgrade once the current readers are gone
+        boolean isCompatible = lockEntry.isFree()
+            || (lockEntry.lockType == lockType && lockType != LockType.WRITE && lockType != LockType.UPDATE)
+            || (lockType == LockType.UPDATE && lockEntry.lockType == LockType.READ)
+            || isUpgrade;
 
-        // Return empty block set if no blocking
-        if (suc) {
+        // Requests arrived earlier than this T's request go first, except for the update lock holder
+        HashSet<String> aheadTrancSet = new HashSet<String>();
+        for (LockRequest request : lockEntry.isUpdater(transactionName)
+            ? Collections.<LockRequest>emptyList() : lockEntry.getWaiters())
+        {
+            if (request.transactionName.equals(transactionName)) {
+                // A pending write blocks this T from reading the old value again
+                if (!alreadyHeld && lockType == LockType.READ && request.lockType == LockType.WRITE) {
+                    aheadTrancSet.add(transactionName);
+                }
+                break;
+            }
+            aheadTrancSet.add(request.transactionName);
+        }
+
+        if (alreadyHeld || (isCompatible && aheadTrancSet.isEmpty())) {
             return new HashSet<>();
         }
-        return genBlockTrancSet(transactionName, lockEntry, pendingWriteTran);
+        HashSet<String> blockTrancSet = genBlockTrancSet(lockEntry, lockType, isCompatible);
+        blockTrancSet.addAll(aheadTrancSet);
+        return blockTrancSet;
     }
 
     /**
-     * Description: genearate set contains all transaction names blocking current transaction
-     * Input: transaction name, lock entry, pending write transaction
+     * Description: genearate set contains all transaction names holding a lock conflicting with current transaction
+     * Input: lock entry, requested lock type, is the requested lock compatible with the held lock
      * Output: a hash set containing all transaction names blocking current transaction
      */
-    private HashSet<String> genBlockTrancSet(String transactionName, LockEntry lockEntry, String pendingWriteTran) {
+    private HashSet<String> genBlockTrancSet(LockEntry lockEntry, LockType lockType, boolean isCompatible) {
         HashSet<String> set = new HashSet<String>();
-        if (pendingWriteTran != null) {
-            set.add(pendingWriteTran);
+        if (isCompatible) {
+            return set;
+        }
+        if (lockEntry.lockType == LockType.UPDATE && (lockType == LockType.READ || lockType == LockType.UPDATE)) {
+            // Only the update lock holder blocks a read or update request
+            set.add(lockEntry.getUpdater());
+            return set;
         }
 
-        if (lockEntry != null) {
-            String writeTranc = lockEntry.writeLockTransaction;
-            if (writeTranc != null && writeTranc.length() > 0 ) {
-                set.add(writeTranc);
-            }
-    
-            for (String readTranc : lockEntry.readLockTransactions) {
-                if (readTranc != null & readTranc.length() > 0) {
-                    set.add(readTranc);
-                }
-            }
+        String writeTranc = lockEntry.getWriter();
+        if (writeTranc.length() > 0) {
+            set.add(writeTranc);
         }
+        set.addAll(lockEntry.getReaders());
         return set;
     }
 
     /**
-     * Description: acquired the required lock if possible
+     * Description: acquired the required lock if possible, otherwise wait in the queue of the variable
      * Input: transaction name, variable id, lock type
      * Output: a hash set of transaction names if blocked, or empty set if not blocked
-     * Side effect: Update lock table if the required lock can be acquired
+     * Side effect:
+     * Update lock table if the required lock can be acquired
+     * Append a request to the wait queue if blocked and this T is not waiting yet
      */
     public HashSet<String> acquireLock(String transactionName, int varID, LockType lockType) {
         if (!dataTable.containsKey(varID)) {
@@ -162,95 +816,247 @@ public class DataManager {
         }
 
         HashSet<String> blockTrancSet = checkLock(transactionName, varID, lockType);
+        LockEntry lockEntry = lockTable.get(varID);
         if (blockTrancSet.isEmpty()) {
-            if (!lockTable.containsKey(varID)) {
+            if (lockEntry == null) {
                 lockTable.put(varID, new LockEntry(lockType, transactionName));
             } else {
-                LockEntry lockEntry = lockTable.get(varID);
-                lockEntry.setLock(lockType, transactionName);
+                LockType grantedType = grantedType(lockEntry, transactionName, lockType);
+                lockEntry.setLock(grantedType, transactionName);
+                LockRequest request = lockEntry.findRequest(transactionName);
+                if (request != null && (request.lockType == lockType || grantedType == LockType.WRITE)) {
+                    lockEntry.removeWaiter(request);
+                }
             }
+            return new HashSet<>();
+        }
+        enqueue(lockEntry, transactionName, lockType);
+        return blockTrancSet;
+    }
 
-            String pendingWriteTran = pendingWriteTable.get(varID);
-            if (lockType == LockType.WRITE
-                && pendingWriteTran != null
-                && pendingWriteTran.equals(transactionName)) {
-                pendingWriteTable.remove(varID);
+    /**
+     * Description: check if a lock request is an upgrade of the only shared lock on a variable
+     * Input: lock entry, transaction name, lock type
+     * Output: true if this T is the only holder of a read, update or increment lock and asks for another
+     * type(other than an update lock)
+     */
+    private boolean isUpgrade(LockEntry lockEntry, String transactionName, LockType lockType) {
+        return lockType != lockEntry.lockType
+            && lockType != LockType.UPDATE
+            && lockEntry.lockType != LockType.WRITE
+            && lockEntry.getReaderCount() == 1
+            && lockEntry.isReader(transactionName);
+    }
+
+    /**
+     * Description: get the type of a lock to grant
+     * Input: lock entry, transaction name, requested lock type
+     * Output: write lock if this T holds a write lock or upgrades its shared lock, the requested type otherwise
+     */
+    private LockType grantedType(LockEntry lockEntry, String transactionName, LockType lockType) {
+        if (lockEntry.lockType == LockType.WRITE && lockEntry.isWriter(transactionName)) {
+            return LockType.WRITE;
+        }
+        if (!lockEntry.isFree() && isUpgrade(lockEntry, transactionName, lockType)) {
+            return LockType.WRITE;
+        }
+        return lockType;
+    }
+
+    /**
+     * Description: append a lock request to the wait queue of a lock entry
+     * Input: lock entry, transaction name, lock type
+     * Output: void
+     * Side effect: add a request, or promote the waiting request of this T to a write request
+     * if it asks for another type
+     */
+    private void enqueue(LockEntry lockEntry, String transactionName, LockType lockType) {
+        LockRequest request = lockEntry.findRequest(transactionName);
+        if (request == null && lockEntry.isUpdater(transactionName)) {
+            lockEntry.addFirstWaiter(new LockRequest(lockType, transactionName));
+        } else if (request == null) {
+            lockEntry.addWaiter(new LockRequest(lockType, transactionName));
+        } else if (request.lockType != lockType) {
+            request.lockType = LockType.WRITE;
+        }
+    }
+
+    /**
+     * Description: acquire read locks on every variable of a range stored at this site, all of them or none
+     * Input: transaction name, first and last variable ID of the range
+     * Output: a hash set of transaction names if blocked, or empty set if the range is locked
+     * Side effect:
+     * Update lock table if every lock of the range can be acquired
+     * If blocked, append a read request to the wait queue of each blocked variable, so that requests arriving
+     * later queue behind the scan, the locks are granted one by one in arrival order
+     * Variables this T holds the write lock of are skipped, this T reads its own writes
+     */
+    public HashSet<String> acquireRangeLock(String transactionName, int fromVarID, int toVarID) {
+        NavigableSet<Integer> range = varIndex.subSet(fromVarID, true, toVarID, true);
+        HashSet<String> blockTrancSet = new HashSet<String>();
+        ArrayList<Integer> blockedVarIDs = new ArrayList<Integer>();
+        for (int varID : range) {
+            if (!holdsWriteLock(transactionName, varID)) {
+                HashSet<String> varBlockTrancSet = checkLock(transactionName, varID, LockType.READ);
+                if (!varBlockTrancSet.isEmpty()) {
+                    blockTrancSet.addAll(varBlockTrancSet);
+                    blockedVarIDs.add(varID);
+                }
+            }
+        }
+        if (!blockTrancSet.isEmpty()) {
+            for (int varID : blockedVarIDs) {
+                enqueue(lockTable.get(varID), transactionName, LockType.READ);
+            }
+            return blockTrancSet;
+        }
+        for (int varID : range) {
+            if (!holdsWriteLock(transactionName, varID)) {
+                acquireLock(transactionName, varID, LockType.READ);
             }
-            return new HashSet<>();
         }
         return blockTrancSet;
     }
 
+    private boolean holdsWriteLock(String transactionName, int varID) {
+        LockEntry lockEntry = lockTable.get(varID);
+        return lockEntry != null
+            && lockEntry.lockType == LockType.WRITE
+            && lockEntry.isWriter(transactionName);
+    }
+
+    /**
+     * Description: check if one transaction is waiting in the queue of a variable
+     * Input: transaction name, variable ID
+     * Output: true if waiting
+     */
+    public boolean isWaiting(String transactionName, int varID) {
+        LockEntry lockEntry = lockTable.get(varID);
+        return lockEntry != null && lockEntry.findRequest(transactionName) != null;
+    }
+
+    /**
+     * Description: release the read lock of one transaction on one variable(short read locks of read committed
+     * transactions)
+     * Input: transaction name, variable ID
+     * Output: a hash set of transaction names granted a lock by the release
+     * Side effect: drop the read lock unless this T also holds a write, update or increment lock on the variable
+     */
+    public HashSet<String> releaseReadLock(String transactionName, int varID) {
+        LockEntry lockEntry = lockTable.get(varID);
+        if (lockEntry == null
+            || !lockEntry.isReader(transactionName)
+            || lockEntry.isUpdater(transactionName)
+            || (lockEntry.lockType != LockType.READ && lockEntry.lockType != LockType.UPDATE))
+        {
+            return new HashSet<>();
+        }
+        lockEntry.removeReader(transactionName);
+        return grantWaiters(varID);
+    }
+
     /**
      * Description: set one transaction as pending write transaction
      * Input: transaction name, variable ID
-     * Output: succeed or not
-     * Side effect: transaction will be set as pending write transaction if succeed
+     * Output: a hash set of transaction names granted a lock after the read lock of this T is dropped
+     * Side effect: a write request of this transaction waits in the queue of the variable
      */
-    public boolean setPendingWrite(String transactionName, int varID) {
-        if (pendingWriteTable.get(varID) == null) {
-            pendingWriteTable.put(varID, transactionName);
+    public HashSet<String> setPendingWrite(String transactionName, int varID) {
+        if (!dataTable.containsKey(varID)) {
+            return new HashSet<>();
+        }
+        LockEntry lockEntry = lockTable.get(varID);
+        if (lockEntry == null) {
+            lockEntry = new LockEntry();
+            lockTable.put(varID, lockEntry);
+        }
+        enqueue(lockEntry, transactionName, LockType.WRITE);
 
-            // Remove read lock from the same Transaction(blocks it from reading again)
-            // as it should read the new value afterwards.
-            // Otherwise, it will read the old value.
-            LockEntry lockEntry = lockTable.get(varID);
-            if (lockEntry != null
-                && lockEntry.lockType == LockType.READ
-                && lockEntry.readLockTransactions.contains(transactionName))
-            {
-                lockEntry.readLockTransactions.remove(transactionName);
-                if (lockEntry.readLockTransactions.size() == 0) {
-                    lockTable.remove(varID);
-                }
-            }
-            return true;
+        // Remove read lock from the same Transaction(blocks it from reading again)
+        // as it should read the new value afterwards.
+        // Otherwise, it will read the old value.
+        if ((lockEntry.lockType == LockType.READ
+                || (lockEntry.lockType == LockType.UPDATE && !lockEntry.isUpdater(transactionName)))
+            && lockEntry.isReader(transactionName))
+        {
+            lockEntry.removeReader(transactionName);
+            return grantWaiters(varID);
         }
-        return false;
+        return new HashSet<>();
     }
 
     /**
      * Description: release locks obtained by one transaction
      * Input: transaction name
-     * Output: void
+     * Output: a hash set of transaction names granted a lock on release
      * Side effect: 
-     * Release locks obtained by current transaction
+     * Release locks obtained by current transaction and remove its waiting requests
      * Release read lock from lock table if no transaction holding read lock to one variable
      * Release write lock from lock table if it is a write lock
+     * Grant released locks to waiting requests in arrival order
      */
-    public void releaseLocks(String transactionName) {
+    public HashSet<String> releaseLocks(String transactionName) {
         ArrayList<Integer> releasedVarIDs = new ArrayList<Integer>();
-        for (Entry<Integer, LockEntry> entry: this.lockTable.entrySet()) {
-            if (entry.getValue().writeLockTransaction.equals(transactionName)
-                || entry.getValue().readLockTransactions.contains(transactionName))
+        for (int varID : this.lockTable.keys()) {
+            LockEntry lockEntry = this.lockTable.get(varID);
+            if (lockEntry.isWriter(transactionName)
+                || lockEntry.isReader(transactionName)
+                || lockEntry.findRequest(transactionName) != null)
             {
-                releasedVarIDs.add(entry.getKey());
+                releasedVarIDs.add(varID);
             }
         }
+        HashSet<String> grantedTrancSet = new HashSet<String>();
         for (Integer varID: releasedVarIDs) {
-            LockEntry lockEntry = this.lockTable.get(varID);
-            if (lockEntry.lockType == LockType.READ) {
-                // Reduce read lock count and remove this lock if it comes to zero
-                lockEntry.readLockTransactions.remove(transactionName);
-                if (lockEntry.readLockTransactions.size() == 0) {
-                    this.lockTable.remove(varID);
-                }
-            } else {
-                // If it is a write lock, remove it as we will only have one write lock at a time
-                this.lockTable.remove(varID);
+            this.lockTable.get(varID).remove(transactionName);
+            grantedTrancSet.addAll(grantWaiters(varID));
+        }
+        return grantedTrancSet;
+    }
+
+    /**
+     * Description: hand a lock over to compatible waiting requests from the head of its queue
+     * Input: variable ID
+     * Output: a hash set of transaction names granted a lock
+     * Side effect:
+     * Grant a write request, or all consecutive read requests, at the head of the queue
+     * Remove the lock entry if no transaction holds or waits for it
+     */
+    private HashSet<String> grantWaiters(int varID) {
+        HashSet<String> grantedTrancSet = new HashSet<String>();
+        LockEntry lockEntry = lockTable.get(varID);
+        while (lockEntry.hasWaiters()) {
+            LockRequest request = lockEntry.waitQueue.getFirst();
+            boolean isUpgrade = !lockEntry.isFree() && isUpgrade(lockEntry, request.transactionName, request.lockType);
+            boolean isShared = request.lockType != LockType.WRITE
+                && request.lockType != LockType.UPDATE
+                && lockEntry.lockType == request.lockType
+                && lockEntry.getWriter().length() == 0;
+            boolean isUpdate = request.lockType == LockType.UPDATE
+                && lockEntry.lockType == LockType.READ
+                && lockEntry.getWriter().length() == 0;
+            if (!lockEntry.isFree() && !isUpgrade && !isShared && !isUpdate) {
+                break;
             }
+            lockEntry.removeWaiter(request);
+            lockEntry.setLock(isUpgrade ? LockType.WRITE : request.lockType, request.transactionName);
+            grantedTrancSet.add(request.transactionName);
         }
+        if (lockEntry.isFree() && !lockEntry.hasWaiters()) {
+            lockTable.remove(varID);
+        }
+        return grantedTrancSet;
     }
 
     /**
      * Description: Mimic the situation that the given site is down
-     * Input: void
+     * Input: current time
      * Output: void
-     * Side effect: Erase the lock table and pending write table
+     * Side effect: Erase the lock table and the wait queues in it, record the fail time
      */
-    public void fail() {
+    public void fail(int currentTime) {
         lockTable.clear();
-        pendingWriteTable.clear();
+        failTimes.add(currentTime);
     }
 
     /**
@@ -280,8 +1086,8 @@ public class DataManager {
         LockEntry lockEntry = lockTable.get(varID);
         Integer val = null;
         if (lockEntry != null
-            && lockEntry.readLockTransactions.contains(transactionName)
-            && lockEntry.lockType == LockType.READ)
+            && lockEntry.isReader(transactionName)
+            && (lockEntry.lockType == LockType.READ || lockEntry.lockType == LockType.UPDATE))
         {
             val = dataTable.get(varID);
         }
@@ -289,21 +1095,114 @@ public class DataManager {
     }
 
     /**
-     * Description: Handle transaction’s readRO instruction
-     * Input: variable ID, transaction begin time
+     * Description: Handle transaction’s scan instruction for the variables of a range stored at this site
+     * Input: transaction name, first and last variable ID of the range
+     * Output: (variable ID, value) of the variables this T holds a read lock on, without the replicated
+     * variables not readable since the site recovered
+     */
+    public TreeMap<Integer, Integer> readRange(String transactionName, int fromVarID, int toVarID) {
+        TreeMap<Integer, Integer> values = new TreeMap<Integer, Integer>();
+        for (int varID : varIndex.subSet(fromVarID, true, toVarID, true)) {
+            Integer val = read(transactionName, varID);
+            if (val != null && (!placement.isReplicated(varID) || isReadable(varID))) {
+                values.put(varID, val);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Description: check if a replicated variable is readable at this site
+     * Input: variable ID
+     * Output: false if the variable has not been written since the site recovered
+     */
+    public boolean isReadable(int varID) {
+        return repVarReadableTable.getOrDefault(varID, false);
+    }
+
+    /**
+     * Description: Handle an optimistic transaction’s read instruction, no lock is required
+     * Input: variable ID
+     * Output:
+     * an integer as variable value
+     * null if the variable is not stored in this site or not readable yet after recovery
+     */
+    public Integer readLatest(int varID) {
+        if (placement.isReplicated(varID) && !repVarReadableTable.getOrDefault(varID, false)) {
+            return null;
+        }
+        return dataTable.get(varID);
+    }
+
+    /**
+     * Description: get the version of the current value of a variable
+     * Input: variable ID
+     * Output: commit sequence number of the transaction which wrote the current value, 0 for the initial value
+     */
+    public int getVersion(int varID) {
+        VersionChain versions = history.get(varID);
+        return versions == null ? 0 : versions.lastSeq();
+    }
+
+    /**
+     * Description: Handle transaction’s readRO instruction from the committed history of this site
+     * Input: variable ID, commit sequence number and time when the transaction began
      * Output:
      * an integer as variable value
-     * null if no avaiable snapshot
+     * null if 
+     *      the variable is not stored in this site
+     *      the variable is replicated and this site failed between the commit of
+     *      the version visible to the transaction and the begin of the transaction
+     * Takes no lock, the history and fail times may be changed by writers of this site meanwhile
+     */
+    public Integer readRO(int varID, int transBeginSeq, int transBeginTime) {
+        VersionChain versions = history.get(varID);
+        if (versions == null) return null;
+        int[] version = versions.floor(transBeginSeq);
+        if (version == null) return null;
+
+        if (placement.isReplicated(varID)) {
+            Integer failTime = failTimes.higher(version[2]);
+            if (failTime != null && failTime <= transBeginTime) {
+                return null;
+            }
+        }
+        return version[1];
+    }
+
+    /**
+     * Description: Handle read-only transaction’s scan instruction from the committed history of this site
+     * Input: first and last variable ID of the range, commit sequence number and time when the transaction began
+     * Output: (variable ID, value) of the variables of the range with a valid version at this site
+     */
+    public TreeMap<Integer, Integer> readRangeRO(int fromVarID, int toVarID, int transBeginSeq, int transBeginTime) {
+        TreeMap<Integer, Integer> values = new TreeMap<Integer, Integer>();
+        for (int varID : varIndex.subSet(fromVarID, true, toVarID, true)) {
+            Integer val = readRO(varID, transBeginSeq, transBeginTime);
+            if (val != null) {
+                values.put(varID, val);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Description: read the latest committed version of a variable up to a commit sequence number,
+     * used by replication protocols that pick the newest of several copies
+     * Input: variable ID, commit sequence number
+     * Output: {commit sequence number, value} of the version, null if the variable is not stored in this site
      */
-    public Integer readRO(int varID, int transBeginTime) {
-        HashMap<Integer, Integer> snapshot = snapshots.get(transBeginTime);
-        if (snapshot == null) return null;
-        return snapshot.get(varID);
+    public int[] readVersioned(int varID, int maxCommitSeq) {
+        VersionChain versions = history.get(varID);
+        if (versions == null) return null;
+        int[] version = versions.floor(maxCommitSeq);
+        if (version == null) return null;
+        return new int[] { version[0], version[1] };
     }
 
     /**
      * Description: Handle transaction’s write instruction
-     * Input: transaction name, variable ID, variable new value
+     * Input: transaction name, variable ID, variable new value, commit sequence number, commit time
      * Output:
      *      true if write completes successfully
      *      false if not succeed or site is down
@@ -311,33 +1210,127 @@ public class DataManager {
      *      Change the value of current variable to new value 
      *      If current variable is non-readable, set it to readable
      */
-    public boolean write(String transactionName, int varID, int val) {
+    public boolean write(String transactionName, int varID, int val, int version, int commitTime) {
         LockEntry lockEntry = lockTable.get(varID);
         if (lockEntry != null
-            && lockEntry.writeLockTransaction.equals(transactionName)
+            && lockEntry.isWriter(transactionName)
             && lockEntry.lockType == LockType.WRITE)
         {
-            dataTable.put(varID, val);
-            // A replicated variable is non-readable after recovery
-            // However, once we write it, it is readable then
-            if (varID % 2 == 0) {
-                repVarReadableTable.put(varID, true);
-            }
+            applyWrite(varID, val, version, commitTime);
             return true;
         }
         return false;
     }
 
     /**
-     * Description: take a snapshot
-     * Input: current time
+     * Description: Handle transaction’s commit of an increment
+     * Input: transaction name, variable ID, delta, commit sequence number, commit time
+     * Output: true if the delta is applied, false if this T holds neither an increment lock nor the write lock
+     * Side effect: add the delta to the current value and append the sum to the committed history
+     */
+    public boolean increment(String transactionName, int varID, int delta, int version, int commitTime) {
+        LockEntry lockEntry = lockTable.get(varID);
+        Integer val = dataTable.get(varID);
+        if (lockEntry != null && val != null
+            && ((lockEntry.lockType == LockType.INCREMENT && lockEntry.isReader(transactionName))
+                || (lockEntry.lockType == LockType.WRITE && lockEntry.isWriter(transactionName))))
+        {
+            applyWrite(varID, val + delta, version, commitTime);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Description: install a committed value without checking the lock table(used by optimistic transactions)
+     * Input: variable ID, variable new value, commit sequence number, commit time
      * Output: void
-     * Side effect: take a snapshot of current state and store it in snapshots map
+     * Side effect:
+     *      Change the value of current variable and append it to the committed history
+     *      If current variable is non-readable, set it to readable
      */
-    public void takeSnapshot(int currentTime) {
-        HashMap<Integer, Integer> snapshot = new HashMap<Integer, Integer>();
-        snapshot.putAll(dataTable);
-        snapshots.put(currentTime, snapshot);
+    public void applyWrite(int varID, int val, int version, int commitTime) {
+        installVersion(varID, val, version, commitTime);
+        if (redoLog != null) {
+            try {
+                redoLog.append(version, commitTime, varID, val);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Description: install a committed version without logging it(used by applyWrite and recovery from checkpoints)
+     * Input: variable ID, variable new value, commit sequence number, commit time
+     * Output: void
+     * Side effect:
+     *      Change the value of current variable and append it to the committed history
+     *      If current variable is non-readable, set it to readable
+     */
+    public void installVersion(int varID, int val, int version, int commitTime) {
+        dataTable.put(varID, val);
+        varIndex.add(varID);
+        VersionChain versions = history.get(varID);
+        if (versions == null) {
+            versions = new VersionChain();
+            history.put(varID, versions);
+        }
+        versions.add(version, val, commitTime);
+        // A replicated variable is non-readable after recovery
+        // However, once we write it, it is readable then
+        if (placement.isReplicated(varID)) {
+            repVarReadableTable.put(varID, true);
+        }
+    }
+
+    /**
+     * Description: hand the copy of a variable over to another site
+     * Input: variable ID
+     * Output: current value, readability, committed history and lock entry of the variable
+     * Side effect: the variable is no longer stored in this site
+     */
+    public VariableState exportVariable(int varID) {
+        VariableState state = new VariableState(dataTable.remove(varID), repVarReadableTable.getOrDefault(varID, true),
+            history.remove(varID).toMap(), lockTable.remove(varID));
+        repVarReadableTable.remove(varID);
+        varIndex.remove(varID);
+        return state;
+    }
+
+    /**
+     * Description: take over the copy of a variable from another site
+     * Input: variable ID, state exported by the other site
+     * Output: void
+     * Side effect: store the variable with its history, locks and waiting requests
+     */
+    public void importVariable(int varID, VariableState state) {
+        dataTable.put(varID, state.value);
+        varIndex.add(varID);
+        history.put(varID, VersionChain.fromMap(state.history));
+        if (placement.isReplicated(varID)) {
+            repVarReadableTable.put(varID, state.readable);
+        }
+        if (state.lockEntry != null) {
+            lockTable.put(varID, state.lockEntry);
+        }
+    }
+
+    /**
+     * Description: make committed writes of this site durable
+     * Input: N/A
+     * Output: void
+     * Side effect: flush the redo log if enabled
+     */
+    public void flushLog() {
+        if (redoLog == null) {
+            return;
+        }
+        try {
+            redoLog.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -355,13 +1348,14 @@ public class DataManager {
      * Output: a string contains current state
      */
     public String toString() {
-        TreeMap<Integer, Integer> sorted = new TreeMap<>(); 
-        sorted.putAll(dataTable);
         StringBuilder dataStringBuilder = new StringBuilder();
-        for (Map.Entry<Integer, Integer> entry : sorted.entrySet()) {
-            dataStringBuilder.append(String.format("x%d: %d, ", entry.getKey(), entry.getValue()));
+        for (int varID : dataTable.keys()) {
+            dataStringBuilder.append(String.format("x%d: %d, ", varID, dataTable.get(varID)));
+        }
+        // A site may store no variables, e.g. under hash placement or after its variables migrated away
+        if (dataStringBuilder.length() > 0) {
+            dataStringBuilder.delete(dataStringBuilder.length()-2, dataStringBuilder.length());
         }
-        dataStringBuilder.delete(dataStringBuilder.length()-2, dataStringBuilder.length());
         return String.format("site %d - %s", siteID, dataStringBuilder.toString());
     }
 }
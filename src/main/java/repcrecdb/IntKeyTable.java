@@ -0,0 +1,150 @@
+package repcrecdb;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing table keyed by primitive ints(keys start from 1, 0 marks an empty slot) with linear
+ * probing. The home slot of a key is taken from the high bits of its Fibonacci hash, as many bits as the
+ * capacity needs. Subclasses keep the values in an array of the table capacity created by newValues, at
+ * the slot of their key.
+ */
+abstract class IntKeyTable {
+    private static final int INITIAL_BITS = 4;
+
+    private int[] keys;
+    private int shift; // 32 - log2(capacity)
+    private int size;
+    protected Object values;
+
+    IntKeyTable() {
+        keys = new int[1 << INITIAL_BITS];
+        shift = 32 - INITIAL_BITS;
+        size = 0;
+        values = newValues(keys.length);
+    }
+
+    /**
+     * Description: create the value array of a capacity
+     * Input: capacity
+     * Output: int or reference array of that length
+     */
+    protected abstract Object newValues(int capacity);
+
+    /**
+     * Description: find the slot of a key
+     * Input: key
+     * Output: index of the slot holding the key, or of the empty slot ending its probe sequence
+     */
+    protected final int slot(int key) {
+        int mask = keys.length - 1;
+        int i = (key * 0x9E3779B9) >>> shift;
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Description: find the slot of a key, adding the key if it is not in the table
+     * Input: key
+     * Output: index of the slot holding the key
+     * Side effect: double the table when it is half full
+     */
+    protected final int insert(int key) {
+        int i = slot(key);
+        if (keys[i] == 0) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                i = slot(key);
+            }
+            keys[i] = key;
+            size += 1;
+        }
+        return i;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        Object oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        shift -= 1;
+        values = newValues(keys.length);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != 0) {
+                int k = slot(oldKeys[j]);
+                keys[k] = oldKeys[j];
+                System.arraycopy(oldValues, j, values, k, 1);
+            }
+        }
+    }
+
+    /**
+     * Description: drop a key and its value
+     * Input: key
+     * Output: true if the key was in the table
+     * Side effect: move later entries of the probe sequence back, so that no lookup stops at the freed slot
+     */
+    protected final boolean delete(int key) {
+        int mask = keys.length - 1;
+        int i = slot(key);
+        if (keys[i] == 0) {
+            return false;
+        }
+        keys[i] = 0;
+        release(i);
+        size -= 1;
+        for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int k = slot(keys[j]);
+            if (k != j) {
+                keys[k] = keys[j];
+                System.arraycopy(values, j, values, k, 1);
+                keys[j] = 0;
+                release(j);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Description: clear the value of a freed slot, so that a reference array does not keep it alive
+     * Input: slot index
+     * Output: void
+     */
+    private void release(int i) {
+        if (values instanceof Object[]) {
+            ((Object[]) values)[i] = null;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return keys[slot(key)] == key;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        if (values instanceof Object[]) {
+            Arrays.fill((Object[]) values, null);
+        }
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Description: get the keys in the table
+     * Input: N/A
+     * Output: keys in table order
+     */
+    public int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int key : keys) {
+            if (key != 0) {
+                result[n++] = key;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,255 @@
+package repcrecdb;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * A message arriving at a site at a simulated time
+ */
+class Delivery implements Comparable<Delivery> {
+    public double time;
+    public long seq; // breaks ties in sending order
+    public Runnable action;
+
+    public Delivery(double time, long seq, Runnable action) {
+        this.time = time;
+        this.seq = seq;
+        this.action = action;
+    }
+
+    public int compareTo(Delivery other) {
+        int cmp = Double.compare(time, other.time);
+        return cmp != 0 ? cmp : Long.compare(seq, other.seq);
+    }
+}
+
+/**
+ * Samples of a duration in simulated milliseconds
+ */
+class LatencyStats {
+    public ArrayList<Double> samples;
+
+    public LatencyStats() {
+        samples = new ArrayList<Double>();
+    }
+
+    public void add(double sample) {
+        samples.add(sample);
+    }
+
+    /**
+     * Description: get a percentile of the samples by the nearest-rank method
+     * Input: percentile from 0 to 100
+     * Output: the sample at that rank, 0 if there is no sample
+     */
+    public double percentile(double p) {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        ArrayList<Double> sorted = new ArrayList<Double>(samples);
+        Collections.sort(sorted);
+        int rank = (int) Math.ceil(p / 100 * sorted.size());
+        return sorted.get(Math.max(rank, 1) - 1);
+    }
+
+    public double mean() {
+        double sum = 0;
+        for (double sample : samples) {
+            sum += sample;
+        }
+        return samples.isEmpty() ? 0 : sum / samples.size();
+    }
+
+    public String toString() {
+        return String.format("n=%d mean=%.2f p50=%.2f p95=%.2f p99=%.2f max=%.2f", samples.size(), mean(),
+            percentile(50), percentile(95), percentile(99), percentile(100));
+    }
+}
+
+/**
+ * Discrete-event simulation of the network between the TM and the sites.
+ * Every link has a one-way latency and a bandwidth, messages on a link are
+ * transmitted one after another. Requests are delivered to sites in the order
+ * of their arrival time, and the TM waits for a reply by advancing the clock to its arrival.
+ */
+public class NetworkSimulator {
+    double now; // simulated time in milliseconds
+    double tickInterval; // time between the starts of two ticks, 0 starts a tick once the previous one is done
+    double defaultLatency; // one-way latency in milliseconds
+    HashMap<Integer, Double> latencies; // (siteID, one-way latency)
+    double defaultBandwidth; // bytes per millisecond, 0 for unlimited
+    HashMap<Integer, Double> bandwidths; // (siteID, bandwidth)
+    PriorityQueue<Delivery> deliveries; // messages in flight to sites
+    long nextSeq;
+    HashMap<Integer, Double> uplinkFreeTimes; // (siteID, time the TM to site link is free)
+    HashMap<Integer, Double> downlinkFreeTimes; // (siteID, time the site to TM link is free)
+    HashMap<String, Double> beginTimes; // (transaction name, begin time)
+    public LatencyStats readLatency;
+    public LatencyStats writeLatency;
+    public LatencyStats commitLatency;
+    public LatencyStats abortLatency;
+    public LatencyStats lockHoldTime;
+    public int messages;
+    public long bytes;
+
+    /**
+     * Description: initialize a simulator without delays
+     * Input: N/A
+     * Output: N/A
+     */
+    public NetworkSimulator() {
+        now = 0;
+        tickInterval = 0;
+        defaultLatency = 0;
+        latencies = new HashMap<Integer, Double>();
+        defaultBandwidth = 0;
+        bandwidths = new HashMap<Integer, Double>();
+        deliveries = new PriorityQueue<Delivery>();
+        nextSeq = 0;
+        uplinkFreeTimes = new HashMap<Integer, Double>();
+        downlinkFreeTimes = new HashMap<Integer, Double>();
+        beginTimes = new HashMap<String, Double>();
+        readLatency = new LatencyStats();
+        writeLatency = new LatencyStats();
+        commitLatency = new LatencyStats();
+        abortLatency = new LatencyStats();
+        lockHoldTime = new LatencyStats();
+        messages = 0;
+        bytes = 0;
+    }
+
+    /**
+     * Description: set a per-site parameter from a list like "5,3:40,4:40",
+     * an element without site ID sets the value of every other site
+     * Input: list of values, map of per-site values
+     * Output: the default value, or null if the list sets none
+     */
+    public static Double parsePerSite(String list, HashMap<Integer, Double> perSite) {
+        Double defaultValue = null;
+        for (String element : list.split(",")) {
+            String[] tokens = element.trim().split(":");
+            if (tokens.length == 1) {
+                defaultValue = Double.parseDouble(tokens[0]);
+            } else {
+                perSite.put(Integer.parseInt(tokens[0]), Double.parseDouble(tokens[1]));
+            }
+        }
+        return defaultValue;
+    }
+
+    public double getLatency(int siteID) {
+        return latencies.getOrDefault(siteID, defaultLatency);
+    }
+
+    public double getBandwidth(int siteID) {
+        return bandwidths.getOrDefault(siteID, defaultBandwidth);
+    }
+
+    /**
+     * Description: transmit one message over a link
+     * Input: site ID, message size, link free times, time the message is ready
+     * Output: arrival time of the message
+     * Side effect: occupy the link while the message is transmitted
+     */
+    private double transmit(int siteID, int size, HashMap<Integer, Double> linkFreeTimes, double readyTime) {
+        double bandwidth = getBandwidth(siteID);
+        double start = Math.max(readyTime, linkFreeTimes.getOrDefault(siteID, 0.0));
+        double end = start + (bandwidth > 0 ? size / bandwidth : 0);
+        linkFreeTimes.put(siteID, end);
+        messages += 1;
+        bytes += size;
+        return end + getLatency(siteID);
+    }
+
+    /**
+     * Description: send a request to a site
+     * Input: site ID, request size, action performed at the site on arrival
+     * Output: delivery of the request
+     */
+    public Delivery send(int siteID, int size, Runnable action) {
+        Delivery delivery = new Delivery(transmit(siteID, size, uplinkFreeTimes, now), nextSeq++, action);
+        deliveries.add(delivery);
+        return delivery;
+    }
+
+    /**
+     * Description: send a reply from a site, called by the action of a delivery
+     * Input: site ID, reply size
+     * Output: arrival time of the reply at the TM
+     */
+    public double reply(int siteID, int size) {
+        return transmit(siteID, size, downlinkFreeTimes, now);
+    }
+
+    /**
+     * Description: move the clock forward
+     * Input: target time
+     * Output: void
+     * Side effect: perform every delivery arriving until the target time in arrival order
+     */
+    public void advanceTo(double time) {
+        while (!deliveries.isEmpty() && deliveries.peek().time <= time) {
+            Delivery delivery = deliveries.poll();
+            now = Math.max(now, delivery.time);
+            delivery.action.run();
+        }
+        now = Math.max(now, time);
+    }
+
+    /**
+     * Description: perform all deliveries still in flight
+     * Input: N/A
+     * Output: void
+     */
+    public void drain() {
+        while (!deliveries.isEmpty()) {
+            advanceTo(deliveries.peek().time);
+        }
+    }
+
+    /**
+     * Description: start a tick
+     * Input: tick number
+     * Output: void
+     * Side effect: wait until the tick is due
+     */
+    public void startTick(int tick) {
+        advanceTo(tick * tickInterval);
+    }
+
+    public void beginTransaction(String transactionName) {
+        beginTimes.put(transactionName, now);
+    }
+
+    /**
+     * Description: record the end-to-end latency of a finished transaction
+     * Input: transaction name, committed or not
+     * Output: void
+     */
+    public void endTransaction(String transactionName, boolean committed) {
+        Double beginTime = beginTimes.remove(transactionName);
+        if (beginTime != null) {
+            (committed ? commitLatency : abortLatency).add(now - beginTime);
+        }
+    }
+
+    /**
+     * Description: print the latency distributions and the abort rate of the simulation
+     * Input: output stream
+     * Output: void
+     */
+    public void report(PrintStream out) {
+        int finished = commitLatency.samples.size() + abortLatency.samples.size();
+        out.println(String.format("Simulated time: %.2f ms, messages: %d, bytes: %d", now, messages, bytes));
+        out.println(String.format("Aborts: %d of %d transactions(%.1f%%)", abortLatency.samples.size(), finished,
+            finished == 0 ? 0 : 100.0 * abortLatency.samples.size() / finished));
+        out.println("Read latency(ms): " + readLatency);
+        out.println("Write latency(ms): " + writeLatency);
+        out.println("Commit latency(ms): " + commitLatency);
+        out.println("Abort latency(ms): " + abortLatency);
+        out.println("Lock hold time(ms): " + lockHoldTime);
+    }
+}
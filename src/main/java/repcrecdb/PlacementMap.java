@@ -0,0 +1,234 @@
+package repcrecdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Decides which sites hold each variable.
+ * The sites of a variable are kept in preference order, the first one is its home site
+ * (the primary copy, and where quorums are counted from).
+ */
+public class PlacementMap {
+    public static final String STANDARD = "standard";
+    public static final int DEFAULT_SITE_COUNT = 10;
+    public static final int DEFAULT_VAR_COUNT = 20;
+    public static final int VIRTUAL_NODES = 16; // ring positions per site for consistent hashing
+
+    String spec; // the placement in the format of the --placement option
+    int siteCount;
+    int varCount;
+    HashMap<Integer, ArrayList<Integer>> placement; // (varID, IDs of sites holding it, home site first)
+
+    private PlacementMap(String spec, int siteCount, int varCount) {
+        this.spec = spec;
+        this.siteCount = siteCount;
+        this.varCount = varCount;
+        placement = new HashMap<Integer, ArrayList<Integer>>();
+    }
+
+    /**
+     * Description: build a placement from its description
+     * Input: "standard", "hash:<replication factor>" or "range:<replication factor>", site count, variable count
+     * Output: placement map
+     */
+    public static PlacementMap parse(String spec, int siteCount, int varCount) {
+        String[] tokens = spec.split(":");
+        switch (tokens[0]) {
+            case STANDARD:
+                return standard(siteCount, varCount);
+            case "hash":
+                return consistentHash(siteCount, varCount, Integer.parseInt(tokens[1]));
+            case "range":
+                return ranges(siteCount, varCount, Integer.parseInt(tokens[1]));
+            default:
+                throw new IllegalArgumentException("Unknown placement " + spec);
+        }
+    }
+
+    /**
+     * Description: the placement of the RepCRec specification, even indexed variables are at all sites,
+     * odd indexed variables are at site 1 + (index mod 10)
+     * Input: site count, variable count
+     * Output: placement map
+     */
+    public static PlacementMap standard(int siteCount, int varCount) {
+        PlacementMap map = new PlacementMap(STANDARD, siteCount, varCount);
+        for (int varID = 1; varID <= varCount; varID++) {
+            int homeSiteID = (varID % siteCount) + 1;
+            map.place(varID, homeSiteID, varID % 2 == 0 ? siteCount : 1);
+        }
+        return map;
+    }
+
+    /**
+     * Description: place variables on a consistent hashing ring with virtual nodes, a variable is held
+     * by the first sites met clockwise from its position
+     * Input: site count, variable count, replication factor
+     * Output: placement map
+     */
+    public static PlacementMap consistentHash(int siteCount, int varCount, int replicationFactor) {
+        PlacementMap map = new PlacementMap("hash:" + replicationFactor, siteCount, varCount);
+        TreeMap<Integer, Integer> ring = new TreeMap<Integer, Integer>();
+        for (int siteID = 1; siteID <= siteCount; siteID++) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(siteID * 1000003 + i), siteID);
+            }
+        }
+        int factor = Math.min(replicationFactor, siteCount);
+        for (int varID = 1; varID <= varCount; varID++) {
+            ArrayList<Integer> siteIDs = new ArrayList<Integer>();
+            Entry<Integer, Integer> entry = ring.ceilingEntry(hash(-varID));
+            while (siteIDs.size() < factor) {
+                if (entry == null) {
+                    entry = ring.firstEntry();
+                }
+                if (!siteIDs.contains(entry.getValue())) {
+                    siteIDs.add(entry.getValue());
+                }
+                entry = ring.higherEntry(entry.getKey());
+            }
+            map.placement.put(varID, siteIDs);
+        }
+        return map;
+    }
+
+    /**
+     * Description: split variables into contiguous ranges, one range per home site,
+     * replicas are at the sites following the home site
+     * Input: site count, variable count, replication factor
+     * Output: placement map
+     */
+    public static PlacementMap ranges(int siteCount, int varCount, int replicationFactor) {
+        PlacementMap map = new PlacementMap("range:" + replicationFactor, siteCount, varCount);
+        for (int varID = 1; varID <= varCount; varID++) {
+            int homeSiteID = 1 + (int) ((long) (varID - 1) * siteCount / varCount);
+            map.place(varID, homeSiteID, Math.min(replicationFactor, siteCount));
+        }
+        return map;
+    }
+
+    /**
+     * Description: place a variable at consecutive sites
+     * Input: variable ID, home site ID, number of copies
+     * Output: void
+     */
+    private void place(int varID, int homeSiteID, int copies) {
+        ArrayList<Integer> siteIDs = new ArrayList<Integer>();
+        for (int i = 0; i < copies; i++) {
+            siteIDs.add((homeSiteID - 1 + i) % siteCount + 1);
+        }
+        placement.put(varID, siteIDs);
+    }
+
+    /**
+     * Description: mix the bits of an integer into a well spread ring position
+     * Input: integer key
+     * Output: ring position
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Description: replace a site holding a variable by another one at the same position
+     * Input: variable ID, ID of the site holding the variable, ID of the site taking it over
+     * Output: void
+     */
+    public void move(int varID, int fromSiteID, int toSiteID) {
+        ArrayList<Integer> siteIDs = placement.get(varID);
+        siteIDs.set(siteIDs.indexOf(fromSiteID), toSiteID);
+    }
+
+    public ArrayList<Integer> getSites(int varID) {
+        return placement.get(varID);
+    }
+
+    public int getHomeSite(int varID) {
+        return placement.get(varID).get(0);
+    }
+
+    /**
+     * Description: check if a variable has more than one copy, replicated copies follow the
+     * available copies rules(e.g. not readable after the site recovers until written)
+     * Input: variable ID
+     * Output: true if replicated
+     */
+    public boolean isReplicated(int varID) {
+        return placement.get(varID).size() > 1;
+    }
+
+    public boolean isStoredAt(int varID, int siteID) {
+        return placement.get(varID).contains(siteID);
+    }
+
+    /**
+     * Description: save the sites of every variable, so that moves of variables survive a restart
+     * Input: file path
+     * Output: void
+     * Side effect: the placement is written to a temporary file, forced to disk and moved over the old one
+     * Format: site count, variable count, then per variable its number of sites and the site IDs, home site first
+     */
+    public void write(Path path) throws IOException {
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(siteCount);
+            out.writeInt(varCount);
+            for (int varID = 1; varID <= varCount; varID++) {
+                ArrayList<Integer> siteIDs = placement.get(varID);
+                out.writeInt(siteIDs.size());
+                for (int siteID : siteIDs) {
+                    out.writeInt(siteID);
+                }
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Checkpoint.forceDirectory(path.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Description: replace the sites of every variable by the ones saved in a file
+     * Input: file path
+     * Output: void
+     */
+    public void load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            int savedSiteCount = in.readInt();
+            int savedVarCount = in.readInt();
+            if (savedSiteCount != siteCount || savedVarCount != varCount) {
+                throw new IOException(String.format("Placement of %d variables at %d sites loaded into %d variables at %d sites",
+                    savedVarCount, savedSiteCount, varCount, siteCount));
+            }
+            for (int varID = 1; varID <= varCount; varID++) {
+                int copies = in.readInt();
+                ArrayList<Integer> siteIDs = new ArrayList<Integer>();
+                for (int i = 0; i < copies; i++) {
+                    siteIDs.add(in.readInt());
+                }
+                placement.put(varID, siteIDs);
+            }
+        }
+    }
+}
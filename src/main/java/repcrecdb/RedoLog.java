@@ -0,0 +1,119 @@
+package repcrecdb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class RedoLog {
+    public static final int RECORD_SIZE = 16; // commit sequence number, commit time, variable ID, value
+
+    private FileChannel channel;
+    private ByteBuffer buffer; // records not flushed yet
+    public boolean sync; // force records to disk on flush
+
+    /**
+     * Description: open the redo log of one site, appending to existing records
+     * Input: log file path, force to disk on flush or not
+     * Output: N/A
+     */
+    public RedoLog(Path path, boolean sync) throws IOException {
+        this.sync = sync;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.buffer = ByteBuffer.allocate(64 * RECORD_SIZE);
+    }
+
+    /**
+     * Description: append one committed write to the log buffer
+     * Input: commit sequence number, commit time, variable ID, value
+     * Output: void
+     * Side effect: the buffer is written out if it is full
+     */
+    public void append(int commitSeq, int commitTime, int varID, int value) throws IOException {
+        if (buffer.remaining() < RECORD_SIZE) {
+            writeBuffer();
+        }
+        buffer.putInt(commitSeq).putInt(commitTime).putInt(varID).putInt(value);
+    }
+
+    /**
+     * Description: make all appended records durable
+     * Input: N/A
+     * Output: void
+     * Side effect: write out the buffer, and force it to disk in sync mode
+     */
+    public void flush() throws IOException {
+        writeBuffer();
+        if (sync) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Description: drop all records, called after a checkpoint covering them is written
+     * Input: N/A
+     * Output: void
+     */
+    public void truncate() throws IOException {
+        buffer.clear();
+        channel.truncate(0);
+    }
+
+    /**
+     * Description: close the log file
+     * Input: N/A
+     * Output: void
+     */
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    /**
+     * Description: write the buffered records to the log file
+     * Input: N/A
+     * Output: void
+     */
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Description: apply the records of a log file committed after a checkpoint to a site
+     * Input: site, log file path, commit sequence number covered by the checkpoint
+     * Output: the largest commit sequence number and commit time applied, or the given ones if none
+     * Side effect: install committed values into the site, a torn record at the end is ignored
+     */
+    public static int[] replay(DataManager dm, Path path, int checkpointSeq, int checkpointTime) throws IOException {
+        int[] last = new int[] { checkpointSeq, checkpointTime };
+        if (!Files.exists(path)) {
+            return last;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size() - channel.size() % RECORD_SIZE;
+            if (size == 0) {
+                return last;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            while (mapped.remaining() >= RECORD_SIZE) {
+                int commitSeq = mapped.getInt();
+                int commitTime = mapped.getInt();
+                int varID = mapped.getInt();
+                int value = mapped.getInt();
+                if (commitSeq > checkpointSeq && dm.dataTable.containsKey(varID)) {
+                    dm.installVersion(varID, value, commitSeq, commitTime);
+                    last[0] = Math.max(last[0], commitSeq);
+                    last[1] = Math.max(last[1], commitTime);
+                }
+            }
+        }
+        return last;
+    }
+}
@@ -0,0 +1,461 @@
+package repcrecdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * Decoder of the reply of one request
+ */
+interface ReplyDecoder<T> {
+    T decode(DataInputStream in) throws IOException;
+}
+
+/**
+ * Client of a SiteServer running in another thread or process.
+ * Requests are buffered until a reply is needed, so one-way requests(commit writes,
+ * fail, recover) and the async requests of a fan-out travel together in one round trip.
+ */
+public class RemoteSite implements Site {
+    int siteID;
+    Socket socket;
+    DataInputStream in;
+    DataOutputStream out;
+    LinkedList<PendingReply<?>> pendingReplies; // replies not read yet, in request order
+    Process process; // site process launched by this client, null if started elsewhere
+    public int requests; // number of requests sent
+    public int roundTrips; // number of times the client waited for the site
+
+    /**
+     * Reply of a request sent to the site, read when it or a later reply is needed
+     */
+    class PendingReply<T> implements Reply<T> {
+        ReplyDecoder<T> decoder;
+        T result;
+        boolean done;
+
+        PendingReply(ReplyDecoder<T> decoder) {
+            this.decoder = decoder;
+            this.done = false;
+        }
+
+        public T get() {
+            if (!done) {
+                await(this);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Description: connect to a site server
+     * Input: site ID, host and port of the server
+     * Output: N/A
+     */
+    public RemoteSite(int siteID, String host, int port) {
+        this.siteID = siteID;
+        pendingReplies = new LinkedList<PendingReply<?>>();
+        requests = 0;
+        roundTrips = 0;
+        try {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Description: start a site as a separate JVM on localhost and connect to it
+     * Input: site ID, placement of variables, storage engine name
+     * Output: client of the new site
+     */
+    public static RemoteSite launch(int siteID, PlacementMap placement, String storage) {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            SiteServer.class.getName(), Integer.toString(siteID), "0", placement.spec,
+            Integer.toString(placement.siteCount), Integer.toString(placement.varCount), storage);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        try {
+            Process process = builder.start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException(String.format("site %d exited before listening", siteID));
+            }
+            RemoteSite site = new RemoteSite(siteID, InetAddress.getLoopbackAddress().getHostAddress(),
+                Integer.parseInt(line.trim()));
+            site.process = process;
+            return site;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Description: queue the reply of the request just written
+     * Input: decoder of the reply
+     * Output: pending reply
+     */
+    private <T> PendingReply<T> expect(ReplyDecoder<T> decoder) {
+        PendingReply<T> reply = new PendingReply<T>(decoder);
+        pendingReplies.add(reply);
+        return reply;
+    }
+
+    /**
+     * Description: send all buffered requests and read replies up to the given one
+     * Input: pending reply
+     * Output: void
+     */
+    private void await(PendingReply<?> reply) {
+        try {
+            out.flush();
+            roundTrips += 1;
+            while (!reply.done) {
+                PendingReply<?> head = pendingReplies.removeFirst();
+                decodeInto(head);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private <T> void decodeInto(PendingReply<T> reply) throws IOException {
+        reply.result = reply.decoder.decode(in);
+        reply.done = true;
+    }
+
+    /**
+     * Description: write the opcode of a request
+     * Input: opcode
+     * Output: request stream
+     */
+    private DataOutputStream begin(byte op) throws IOException {
+        requests += 1;
+        out.writeByte(op);
+        return out;
+    }
+
+    public int getSiteID() {
+        return siteID;
+    }
+
+    public Reply<HashSet<String>> checkLockAsync(String transactionName, int varID, LockType lockType) {
+        try {
+            begin(SiteProtocol.CHECK_LOCK).writeUTF(transactionName);
+            out.writeInt(varID);
+            out.writeByte(lockType.ordinal());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readNames);
+    }
+
+    public Reply<HashSet<String>> acquireLockAsync(String transactionName, int varID, LockType lockType) {
+        try {
+            begin(SiteProtocol.ACQUIRE_LOCK).writeUTF(transactionName);
+            out.writeInt(varID);
+            out.writeByte(lockType.ordinal());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readNames);
+    }
+
+    public Reply<HashSet<String>> acquireRangeLockAsync(String transactionName, int fromVarID, int toVarID) {
+        try {
+            begin(SiteProtocol.ACQUIRE_RANGE_LOCK).writeUTF(transactionName);
+            out.writeInt(fromVarID);
+            out.writeInt(toVarID);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readNames);
+    }
+
+    public Reply<HashSet<String>> setPendingWriteAsync(String transactionName, int varID) {
+        try {
+            begin(SiteProtocol.SET_PENDING_WRITE).writeUTF(transactionName);
+            out.writeInt(varID);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readNames);
+    }
+
+    public Reply<HashSet<String>> releaseLocksAsync(String transactionName) {
+        try {
+            begin(SiteProtocol.RELEASE_LOCKS).writeUTF(transactionName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readNames);
+    }
+
+    public HashSet<String> releaseReadLock(String transactionName, int varID) {
+        try {
+            begin(SiteProtocol.RELEASE_READ_LOCK).writeUTF(transactionName);
+            out.writeInt(varID);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readNames).get();
+    }
+
+    public HashSet<String> checkLock(String transactionName, int varID, LockType lockType) {
+        return checkLockAsync(transactionName, varID, lockType).get();
+    }
+
+    public HashSet<String> acquireLock(String transactionName, int varID, LockType lockType) {
+        return acquireLockAsync(transactionName, varID, lockType).get();
+    }
+
+    public HashSet<String> acquireRangeLock(String transactionName, int fromVarID, int toVarID) {
+        return acquireRangeLockAsync(transactionName, fromVarID, toVarID).get();
+    }
+
+    public HashSet<String> setPendingWrite(String transactionName, int varID) {
+        return setPendingWriteAsync(transactionName, varID).get();
+    }
+
+    public HashSet<String> releaseLocks(String transactionName) {
+        return releaseLocksAsync(transactionName).get();
+    }
+
+    public boolean isWaiting(String transactionName, int varID) {
+        try {
+            begin(SiteProtocol.IS_WAITING).writeUTF(transactionName);
+            out.writeInt(varID);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(DataInputStream::readBoolean).get();
+    }
+
+    public boolean isReadable(int varID) {
+        try {
+            begin(SiteProtocol.IS_READABLE).writeInt(varID);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(DataInputStream::readBoolean).get();
+    }
+
+    public Integer read(String transactionName, int varID) {
+        try {
+            begin(SiteProtocol.READ).writeUTF(transactionName);
+            out.writeInt(varID);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readValue).get();
+    }
+
+    public Reply<TreeMap<Integer, Integer>> readRangeAsync(String transactionName, int fromVarID, int toVarID) {
+        try {
+            begin(SiteProtocol.READ_RANGE).writeUTF(transactionName);
+            out.writeInt(fromVarID);
+            out.writeInt(toVarID);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readValues);
+    }
+
+    public TreeMap<Integer, Integer> readRange(String transactionName, int fromVarID, int toVarID) {
+        return readRangeAsync(transactionName, fromVarID, toVarID).get();
+    }
+
+    public Integer readLatest(int varID) {
+        try {
+            begin(SiteProtocol.READ_LATEST).writeInt(varID);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readValue).get();
+    }
+
+    public int getVersion(int varID) {
+        try {
+            begin(SiteProtocol.GET_VERSION).writeInt(varID);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(DataInputStream::readInt).get();
+    }
+
+    public Integer readRO(int varID, int transBeginSeq, int transBeginTime) {
+        try {
+            begin(SiteProtocol.READ_RO).writeInt(varID);
+            out.writeInt(transBeginSeq);
+            out.writeInt(transBeginTime);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readValue).get();
+    }
+
+    public Reply<TreeMap<Integer, Integer>> readRangeROAsync(int fromVarID, int toVarID, int transBeginSeq,
+        int transBeginTime)
+    {
+        try {
+            begin(SiteProtocol.READ_RANGE_RO).writeInt(fromVarID);
+            out.writeInt(toVarID);
+            out.writeInt(transBeginSeq);
+            out.writeInt(transBeginTime);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readValues);
+    }
+
+    public TreeMap<Integer, Integer> readRangeRO(int fromVarID, int toVarID, int transBeginSeq, int transBeginTime) {
+        return readRangeROAsync(fromVarID, toVarID, transBeginSeq, transBeginTime).get();
+    }
+
+    public Reply<int[]> readVersionedAsync(int varID, int maxCommitSeq) {
+        try {
+            begin(SiteProtocol.READ_VERSIONED).writeInt(varID);
+            out.writeInt(maxCommitSeq);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readVersion);
+    }
+
+    public int[] readVersioned(int varID, int maxCommitSeq) {
+        return readVersionedAsync(varID, maxCommitSeq).get();
+    }
+
+    public Reply<Boolean> writeAsync(String transactionName, int varID, int val, int version, int commitTime) {
+        try {
+            begin(SiteProtocol.WRITE).writeUTF(transactionName);
+            out.writeInt(varID);
+            out.writeInt(val);
+            out.writeInt(version);
+            out.writeInt(commitTime);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(DataInputStream::readBoolean);
+    }
+
+    public boolean write(String transactionName, int varID, int val, int version, int commitTime) {
+        return writeAsync(transactionName, varID, val, version, commitTime).get();
+    }
+
+    public Reply<Boolean> incrementAsync(String transactionName, int varID, int delta, int version, int commitTime) {
+        try {
+            begin(SiteProtocol.INCREMENT).writeUTF(transactionName);
+            out.writeInt(varID);
+            out.writeInt(delta);
+            out.writeInt(version);
+            out.writeInt(commitTime);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(DataInputStream::readBoolean);
+    }
+
+    public boolean increment(String transactionName, int varID, int delta, int version, int commitTime) {
+        return incrementAsync(transactionName, varID, delta, version, commitTime).get();
+    }
+
+    public void applyWrite(int varID, int val, int version, int commitTime) {
+        try {
+            begin(SiteProtocol.APPLY_WRITE).writeInt(varID);
+            out.writeInt(val);
+            out.writeInt(version);
+            out.writeInt(commitTime);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public VariableState exportVariable(int varID) {
+        try {
+            begin(SiteProtocol.EXPORT_VARIABLE).writeInt(varID);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(SiteProtocol::readVariableState).get();
+    }
+
+    public void importVariable(int varID, VariableState state) {
+        try {
+            begin(SiteProtocol.IMPORT_VARIABLE).writeInt(varID);
+            SiteProtocol.writeVariableState(out, state);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void flushLog() {
+        try {
+            begin(SiteProtocol.FLUSH_LOG);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        expect(DataInputStream::readBoolean).get();
+    }
+
+    public void fail(int currentTime) {
+        try {
+            begin(SiteProtocol.FAIL).writeInt(currentTime);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void recover() {
+        try {
+            begin(SiteProtocol.RECOVER);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public String queryState() {
+        try {
+            begin(SiteProtocol.QUERY_STATE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return expect(in -> in.readUTF()).get();
+    }
+
+    /**
+     * Description: shut down the site server and close the connection
+     * Input: N/A
+     * Output: void
+     * Side effect: wait for the launched site process to exit
+     */
+    public void close() {
+        try {
+            begin(SiteProtocol.SHUTDOWN);
+            out.flush();
+            socket.close();
+            if (process != null) {
+                process.waitFor();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
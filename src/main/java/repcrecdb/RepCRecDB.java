@@ -1,10 +1,14 @@
 package repcrecdb;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Scanner;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 
 public class RepCRecDB {
 
@@ -30,17 +34,167 @@ public class RepCRecDB {
     public static void main(String[] args) throws Exception {
         TransactionManager tm = init();
 
+        // Options start with "--", the remaining argument is the input file
+        String filePath = null;
+        String replayPath = null;
+        boolean victimGiven = false;
+        for (String arg : args) {
+            if (arg.startsWith("--replay=")) {
+                replayPath = arg.substring("--replay=".length());
+            } else if (arg.startsWith("--")) {
+                configure(tm, arg);
+                victimGiven |= arg.startsWith("--victim=");
+            } else {
+                filePath = arg;
+            }
+        }
+
         // Get input stream, from file or run all test cases
         InputStream is = null;
-        if (args.length == 1) {
-            String filePath = args[0];
-            is = new FileInputStream(filePath);
-            tm.run(is);
+        if (filePath != null || replayPath != null) {
+            if (replayPath != null) {
+                ArrayList<TraceRecord> records = Trace.read(Paths.get(replayPath));
+                long startTime = System.nanoTime();
+                int mismatches = tm.replay(records);
+                System.out.println(String.format("Replayed %d instructions of %d ticks in %.2f ms, %d differ from the trace",
+                    records.size(), tm.ticks, (System.nanoTime() - startTime) / 1e6, mismatches));
+            } else {
+                is = new FileInputStream(filePath);
+                tm.run(is);
+            }
+            if (tm.simulator != null) {
+                tm.simulator.report(System.out);
+            }
+            if (tm.simulator != null || victimGiven) {
+                System.out.println(String.format("Deadlock victims(%s): %d, reads and writes lost: %d, restarts: %d",
+                    tm.victimPolicy.optionName(), tm.deadlockAborts, tm.lostOperations, tm.restarts));
+            }
+            if (tm.retryLimit > 0) {
+                System.out.println(String.format("Retries: %d, given up: %d, goodput: %d of %d reads and writes(%.1f%%)",
+                    tm.restarts, tm.retriesGivenUp, tm.committedOperations, tm.totalOperations,
+                    tm.totalOperations == 0 ? 100.0 : 100.0 * tm.committedOperations / tm.totalOperations));
+            }
         }
         else {
             // Run all test cases
             runIntegrationTests();
         }
+        tm.close();
+    }
+
+    /**
+     * Description: apply one command line option to a transaction manager
+     * Input: transaction manager, option in the format "--name=value"
+     * Output: N/A
+     * Side effect: switch the corresponding mode of the transaction manager
+     */
+    public static void configure(TransactionManager tm, String option) {
+        String[] tokens = option.substring(2).split("=", 2);
+        String value = tokens.length > 1 ? tokens[1] : "";
+        switch (tokens[0]) {
+            case "cc":
+                tm.concurrencyControl = ConcurrencyControl.valueOf(value.toUpperCase());
+                break;
+            case "storage":
+                tm.setStorage(value);
+                break;
+            case "placement":
+                tm.setPlacement(PlacementMap.parse(value, tm.sites.size(), tm.placement.varCount));
+                break;
+            case "variables":
+                int varCount = Integer.parseInt(value);
+                if (varCount < 1) {
+                    throw new IllegalArgumentException("Variable count must be positive: " + value);
+                }
+                tm.setPlacement(PlacementMap.parse(tm.placement.spec, tm.sites.size(), varCount));
+                break;
+            case "eager-abort":
+                tm.eagerAbort = true;
+                break;
+            case "batch-ticks":
+                tm.batchTicks = true;
+                break;
+            case "group-commit":
+                tm.groupCommitWindow = Integer.parseInt(value);
+                break;
+            case "rebalance-interval":
+                tm.rebalanceInterval = Integer.parseInt(value);
+                break;
+            case "retry":
+                tm.retryLimit = Integer.parseInt(value);
+                break;
+            case "retry-backoff":
+                tm.retryBackoff = Integer.parseInt(value);
+                break;
+            case "victim":
+                tm.victimPolicy = VictimPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+                break;
+            case "replication":
+                tm.replication = ReplicationProtocol.valueOf(value.toUpperCase().replace('-', '_'));
+                break;
+            case "trace":
+                try {
+                    tm.trace = new Trace(Paths.get(value));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                break;
+            case "checkpoint-dir":
+                tm.enableCheckpoints(Paths.get(value));
+                break;
+            case "checkpoint-interval":
+                tm.checkpointInterval = Integer.parseInt(value);
+                break;
+            case "transport":
+                if (value.equals("socket")) {
+                    // One JVM per site on localhost
+                    HashMap<Integer, Site> sites = new HashMap<Integer, Site>();
+                    for (Integer siteID : tm.sites.keySet()) {
+                        sites.put(siteID, RemoteSite.launch(siteID, tm.placement, tm.storage));
+                    }
+                    tm.useSites(sites);
+                } else if (!value.equals("local")) {
+                    throw new IllegalArgumentException("Unknown transport " + value);
+                }
+                break;
+            case "sim-latency":
+                Double latency = NetworkSimulator.parsePerSite(value, simulator(tm).latencies);
+                if (latency != null) {
+                    tm.simulator.defaultLatency = latency;
+                }
+                break;
+            case "sim-bandwidth":
+                Double bandwidth = NetworkSimulator.parsePerSite(value, simulator(tm).bandwidths);
+                if (bandwidth != null) {
+                    tm.simulator.defaultBandwidth = bandwidth;
+                }
+                break;
+            case "sim-tick":
+                simulator(tm).tickInterval = Double.parseDouble(value);
+                break;
+            case "durable":
+                tm.durable = true;
+                for (DataManager dm : tm.dms.values()) {
+                    if (dm.redoLog != null) {
+                        dm.redoLog.sync = true;
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + option);
+        }
+    }
+
+    /**
+     * Description: get the network simulator of a transaction manager, enable it if not yet
+     * Input: transaction manager
+     * Output: network simulator
+     */
+    private static NetworkSimulator simulator(TransactionManager tm) {
+        if (tm.simulator == null) {
+            tm.enableSimulation(new NetworkSimulator());
+        }
+        return tm.simulator;
     }
 
     /**
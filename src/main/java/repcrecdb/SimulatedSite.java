@@ -0,0 +1,277 @@
+package repcrecdb;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Passes requests to a site through a NetworkSimulator, so that every request
+ * and reply pays the latency and bandwidth of the link to the site.
+ * Message sizes follow the encoding of SiteProtocol.
+ */
+public class SimulatedSite implements Site {
+    Site site;
+    NetworkSimulator simulator;
+    HashMap<String, Double> lockGrantTimes; // (transaction name, time it was first granted a lock at this site)
+
+    /**
+     * Reply of a simulated request, ready once the clock reaches its arrival at the TM
+     */
+    class SimulatedReply<T> implements Reply<T>, Runnable {
+        Supplier<T> request;
+        ToIntFunction<T> replySize;
+        Delivery delivery;
+        T result;
+        double replyTime;
+
+        SimulatedReply(Supplier<T> request, ToIntFunction<T> replySize) {
+            this.request = request;
+            this.replySize = replySize;
+        }
+
+        public void run() {
+            result = request.get();
+            replyTime = simulator.reply(site.getSiteID(), replySize.applyAsInt(result));
+        }
+
+        public T get() {
+            simulator.advanceTo(delivery.time);
+            simulator.advanceTo(replyTime);
+            return result;
+        }
+    }
+
+    /**
+     * Description: initialize a simulated site
+     * Input: site, simulator
+     * Output: N/A
+     */
+    public SimulatedSite(Site site, NetworkSimulator simulator) {
+        this.site = site;
+        this.simulator = simulator;
+        lockGrantTimes = new HashMap<String, Double>();
+    }
+
+    /**
+     * Description: send a request with a reply
+     * Input: request size, request performed at the site, size of its reply
+     * Output: reply of the request
+     */
+    private <T> SimulatedReply<T> send(int requestSize, Supplier<T> request, ToIntFunction<T> replySize) {
+        SimulatedReply<T> reply = new SimulatedReply<T>(request, replySize);
+        reply.delivery = simulator.send(site.getSiteID(), requestSize, reply);
+        return reply;
+    }
+
+    /**
+     * Description: record the time transactions are granted a lock at this site
+     * Input: names of granted transactions
+     * Output: the same names
+     */
+    private HashSet<String> granted(HashSet<String> trancSet) {
+        for (String tName : trancSet) {
+            lockGrantTimes.putIfAbsent(tName, simulator.now);
+        }
+        return trancSet;
+    }
+
+    public int getSiteID() {
+        return site.getSiteID();
+    }
+
+    public Reply<HashSet<String>> checkLockAsync(String transactionName, int varID, LockType lockType) {
+        return send(1 + SiteProtocol.sizeOf(transactionName) + 5,
+            () -> site.checkLock(transactionName, varID, lockType), SiteProtocol::sizeOf);
+    }
+
+    public Reply<HashSet<String>> acquireLockAsync(String transactionName, int varID, LockType lockType) {
+        return send(1 + SiteProtocol.sizeOf(transactionName) + 5, () -> {
+            HashSet<String> blockTrancSet = site.acquireLock(transactionName, varID, lockType);
+            if (blockTrancSet.isEmpty()) {
+                lockGrantTimes.putIfAbsent(transactionName, simulator.now);
+            }
+            return blockTrancSet;
+        }, SiteProtocol::sizeOf);
+    }
+
+    public Reply<HashSet<String>> acquireRangeLockAsync(String transactionName, int fromVarID, int toVarID) {
+        return send(1 + SiteProtocol.sizeOf(transactionName) + 8, () -> {
+            HashSet<String> blockTrancSet = site.acquireRangeLock(transactionName, fromVarID, toVarID);
+            if (blockTrancSet.isEmpty()) {
+                lockGrantTimes.putIfAbsent(transactionName, simulator.now);
+            }
+            return blockTrancSet;
+        }, SiteProtocol::sizeOf);
+    }
+
+    public Reply<HashSet<String>> setPendingWriteAsync(String transactionName, int varID) {
+        return send(1 + SiteProtocol.sizeOf(transactionName) + 4,
+            () -> granted(site.setPendingWrite(transactionName, varID)), SiteProtocol::sizeOf);
+    }
+
+    public Reply<HashSet<String>> releaseLocksAsync(String transactionName) {
+        return send(1 + SiteProtocol.sizeOf(transactionName), () -> {
+            Double grantTime = lockGrantTimes.remove(transactionName);
+            if (grantTime != null) {
+                simulator.lockHoldTime.add(simulator.now - grantTime);
+            }
+            return granted(site.releaseLocks(transactionName));
+        }, SiteProtocol::sizeOf);
+    }
+
+    public HashSet<String> releaseReadLock(String transactionName, int varID) {
+        return send(1 + SiteProtocol.sizeOf(transactionName) + 4,
+            () -> granted(site.releaseReadLock(transactionName, varID)), SiteProtocol::sizeOf).get();
+    }
+
+    public HashSet<String> checkLock(String transactionName, int varID, LockType lockType) {
+        return checkLockAsync(transactionName, varID, lockType).get();
+    }
+
+    public HashSet<String> acquireLock(String transactionName, int varID, LockType lockType) {
+        return acquireLockAsync(transactionName, varID, lockType).get();
+    }
+
+    public HashSet<String> acquireRangeLock(String transactionName, int fromVarID, int toVarID) {
+        return acquireRangeLockAsync(transactionName, fromVarID, toVarID).get();
+    }
+
+    public HashSet<String> setPendingWrite(String transactionName, int varID) {
+        return setPendingWriteAsync(transactionName, varID).get();
+    }
+
+    public HashSet<String> releaseLocks(String transactionName) {
+        return releaseLocksAsync(transactionName).get();
+    }
+
+    public boolean isWaiting(String transactionName, int varID) {
+        return send(1 + SiteProtocol.sizeOf(transactionName) + 4,
+            () -> site.isWaiting(transactionName, varID), result -> 1).get();
+    }
+
+    public boolean isReadable(int varID) {
+        return send(5, () -> site.isReadable(varID), result -> 1).get();
+    }
+
+    public Integer read(String transactionName, int varID) {
+        return send(1 + SiteProtocol.sizeOf(transactionName) + 4,
+            () -> site.read(transactionName, varID), result -> result == null ? 1 : 5).get();
+    }
+
+    public Reply<TreeMap<Integer, Integer>> readRangeAsync(String transactionName, int fromVarID, int toVarID) {
+        return send(1 + SiteProtocol.sizeOf(transactionName) + 8,
+            () -> site.readRange(transactionName, fromVarID, toVarID), SiteProtocol::sizeOf);
+    }
+
+    public TreeMap<Integer, Integer> readRange(String transactionName, int fromVarID, int toVarID) {
+        return readRangeAsync(transactionName, fromVarID, toVarID).get();
+    }
+
+    public Integer readLatest(int varID) {
+        return send(5, () -> site.readLatest(varID), result -> result == null ? 1 : 5).get();
+    }
+
+    public int getVersion(int varID) {
+        return send(5, () -> site.getVersion(varID), result -> 4).get();
+    }
+
+    public Integer readRO(int varID, int transBeginSeq, int transBeginTime) {
+        return send(13, () -> site.readRO(varID, transBeginSeq, transBeginTime),
+            result -> result == null ? 1 : 5).get();
+    }
+
+    public Reply<TreeMap<Integer, Integer>> readRangeROAsync(int fromVarID, int toVarID, int transBeginSeq,
+        int transBeginTime)
+    {
+        return send(17, () -> site.readRangeRO(fromVarID, toVarID, transBeginSeq, transBeginTime),
+            SiteProtocol::sizeOf);
+    }
+
+    public TreeMap<Integer, Integer> readRangeRO(int fromVarID, int toVarID, int transBeginSeq, int transBeginTime) {
+        return readRangeROAsync(fromVarID, toVarID, transBeginSeq, transBeginTime).get();
+    }
+
+    public Reply<int[]> readVersionedAsync(int varID, int maxCommitSeq) {
+        return send(9, () -> site.readVersioned(varID, maxCommitSeq), result -> result == null ? 1 : 9);
+    }
+
+    public int[] readVersioned(int varID, int maxCommitSeq) {
+        return readVersionedAsync(varID, maxCommitSeq).get();
+    }
+
+    public Reply<Boolean> writeAsync(String transactionName, int varID, int val, int version, int commitTime) {
+        return send(1 + SiteProtocol.sizeOf(transactionName) + 16,
+            () -> site.write(transactionName, varID, val, version, commitTime), result -> 1);
+    }
+
+    public boolean write(String transactionName, int varID, int val, int version, int commitTime) {
+        return writeAsync(transactionName, varID, val, version, commitTime).get();
+    }
+
+    public Reply<Boolean> incrementAsync(String transactionName, int varID, int delta, int version, int commitTime) {
+        return send(1 + SiteProtocol.sizeOf(transactionName) + 16,
+            () -> site.increment(transactionName, varID, delta, version, commitTime), result -> 1);
+    }
+
+    public boolean increment(String transactionName, int varID, int delta, int version, int commitTime) {
+        return incrementAsync(transactionName, varID, delta, version, commitTime).get();
+    }
+
+    public void applyWrite(int varID, int val, int version, int commitTime) {
+        simulator.send(getSiteID(), 17, () -> site.applyWrite(varID, val, version, commitTime));
+    }
+
+    public VariableState exportVariable(int varID) {
+        return send(5, () -> site.exportVariable(varID), SimulatedSite::sizeOf).get();
+    }
+
+    public void importVariable(int varID, VariableState state) {
+        simulator.send(getSiteID(), 5 + sizeOf(state), () -> site.importVariable(varID, state));
+    }
+
+    /**
+     * Description: get the encoded size of the state of a migrating variable
+     * Input: variable state
+     * Output: size in bytes
+     */
+    private static int sizeOf(VariableState state) {
+        int size = 10 + 12 * state.history.size();
+        if (state.lockEntry != null) {
+            size += 3 + SiteProtocol.sizeOf(state.lockEntry.getWriter()) + SiteProtocol.sizeOf(state.lockEntry.getUpdater())
+                + SiteProtocol.sizeOf(state.lockEntry.getReaders());
+            for (LockRequest request : state.lockEntry.getWaiters()) {
+                size += 1 + SiteProtocol.sizeOf(request.transactionName);
+            }
+        }
+        return size;
+    }
+
+    public void flushLog() {
+        send(1, () -> {
+            site.flushLog();
+            return true;
+        }, result -> 1).get();
+    }
+
+    public void fail(int currentTime) {
+        simulator.send(getSiteID(), 5, () -> {
+            site.fail(currentTime);
+            lockGrantTimes.clear();
+        });
+    }
+
+    public void recover() {
+        simulator.send(getSiteID(), 1, () -> site.recover());
+    }
+
+    public String queryState() {
+        return send(1, () -> site.queryState(), result -> 2 + result.length()).get();
+    }
+
+    public void close() {
+        simulator.drain();
+        site.close();
+    }
+}
@@ -0,0 +1,310 @@
+package repcrecdb;
+
+import java.util.HashSet;
+import java.util.TreeMap;
+
+/**
+ * Reply of a request which may still be in flight
+ */
+interface Reply<T> {
+    /**
+     * Description: wait for the reply of the request
+     * Input: N/A
+     * Output: the result of the request
+     */
+    T get();
+}
+
+/**
+ * Operations the transaction manager performs on one site.
+ * DataManager serves them in process, RemoteSite sends them to a SiteServer.
+ */
+public interface Site {
+    /**
+     * Description: get the ID of this site
+     * Input: N/A
+     * Output: site ID
+     */
+    int getSiteID();
+
+    /**
+     * Description: check is one lock is obtainable
+     * Input: transaction name, variable ID, lock type
+     * Output: a hash set of transaction names if blocked, or empty set if not blocked
+     */
+    HashSet<String> checkLock(String transactionName, int varID, LockType lockType);
+
+    /**
+     * Description: acquired the required lock if possible, otherwise wait in the queue of the variable
+     * Input: transaction name, variable ID, lock type
+     * Output: a hash set of transaction names if blocked, or empty set if the lock is granted
+     */
+    HashSet<String> acquireLock(String transactionName, int varID, LockType lockType);
+
+    /**
+     * Description: acquire read locks on every variable of a range stored at the site, all of them or none,
+     * a blocked range lock waits in the queues of its blocked variables
+     * Input: transaction name, first and last variable ID of the range
+     * Output: a hash set of transaction names if blocked, or empty set if the range is locked
+     */
+    HashSet<String> acquireRangeLock(String transactionName, int fromVarID, int toVarID);
+
+    /**
+     * Description: check if one transaction is waiting in the queue of a variable
+     * Input: transaction name, variable ID
+     * Output: true if a request of the transaction is queued
+     */
+    boolean isWaiting(String transactionName, int varID);
+
+    /**
+     * Description: set one transaction as pending write transaction
+     * Input: transaction name, variable ID
+     * Output: names of transactions granted a lock because the transaction gave up its read lock
+     */
+    HashSet<String> setPendingWrite(String transactionName, int varID);
+
+    /**
+     * Description: release locks obtained by one transaction
+     * Input: transaction name
+     * Output: names of transactions granted a lock by the release
+     */
+    HashSet<String> releaseLocks(String transactionName);
+
+    /**
+     * Description: release the read lock of one transaction on one variable
+     * Input: transaction name, variable ID
+     * Output: names of transactions granted a lock by the release
+     */
+    HashSet<String> releaseReadLock(String transactionName, int varID);
+
+    /**
+     * Description: check if a replicated variable is readable at this site
+     * Input: variable ID
+     * Output: false if the variable has not been written since the site recovered
+     */
+    boolean isReadable(int varID);
+
+    /**
+     * Description: Handle transaction’s read instruction
+     * Input: transaction name, variable ID
+     * Output: an integer as variable value, null if the transaction holds no lock on it
+     */
+    Integer read(String transactionName, int varID);
+
+    /**
+     * Description: Handle transaction’s scan instruction for the variables of a range stored at the site
+     * Input: transaction name, first and last variable ID of the range
+     * Output: (variable ID, value) of the readable variables the transaction holds a read lock on
+     */
+    TreeMap<Integer, Integer> readRange(String transactionName, int fromVarID, int toVarID);
+
+    /**
+     * Description: Handle an optimistic transaction’s read instruction, no lock is required
+     * Input: variable ID
+     * Output: an integer as variable value, null if not stored or not readable
+     */
+    Integer readLatest(int varID);
+
+    /**
+     * Description: get the version of the current value of a variable
+     * Input: variable ID
+     * Output: commit sequence number of the transaction which wrote the current value
+     */
+    int getVersion(int varID);
+
+    /**
+     * Description: Handle transaction’s readRO instruction from the committed history of this site
+     * Input: variable ID, commit sequence number and time when the transaction began
+     * Output: an integer as variable value, null if no valid version is stored
+     */
+    Integer readRO(int varID, int transBeginSeq, int transBeginTime);
+
+    /**
+     * Description: Handle read-only transaction’s scan instruction from the committed history of the site
+     * Input: first and last variable ID of the range, commit sequence number and time when the transaction began
+     * Output: (variable ID, value) of the variables of the range with a valid version at the site
+     */
+    TreeMap<Integer, Integer> readRangeRO(int fromVarID, int toVarID, int transBeginSeq, int transBeginTime);
+
+    /**
+     * Description: read the latest committed version of a variable up to a commit sequence number,
+     * used by replication protocols that pick the newest of several copies
+     * Input: variable ID, commit sequence number
+     * Output: {commit sequence number, value} of the version, null if the variable is not stored in this site
+     */
+    int[] readVersioned(int varID, int maxCommitSeq);
+
+    /**
+     * Description: Handle transaction’s write instruction
+     * Input: transaction name, variable ID, variable new value, commit sequence number, commit time
+     * Output: true if write completes successfully
+     */
+    boolean write(String transactionName, int varID, int val, int version, int commitTime);
+
+    /**
+     * Description: Handle transaction’s commit of an increment
+     * Input: transaction name, variable ID, delta, commit sequence number, commit time
+     * Output: true if the delta is applied
+     */
+    boolean increment(String transactionName, int varID, int delta, int version, int commitTime);
+
+    /**
+     * Description: install a committed value without checking the lock table
+     * Input: variable ID, variable new value, commit sequence number, commit time
+     * Output: void
+     */
+    void applyWrite(int varID, int val, int version, int commitTime);
+
+    /**
+     * Description: hand the copy of a variable over to another site
+     * Input: variable ID
+     * Output: current value, readability, committed history and lock entry of the variable
+     */
+    VariableState exportVariable(int varID);
+
+    /**
+     * Description: take over the copy of a variable from another site
+     * Input: variable ID, state exported by the other site
+     * Output: void
+     */
+    void importVariable(int varID, VariableState state);
+
+    /**
+     * Description: make committed writes of this site durable
+     * Input: N/A
+     * Output: void
+     */
+    void flushLog();
+
+    /**
+     * Description: Mimic the situation that the given site is down
+     * Input: current time
+     * Output: void
+     */
+    void fail(int currentTime);
+
+    /**
+     * Description: Mimic the situation that the given site is recover from down
+     * Input: N/A
+     * Output: void
+     */
+    void recover();
+
+    /**
+     * Description: returns current state of the site
+     * Input: N/A
+     * Output: a string contains current state
+     */
+    String queryState();
+
+    /**
+     * Description: send a checkLock request without waiting for its reply,
+     * so that requests to several sites are in flight together
+     * Input: transaction name, variable ID, lock type
+     * Output: reply of checkLock
+     */
+    default Reply<HashSet<String>> checkLockAsync(String transactionName, int varID, LockType lockType) {
+        HashSet<String> result = checkLock(transactionName, varID, lockType);
+        return () -> result;
+    }
+
+    /**
+     * Description: send an acquireLock request without waiting for its reply
+     * Input: transaction name, variable ID, lock type
+     * Output: reply of acquireLock
+     */
+    default Reply<HashSet<String>> acquireLockAsync(String transactionName, int varID, LockType lockType) {
+        HashSet<String> result = acquireLock(transactionName, varID, lockType);
+        return () -> result;
+    }
+
+    /**
+     * Description: send a setPendingWrite request without waiting for its reply
+     * Input: transaction name, variable ID
+     * Output: reply of setPendingWrite
+     */
+    default Reply<HashSet<String>> setPendingWriteAsync(String transactionName, int varID) {
+        HashSet<String> result = setPendingWrite(transactionName, varID);
+        return () -> result;
+    }
+
+    /**
+     * Description: send a releaseLocks request without waiting for its reply
+     * Input: transaction name
+     * Output: reply of releaseLocks
+     */
+    default Reply<HashSet<String>> releaseLocksAsync(String transactionName) {
+        HashSet<String> result = releaseLocks(transactionName);
+        return () -> result;
+    }
+
+    /**
+     * Description: send an acquireRangeLock request without waiting for its reply
+     * Input: transaction name, first and last variable ID of the range
+     * Output: reply of acquireRangeLock
+     */
+    default Reply<HashSet<String>> acquireRangeLockAsync(String transactionName, int fromVarID, int toVarID) {
+        HashSet<String> result = acquireRangeLock(transactionName, fromVarID, toVarID);
+        return () -> result;
+    }
+
+    /**
+     * Description: send a readRange request without waiting for its reply
+     * Input: transaction name, first and last variable ID of the range
+     * Output: reply of readRange
+     */
+    default Reply<TreeMap<Integer, Integer>> readRangeAsync(String transactionName, int fromVarID, int toVarID) {
+        TreeMap<Integer, Integer> result = readRange(transactionName, fromVarID, toVarID);
+        return () -> result;
+    }
+
+    /**
+     * Description: send a readRangeRO request without waiting for its reply
+     * Input: first and last variable ID of the range, commit sequence number and time when the transaction began
+     * Output: reply of readRangeRO
+     */
+    default Reply<TreeMap<Integer, Integer>> readRangeROAsync(int fromVarID, int toVarID, int transBeginSeq,
+        int transBeginTime)
+    {
+        TreeMap<Integer, Integer> result = readRangeRO(fromVarID, toVarID, transBeginSeq, transBeginTime);
+        return () -> result;
+    }
+
+    /**
+     * Description: send a readVersioned request without waiting for its reply
+     * Input: variable ID, commit sequence number
+     * Output: reply of readVersioned
+     */
+    default Reply<int[]> readVersionedAsync(int varID, int maxCommitSeq) {
+        int[] result = readVersioned(varID, maxCommitSeq);
+        return () -> result;
+    }
+
+    /**
+     * Description: send a commit write without waiting for its reply
+     * Input: transaction name, variable ID, variable new value, commit sequence number, commit time
+     * Output: reply of write
+     */
+    default Reply<Boolean> writeAsync(String transactionName, int varID, int val, int version, int commitTime) {
+        boolean result = write(transactionName, varID, val, version, commitTime);
+        return () -> result;
+    }
+
+    /**
+     * Description: send a commit of an increment without waiting for its reply
+     * Input: transaction name, variable ID, delta, commit sequence number, commit time
+     * Output: reply of increment
+     */
+    default Reply<Boolean> incrementAsync(String transactionName, int varID, int delta, int version, int commitTime) {
+        boolean result = increment(transactionName, varID, delta, version, commitTime);
+        return () -> result;
+    }
+
+    /**
+     * Description: release the connection to the site
+     * Input: N/A
+     * Output: void
+     */
+    default void close() {
+    }
+}
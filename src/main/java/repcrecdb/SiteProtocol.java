@@ -0,0 +1,232 @@
+package repcrecdb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Binary protocol between RemoteSite and SiteServer.
+ * A request is an opcode byte followed by its arguments, strings are written as modified UTF-8.
+ * Requests are answered in the order they are sent, one-way requests have no reply.
+ */
+public class SiteProtocol {
+    // Requests with a reply
+    public static final byte CHECK_LOCK = 1;
+    public static final byte ACQUIRE_LOCK = 2;
+    public static final byte IS_WAITING = 3;
+    public static final byte SET_PENDING_WRITE = 4;
+    public static final byte RELEASE_LOCKS = 5;
+    public static final byte IS_READABLE = 6;
+    public static final byte READ = 7;
+    public static final byte READ_LATEST = 8;
+    public static final byte GET_VERSION = 9;
+    public static final byte READ_RO = 10;
+    public static final byte FLUSH_LOG = 11;
+    public static final byte QUERY_STATE = 12;
+    public static final byte READ_VERSIONED = 13;
+    public static final byte EXPORT_VARIABLE = 14;
+    public static final byte ACQUIRE_RANGE_LOCK = 15;
+    public static final byte READ_RANGE = 16;
+    public static final byte READ_RANGE_RO = 17;
+    public static final byte RELEASE_READ_LOCK = 18;
+    public static final byte WRITE = 19;
+    public static final byte INCREMENT = 20;
+    // One-way requests
+    public static final byte APPLY_WRITE = 21;
+    public static final byte FAIL = 22;
+    public static final byte RECOVER = 23;
+    public static final byte IMPORT_VARIABLE = 24;
+    public static final byte SHUTDOWN = 25;
+
+    /**
+     * Description: get the encoded size of a transaction name
+     * Input: transaction name
+     * Output: size in bytes
+     */
+    public static int sizeOf(String name) {
+        return 2 + name.length();
+    }
+
+    /**
+     * Description: get the encoded size of a set of transaction names
+     * Input: set of transaction names
+     * Output: size in bytes
+     */
+    public static int sizeOf(HashSet<String> names) {
+        int size = 2;
+        for (String name : names) {
+            size += sizeOf(name);
+        }
+        return size;
+    }
+
+    /**
+     * Description: write a set of transaction names
+     * Input: output stream, set of transaction names
+     * Output: void
+     */
+    public static void writeNames(DataOutputStream out, HashSet<String> names) throws IOException {
+        out.writeShort(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    /**
+     * Description: read a set of transaction names
+     * Input: input stream
+     * Output: set of transaction names
+     */
+    public static HashSet<String> readNames(DataInputStream in) throws IOException {
+        int size = in.readUnsignedShort();
+        HashSet<String> names = new HashSet<String>();
+        for (int i = 0; i < size; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    /**
+     * Description: write a variable value which may be absent
+     * Input: output stream, value or null
+     * Output: void
+     */
+    public static void writeValue(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Description: get the encoded size of the values of a range of variables
+     * Input: (variable ID, value)
+     * Output: size in bytes
+     */
+    public static int sizeOf(TreeMap<Integer, Integer> values) {
+        return 4 + 8 * values.size();
+    }
+
+    /**
+     * Description: write the values of a range of variables
+     * Input: output stream, (variable ID, value)
+     * Output: void
+     */
+    public static void writeValues(DataOutputStream out, TreeMap<Integer, Integer> values) throws IOException {
+        out.writeInt(values.size());
+        for (Entry<Integer, Integer> entry : values.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    /**
+     * Description: read the values of a range of variables
+     * Input: input stream
+     * Output: (variable ID, value)
+     */
+    public static TreeMap<Integer, Integer> readValues(DataInputStream in) throws IOException {
+        TreeMap<Integer, Integer> values = new TreeMap<Integer, Integer>();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            int varID = in.readInt();
+            values.put(varID, in.readInt());
+        }
+        return values;
+    }
+
+    /**
+     * Description: write a version of a variable which may be absent
+     * Input: output stream, {commit sequence number, value} or null
+     * Output: void
+     */
+    public static void writeVersion(DataOutputStream out, int[] version) throws IOException {
+        out.writeBoolean(version != null);
+        if (version != null) {
+            out.writeInt(version[0]);
+            out.writeInt(version[1]);
+        }
+    }
+
+    /**
+     * Description: read a version of a variable which may be absent
+     * Input: input stream
+     * Output: {commit sequence number, value} or null
+     */
+    public static int[] readVersion(DataInputStream in) throws IOException {
+        return in.readBoolean() ? new int[] { in.readInt(), in.readInt() } : null;
+    }
+
+    /**
+     * Description: write the state of a migrating variable
+     * Input: output stream, variable state
+     * Output: void
+     */
+    public static void writeVariableState(DataOutputStream out, VariableState state) throws IOException {
+        out.writeInt(state.value);
+        out.writeBoolean(state.readable);
+        out.writeInt(state.history.size());
+        for (Entry<Integer, Version> entry : state.history.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt(entry.getValue().value);
+            out.writeInt(entry.getValue().commitTime);
+        }
+        LockEntry lockEntry = state.lockEntry;
+        out.writeBoolean(lockEntry != null);
+        if (lockEntry != null) {
+            out.writeByte(lockEntry.lockType.ordinal());
+            out.writeUTF(lockEntry.getWriter());
+            out.writeUTF(lockEntry.getUpdater());
+            writeNames(out, lockEntry.getReaders());
+            out.writeShort(lockEntry.getWaiters().size());
+            for (LockRequest request : lockEntry.getWaiters()) {
+                out.writeByte(request.lockType.ordinal());
+                out.writeUTF(request.transactionName);
+            }
+        }
+    }
+
+    /**
+     * Description: read the state of a migrating variable
+     * Input: input stream
+     * Output: variable state
+     */
+    public static VariableState readVariableState(DataInputStream in) throws IOException {
+        int value = in.readInt();
+        boolean readable = in.readBoolean();
+        TreeMap<Integer, Version> history = new TreeMap<Integer, Version>();
+        int versionCnt = in.readInt();
+        for (int i = 0; i < versionCnt; i++) {
+            int commitSeq = in.readInt();
+            history.put(commitSeq, new Version(in.readInt(), in.readInt()));
+        }
+        LockEntry lockEntry = null;
+        if (in.readBoolean()) {
+            lockEntry = new LockEntry();
+            lockEntry.lockType = LockType.values()[in.readByte()];
+            lockEntry.setWriter(in.readUTF());
+            lockEntry.setUpdater(in.readUTF());
+            for (String reader : readNames(in)) {
+                lockEntry.addReader(reader);
+            }
+            int requestCnt = in.readUnsignedShort();
+            for (int i = 0; i < requestCnt; i++) {
+                LockType lockType = LockType.values()[in.readByte()];
+                lockEntry.addWaiter(new LockRequest(lockType, in.readUTF()));
+            }
+        }
+        return new VariableState(value, readable, history, lockEntry);
+    }
+
+    /**
+     * Description: read a variable value which may be absent
+     * Input: input stream
+     * Output: value or null
+     */
+    public static Integer readValue(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+}
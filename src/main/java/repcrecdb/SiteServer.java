@@ -0,0 +1,178 @@
+package repcrecdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Serves the requests of one RemoteSite with a local DataManager
+ */
+public class SiteServer {
+    DataManager dm;
+    boolean ownsTransactionIDs; // the only site of its process, releases the ID of a transaction with its locks
+
+    /**
+     * Description: initialize the server of one site
+     * Input: DM of the site
+     * Output: N/A
+     */
+    public SiteServer(DataManager dm) {
+        this.dm = dm;
+        ownsTransactionIDs = false;
+    }
+
+    /**
+     * Description: handle requests of one connection until it is shut down or closed
+     * Input: connected socket
+     * Output: void
+     * Side effect:
+     *      Apply the requests to the DM in arrival order
+     *      Replies are flushed only when no more requests are buffered, so a batch of
+     *      pipelined requests is answered with one write
+     */
+    public void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())))
+        {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (op == SiteProtocol.SHUTDOWN) {
+                    out.flush();
+                    return;
+                }
+                handle(op, in, out);
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Description: handle one request
+     * Input: opcode, request stream, reply stream
+     * Output: void
+     * Side effect: apply the request to the DM and write its reply if it has one
+     */
+    private void handle(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (op) {
+            case SiteProtocol.CHECK_LOCK:
+                SiteProtocol.writeNames(out, dm.checkLock(in.readUTF(), in.readInt(), LockType.values()[in.readByte()]));
+                break;
+            case SiteProtocol.ACQUIRE_LOCK:
+                SiteProtocol.writeNames(out, dm.acquireLock(in.readUTF(), in.readInt(), LockType.values()[in.readByte()]));
+                break;
+            case SiteProtocol.IS_WAITING:
+                out.writeBoolean(dm.isWaiting(in.readUTF(), in.readInt()));
+                break;
+            case SiteProtocol.SET_PENDING_WRITE:
+                SiteProtocol.writeNames(out, dm.setPendingWrite(in.readUTF(), in.readInt()));
+                break;
+            case SiteProtocol.RELEASE_LOCKS:
+                String releasedName = in.readUTF();
+                SiteProtocol.writeNames(out, dm.releaseLocks(releasedName));
+                if (ownsTransactionIDs) {
+                    TransactionIDs.release(releasedName);
+                }
+                break;
+            case SiteProtocol.RELEASE_READ_LOCK:
+                SiteProtocol.writeNames(out, dm.releaseReadLock(in.readUTF(), in.readInt()));
+                break;
+            case SiteProtocol.IS_READABLE:
+                out.writeBoolean(dm.isReadable(in.readInt()));
+                break;
+            case SiteProtocol.READ:
+                SiteProtocol.writeValue(out, dm.read(in.readUTF(), in.readInt()));
+                break;
+            case SiteProtocol.READ_LATEST:
+                SiteProtocol.writeValue(out, dm.readLatest(in.readInt()));
+                break;
+            case SiteProtocol.GET_VERSION:
+                out.writeInt(dm.getVersion(in.readInt()));
+                break;
+            case SiteProtocol.READ_RO:
+                SiteProtocol.writeValue(out, dm.readRO(in.readInt(), in.readInt(), in.readInt()));
+                break;
+            case SiteProtocol.READ_VERSIONED:
+                SiteProtocol.writeVersion(out, dm.readVersioned(in.readInt(), in.readInt()));
+                break;
+            case SiteProtocol.EXPORT_VARIABLE:
+                SiteProtocol.writeVariableState(out, dm.exportVariable(in.readInt()));
+                break;
+            case SiteProtocol.ACQUIRE_RANGE_LOCK:
+                SiteProtocol.writeNames(out, dm.acquireRangeLock(in.readUTF(), in.readInt(), in.readInt()));
+                break;
+            case SiteProtocol.READ_RANGE:
+                SiteProtocol.writeValues(out, dm.readRange(in.readUTF(), in.readInt(), in.readInt()));
+                break;
+            case SiteProtocol.READ_RANGE_RO:
+                SiteProtocol.writeValues(out, dm.readRangeRO(in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+                break;
+            case SiteProtocol.FLUSH_LOG:
+                dm.flushLog();
+                out.writeBoolean(true);
+                break;
+            case SiteProtocol.QUERY_STATE:
+                out.writeUTF(dm.queryState());
+                break;
+            case SiteProtocol.WRITE:
+                out.writeBoolean(dm.write(in.readUTF(), in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+                break;
+            case SiteProtocol.INCREMENT:
+                out.writeBoolean(dm.increment(in.readUTF(), in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+                break;
+            case SiteProtocol.APPLY_WRITE:
+                dm.applyWrite(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                break;
+            case SiteProtocol.FAIL:
+                dm.fail(in.readInt());
+                break;
+            case SiteProtocol.RECOVER:
+                dm.recover();
+                break;
+            case SiteProtocol.IMPORT_VARIABLE:
+                int importedVarID = in.readInt();
+                dm.importVariable(importedVarID, SiteProtocol.readVariableState(in));
+                break;
+            default:
+                throw new IOException("Unknown opcode " + op);
+        }
+    }
+
+    /**
+     * Description: run one site as a separate process
+     * Input: site ID, port(0 picks a free port), placement, site count and variable count(standard placement by default),
+     * storage engine(hash map by default)
+     * Output: N/A
+     * Side effect: print the listening port on the first line of stdout, then serve one connection
+     */
+    public static void main(String[] args) throws Exception {
+        int siteID = Integer.parseInt(args[0]);
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        PlacementMap placement = args.length > 4
+            ? PlacementMap.parse(args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]))
+            : PlacementMap.standard(PlacementMap.DEFAULT_SITE_COUNT, PlacementMap.DEFAULT_VAR_COUNT);
+        String storage = args.length > 5 ? args[5] : StorageEngine.HASH;
+        try (ServerSocket serverSocket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+            System.out.println(serverSocket.getLocalPort());
+            System.out.flush();
+            try (Socket socket = serverSocket.accept()) {
+                SiteServer server = new SiteServer(new DataManager(siteID, placement, storage));
+                server.ownsTransactionIDs = true;
+                server.serve(socket);
+            }
+        }
+    }
+}
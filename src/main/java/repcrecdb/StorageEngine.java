@@ -0,0 +1,321 @@
+package repcrecdb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Stores the current values of the variables of one site.
+ * Locks, readability and committed history are kept by the DataManager.
+ */
+public interface StorageEngine {
+    public static final String HASH = "hash";
+    public static final String ARRAY = "array";
+    public static final String OFF_HEAP = "offheap";
+    public static final String SKIP_LIST = "skiplist";
+
+    /**
+     * Description: create a storage engine by its name
+     * Input: "hash", "array", "offheap" or "skiplist", number of variables in the database
+     * Output: empty storage engine
+     */
+    public static StorageEngine create(String kind, int varCount) {
+        switch (kind) {
+            case HASH:
+                return new HashStorage();
+            case ARRAY:
+                return new ArrayStorage(varCount);
+            case OFF_HEAP:
+                return new OffHeapStorage(varCount);
+            case SKIP_LIST:
+                return new SkipListStorage();
+            default:
+                throw new IllegalArgumentException("Unknown storage engine " + kind);
+        }
+    }
+
+    /**
+     * Description: get the value of a variable
+     * Input: variable ID
+     * Output: value, null if the variable is not stored
+     */
+    Integer get(int varID);
+
+    /**
+     * Description: store the value of a variable
+     * Input: variable ID, value
+     * Output: void
+     * Side effect: replace the value stored before, grow the engine past the variable count it was created with
+     */
+    void put(int varID, int value);
+
+    /**
+     * Description: stop storing a variable
+     * Input: variable ID
+     * Output: its value, null if it was not stored
+     */
+    Integer remove(int varID);
+
+    /**
+     * Description: check whether a variable is stored
+     * Input: variable ID
+     * Output: true if the variable has a value
+     */
+    boolean containsKey(int varID);
+
+    /**
+     * Description: get the number of stored variables
+     * Input: N/A
+     * Output: number of stored variables
+     */
+    int size();
+
+    /**
+     * Description: stop storing every variable
+     * Input: N/A
+     * Output: void
+     */
+    void clear();
+
+    /**
+     * Description: get the IDs of the stored variables
+     * Input: N/A
+     * Output: variable IDs in ascending order
+     */
+    int[] keys();
+}
+
+/**
+ * Values in a HashMap of boxed integers
+ */
+class HashStorage implements StorageEngine {
+    private HashMap<Integer, Integer> values = new HashMap<Integer, Integer>();
+
+    public Integer get(int varID) {
+        return values.get(varID);
+    }
+
+    public void put(int varID, int value) {
+        values.put(varID, value);
+    }
+
+    public Integer remove(int varID) {
+        return values.remove(varID);
+    }
+
+    public boolean containsKey(int varID) {
+        return values.containsKey(varID);
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    public void clear() {
+        values.clear();
+    }
+
+    public int[] keys() {
+        int[] keys = new int[values.size()];
+        int i = 0;
+        for (Integer varID : values.keySet()) {
+            keys[i++] = varID;
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+}
+
+/**
+ * Values in a primitive array indexed by variable ID, for dense variable IDs
+ */
+class ArrayStorage implements StorageEngine {
+    private int[] values;
+    private boolean[] stored;
+    private int size;
+
+    ArrayStorage(int varCount) {
+        values = new int[varCount + 1];
+        stored = new boolean[varCount + 1];
+        size = 0;
+    }
+
+    public Integer get(int varID) {
+        return containsKey(varID) ? values[varID] : null;
+    }
+
+    public void put(int varID, int value) {
+        if (varID >= values.length) {
+            int capacity = Math.max(varID + 1, values.length * 2);
+            values = Arrays.copyOf(values, capacity);
+            stored = Arrays.copyOf(stored, capacity);
+        }
+        if (!stored[varID]) {
+            stored[varID] = true;
+            size += 1;
+        }
+        values[varID] = value;
+    }
+
+    public Integer remove(int varID) {
+        Integer value = get(varID);
+        if (value != null) {
+            stored[varID] = false;
+            size -= 1;
+        }
+        return value;
+    }
+
+    public boolean containsKey(int varID) {
+        return varID >= 0 && varID < stored.length && stored[varID];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(stored, false);
+        size = 0;
+    }
+
+    public int[] keys() {
+        int[] keys = new int[size];
+        int i = 0;
+        for (int varID = 0; varID < stored.length; varID++) {
+            if (stored[varID]) {
+                keys[i++] = varID;
+            }
+        }
+        return keys;
+    }
+}
+
+/**
+ * Values in a direct ByteBuffer outside the Java heap, indexed by variable ID.
+ * Slot i holds a stored flag and the value of variable i, so very large variable counts
+ * cost neither heap space nor garbage collection work. A buffer holds at most Integer.MAX_VALUE bytes.
+ */
+class OffHeapStorage implements StorageEngine {
+    private static final int SLOT_SIZE = 8; // stored flag, value
+    private static final long MAX_CAPACITY = Integer.MAX_VALUE / SLOT_SIZE * SLOT_SIZE;
+
+    private ByteBuffer slots;
+    private int size;
+
+    OffHeapStorage(int varCount) {
+        slots = ByteBuffer.allocateDirect(checkedCapacity(varCount));
+        size = 0;
+    }
+
+    /**
+     * Description: get the buffer size holding the slots up to a variable
+     * Input: variable ID
+     * Output: size in bytes
+     */
+    private static int checkedCapacity(int varID) {
+        long capacity = ((long) varID + 1) * SLOT_SIZE;
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException(String.format("Variable x%d is past the %d bytes of an off-heap buffer",
+                varID, MAX_CAPACITY));
+        }
+        return (int) capacity;
+    }
+
+    public Integer get(int varID) {
+        return containsKey(varID) ? slots.getInt(varID * SLOT_SIZE + 4) : null;
+    }
+
+    public void put(int varID, int value) {
+        if (((long) varID + 1) * SLOT_SIZE > slots.capacity()) {
+            int capacity = (int) Math.max(checkedCapacity(varID), Math.min(2L * slots.capacity(), MAX_CAPACITY));
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            slots.clear();
+            grown.put(slots);
+            slots = grown;
+        }
+        // Offsets fit in an int below the capacity checked above
+        if (slots.getInt(varID * SLOT_SIZE) == 0) {
+            slots.putInt(varID * SLOT_SIZE, 1);
+            size += 1;
+        }
+        slots.putInt(varID * SLOT_SIZE + 4, value);
+    }
+
+    public Integer remove(int varID) {
+        Integer value = get(varID);
+        if (value != null) {
+            slots.putInt(varID * SLOT_SIZE, 0);
+            size -= 1;
+        }
+        return value;
+    }
+
+    public boolean containsKey(int varID) {
+        return varID >= 0 && ((long) varID + 1) * SLOT_SIZE <= slots.capacity() && slots.getInt(varID * SLOT_SIZE) != 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (int offset = 0; offset < slots.capacity(); offset += SLOT_SIZE) {
+            slots.putInt(offset, 0);
+        }
+        size = 0;
+    }
+
+    public int[] keys() {
+        int[] keys = new int[size];
+        int i = 0;
+        for (int varID = 0; varID < slots.capacity() / SLOT_SIZE; varID++) {
+            if (slots.getInt(varID * SLOT_SIZE) != 0) {
+                keys[i++] = varID;
+            }
+        }
+        return keys;
+    }
+}
+
+/**
+ * Values in a skip list ordered by variable ID
+ */
+class SkipListStorage implements StorageEngine {
+    private ConcurrentSkipListMap<Integer, Integer> values = new ConcurrentSkipListMap<Integer, Integer>();
+
+    public Integer get(int varID) {
+        return values.get(varID);
+    }
+
+    public void put(int varID, int value) {
+        values.put(varID, value);
+    }
+
+    public Integer remove(int varID) {
+        return values.remove(varID);
+    }
+
+    public boolean containsKey(int varID) {
+        return values.containsKey(varID);
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    public void clear() {
+        values.clear();
+    }
+
+    public int[] keys() {
+        int[] keys = new int[values.size()];
+        int i = 0;
+        for (Entry<Integer, Integer> entry : values.entrySet()) {
+            keys[i++] = entry.getKey();
+        }
+        return keys;
+    }
+}
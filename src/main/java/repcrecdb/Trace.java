@@ -0,0 +1,148 @@
+package repcrecdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * One instruction executed by the TM
+ */
+class TraceRecord {
+    public int tick;
+    public String instruction;
+    public boolean isBlocked; // the instruction had been tried before
+    public boolean success;
+    public int siteID; // first site granting the instruction access, -1 if none
+    public ArrayList<String> blockers; // transactions the instruction waits for
+
+    public TraceRecord(int tick, String instruction, boolean isBlocked, boolean success, int siteID,
+        ArrayList<String> blockers)
+    {
+        this.tick = tick;
+        this.instruction = instruction;
+        this.isBlocked = isBlocked;
+        this.success = success;
+        this.siteID = siteID;
+        this.blockers = blockers;
+    }
+}
+
+/**
+ * Binary trace of the instructions executed by the TM, in execution order.
+ * After a header, every record is
+ *      tick delta(varint), flags(byte, 1 = blocked before, 2 = success), instruction(string),
+ *      site ID + 1(varint), blocker count(varint), blockers(string each)
+ * A string is written once, later occurrences refer to it by index: a varint 0 is followed by
+ * the string in modified UTF-8, a varint i > 0 refers to the (i - 1)th string written.
+ */
+public class Trace {
+    public static final int MAGIC = 0x52435452; // "RCTR"
+    public static final int FORMAT_VERSION = 1;
+
+    private DataOutputStream out;
+    private HashMap<String, Integer> stringIDs; // (string, index in the order written)
+    private int lastTick;
+    public int records;
+
+    /**
+     * Description: create a trace file
+     * Input: trace file path
+     * Output: N/A
+     */
+    public Trace(Path path) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        stringIDs = new HashMap<String, Integer>();
+        lastTick = 0;
+        records = 0;
+    }
+
+    /**
+     * Description: append one executed instruction
+     * Input: tick, instruction, tried before or not, succeed or not, granted site ID, blocking transactions
+     * Output: void
+     */
+    public void record(int tick, String instruction, boolean isBlocked, boolean success, int siteID,
+        Collection<String> blockers) throws IOException
+    {
+        VarInt.write(out, tick - lastTick);
+        lastTick = tick;
+        out.writeByte((isBlocked ? 1 : 0) | (success ? 2 : 0));
+        writeString(instruction);
+        VarInt.write(out, siteID + 1);
+        VarInt.write(out, blockers.size());
+        for (String blocker : blockers) {
+            writeString(blocker);
+        }
+        records += 1;
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeString(String str) throws IOException {
+        Integer id = stringIDs.get(str);
+        if (id != null) {
+            VarInt.write(out, id + 1);
+        } else {
+            stringIDs.put(str, stringIDs.size());
+            VarInt.write(out, 0);
+            out.writeUTF(str);
+        }
+    }
+
+    /**
+     * Description: read all records of a trace file
+     * Input: trace file path
+     * Output: records in execution order
+     */
+    public static ArrayList<TraceRecord> read(Path path) throws IOException {
+        ArrayList<TraceRecord> traceRecords = new ArrayList<TraceRecord>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a trace file: " + path);
+            }
+            ArrayList<String> strings = new ArrayList<String>();
+            int tick = 0;
+            while (true) {
+                int tickDelta;
+                try {
+                    tickDelta = VarInt.read(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                tick += tickDelta;
+                byte flags = in.readByte();
+                String instruction = readString(in, strings);
+                int siteID = VarInt.read(in) - 1;
+                int blockerCnt = VarInt.read(in);
+                ArrayList<String> blockers = new ArrayList<String>(blockerCnt);
+                for (int i = 0; i < blockerCnt; i++) {
+                    blockers.add(readString(in, strings));
+                }
+                traceRecords.add(new TraceRecord(tick, instruction, (flags & 1) != 0, (flags & 2) != 0, siteID, blockers));
+            }
+        }
+        return traceRecords;
+    }
+
+    private static String readString(DataInputStream in, ArrayList<String> strings) throws IOException {
+        int id = VarInt.read(in);
+        if (id > 0) {
+            return strings.get(id - 1);
+        }
+        String str = in.readUTF();
+        strings.add(str);
+        return str;
+    }
+}
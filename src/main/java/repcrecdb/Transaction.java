@@ -16,13 +16,55 @@ class WriteRecord {
     }
 }
 
+/**
+ * Values a transaction has read under a read lock it still holds, keyed by variable ID
+ */
+class ReadCache extends IntKeyTable {
+    @Override
+    protected Object newValues(int capacity) {
+        return new int[capacity];
+    }
+
+    public boolean contains(int varID) {
+        return containsKey(varID);
+    }
+
+    public int get(int varID) {
+        return ((int[]) values)[slot(varID)];
+    }
+
+    public void put(int varID, int value) {
+        int i = insert(varID);
+        ((int[]) values)[i] = value;
+    }
+
+    public void remove(int varID) {
+        delete(varID);
+    }
+}
+
 public class Transaction {
     String name;
     boolean isReadOnly;
+    IsolationLevel isolation; // only honored by the lock manager, under locking
     Integer beginTime;
     HashMap<Integer, Integer> accessedSites; // (siteID, accessTime)
     ArrayList<WriteRecord> writes;
+    ArrayList<WriteRecord> increments; // deltas added under increment locks, applied at commit after the writes
     Integer blockedInstrCnt;
+    int beginCommitSeq; // commit sequence number of TM when this T begins
+    HashMap<Integer, Integer> readSet; // (varID, version read), only used by optimistic transactions
+    int commitSeq; // commit sequence number of this T, 0 if not committed
+    HashSet<Transaction> inConflicts; // SSI: concurrent Ts which read a variable this T wrote
+    HashSet<Transaction> outConflicts; // SSI: concurrent Ts which wrote a variable this T read
+    boolean doomed; // this T must abort at end
+    HashSet<Integer> queuedSites; // sites where this T has waited in a lock queue
+    boolean lockQueued; // the last instruction of this T is waiting in a lock queue
+    ReadCache readCache; // values read under read locks this T still holds, only used under locking
+    HashSet<Long> accessedCopies; // (siteID << 32 | varID) of the copies this T has locked or read
+    int work; // number of reads and writes done
+    ArrayList<String> issued; // read and write instructions done, replayed if this T aborts under auto-retry
+    int restarts; // times a transaction of the same name aborted before this T began
 
     /**
      * Description: initialize non-read-only transaction
@@ -41,10 +83,25 @@ public class Transaction {
     public Transaction(String name, Integer ticks, boolean isReadOnly) {
         this.name = name;
         this.isReadOnly = isReadOnly;
+        isolation = IsolationLevel.SERIALIZABLE;
         beginTime = ticks;
         accessedSites = new HashMap<Integer, Integer>();
         writes = new ArrayList<WriteRecord>();
+        increments = new ArrayList<WriteRecord>();
         blockedInstrCnt = 0;
+        beginCommitSeq = 0;
+        readSet = new HashMap<Integer, Integer>();
+        commitSeq = 0;
+        inConflicts = new HashSet<Transaction>();
+        outConflicts = new HashSet<Transaction>();
+        doomed = false;
+        queuedSites = new HashSet<Integer>();
+        lockQueued = false;
+        readCache = new ReadCache();
+        accessedCopies = new HashSet<Long>();
+        work = 0;
+        issued = new ArrayList<String>();
+        restarts = 0;
     }
 
     /**
@@ -61,4 +118,18 @@ public class Transaction {
         }
         return null;
     }
-}
\ No newline at end of file
+
+    /**
+     * Description: get the pending increment of a variable
+     * Input: variable id
+     * Output: increment record if this T has added to the variable, null if not
+     */
+    public WriteRecord getIncrement(int varID) {
+        for (WriteRecord incrementRec : increments) {
+            if (incrementRec.varID == varID) {
+                return incrementRec;
+            }
+        }
+        return null;
+    }
+}
@@ -1,13 +1,21 @@
 package repcrecdb;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Map.Entry;
 
 enum RunningStatus
@@ -15,6 +23,47 @@ enum RunningStatus
     UP, DOWN;
 }
 
+enum ConcurrencyControl
+{
+    LOCKING, OCC, SSI;
+}
+
+enum ReplicationProtocol
+{
+    AVAILABLE_COPIES, PRIMARY_COPY, QUORUM;
+}
+
+enum VictimPolicy
+{
+    YOUNGEST, FEWEST_LOCKS, SMALLEST_WRITE_SET, LEAST_WORK, FEWEST_RESTARTS;
+
+    /**
+     * Description: get the name of the policy as given to --victim
+     * Input: N/A
+     * Output: lower case name with dashes
+     */
+    public String optionName() {
+        return name().toLowerCase().replace('_', '-');
+    }
+}
+
+enum IsolationLevel
+{
+    SERIALIZABLE, REPEATABLE_READ, READ_COMMITTED;
+}
+
+class CommitRecord {
+    public int commitSeq;
+    public Transaction transaction;
+    public HashSet<Integer> varIDs; // variables written by the committed transaction
+
+    public CommitRecord(int commitSeq, Transaction transaction) {
+        this.commitSeq = commitSeq;
+        this.transaction = transaction;
+        this.varIDs = new HashSet<Integer>();
+    }
+}
+
 class SiteStatus {
     public RunningStatus status;
     public int lastDownTime;
@@ -27,16 +76,64 @@ class SiteStatus {
 
 public class TransactionManager {
     public static final String DEADLOCK_ABORT_MESSAGE = "Deadlock detected, younger killed";
+    public static final String DEADLOCK_POLICY_ABORT_MESSAGE = "Deadlock detected, %s victim killed";
     public static final String SITE_FAIL_ABORT_MESSAGE = "Accessed site(s) failed";
+    public static final String VALIDATION_ABORT_MESSAGE = "Validation failed";
+    public static final String WRITE_CONFLICT_ABORT_MESSAGE = "Concurrent update committed";
+    public static final String DANGEROUS_STRUCTURE_ABORT_MESSAGE = "Dangerous structure detected";
+    public static final String NO_VALID_VERSION_ABORT_MESSAGE = "No site holds a valid version";
+    public static final String COMMIT_GROUP_EVENT = "#commitGroup"; // trace record of a commit group applied early
+    public static final String PLACEMENT_FILE = "placement"; // saved placement in the checkpoint directory
 
-    HashMap<Integer, DataManager> dms;
+    HashMap<Integer, Site> sites; // sites the TM sends requests to
+    HashMap<Integer, DataManager> dms; // in-process sites, empty when sites run in other processes
     HashMap<String, Transaction> transactions;
     HashMap<Integer, SiteStatus> siteStatusTable;
-    LinkedList<String> instructionBuffer;
+    ArrayList<String> instructionBuffer;
+    int untriedInstrCnt; // the last this many buffered instructions have not been executed yet
+    int bufferCursor; // index of the buffered instruction being executed by run, -1 if none
+    boolean batchTicks; // run every buffered instruction that can proceed in a tick instead of the first one
     WaitForGraph waitForGraph;
     Integer ticks; // Mimic a ticking time
     int lastSiteID; // site ID from 1 to 10, workload balancing for replicated data
     boolean newEdgeAdded;
+    ConcurrencyControl concurrencyControl; // concurrency control for read-write transactions
+    ReplicationProtocol replication; // how replicated variables are read and written
+    VictimPolicy victimPolicy; // which transaction of a deadlock cycle aborts
+    HashMap<String, Integer> abortCounts; // (transaction name, times it aborted), restarts reuse the name
+    int deadlockAborts; // number of deadlock victims
+    int lostOperations; // reads and writes done by deadlock victims before they aborted
+    int restarts; // number of transactions begun again after an abort
+    int retryLimit; // times an aborted transaction is replayed, 0 if auto-retry is not enabled
+    int retryBackoff; // ticks before the first replay, doubled on every later one
+    HashMap<String, LinkedList<String>> retryInstructions; // (transaction name, instructions to replay)
+    HashMap<String, Integer> retryTicks; // (transaction name, tick its replay starts)
+    LinkedList<String> replayQueue; // instructions being replayed, read one per tick before the input
+    int retriesGivenUp; // transactions aborted more often than the retry limit
+    int totalOperations; // reads and writes done
+    int committedOperations; // reads and writes done by committed transactions
+    PlacementMap placement; // which sites hold each variable
+    String storage; // storage engine of the sites
+    HashMap<Integer, HashMap<Integer, Integer>> siteLoad; // (siteID, (varID, accesses since the last rebalance))
+    int rebalanceInterval; // rebalance every this many ticks, 0 if not enabled
+    HashMap<Integer, HashSet<String>> siteAccessors; // (siteID, names of active transactions accessed it)
+    boolean eagerAbort; // abort transactions accessed a site as soon as it fails instead of at end
+    int commitSeq; // number of committed read-write transactions, used as version number
+    LinkedList<CommitRecord> commitLog; // write sets of recently committed transactions for OCC and SSI
+    HashMap<Integer, HashSet<Transaction>> siReadTable; // SSI: (varID, transactions read it from snapshot)
+    HashMap<String, HashSet<String>> lockWaits; // (transaction name, buffered instructions waiting for a lock grant)
+    HashSet<String> waitingInstructions; // buffered instructions skipped until their lock is granted
+    LinkedHashMap<String, String> scheduledAborts; // (transaction name, abort message), aborted after the current instruction
+    Path checkpointDir; // directory of site checkpoints and redo logs, null if not enabled
+    int checkpointInterval; // take checkpoints every this many commits
+    boolean durable; // force redo logs to disk on commit
+    int groupCommitWindow; // ticks a commit group collects committing transactions, 0 if not enabled
+    ArrayList<Transaction> commitGroup; // validated transactions waiting for their group to be applied
+    int commitGroupStart; // tick the current commit group was opened
+    NetworkSimulator simulator; // simulated network delays to the sites, null if not enabled
+    Trace trace; // binary trace of executed instructions, null if not enabled
+    int traceSiteID; // first site granting access to the current instruction, -1 if none
+    ArrayList<String> traceBlockers; // transactions the current instruction waits for
 
     /*
      * Description: initialize all fields 
@@ -44,17 +141,67 @@ public class TransactionManager {
      * Output: N/A
      */
     public TransactionManager(HashMap<Integer, DataManager> dms) {
+        this(new HashMap<Integer, Site>(dms), dms);
+    }
+
+    /*
+     * Description: initialize all fields
+     * Input: sites, DM objects of the sites running in process
+     * Output: N/A
+     */
+    public TransactionManager(HashMap<Integer, Site> sites, HashMap<Integer, DataManager> dms) {
         ticks = 0;
+        this.sites = sites;
         this.dms = dms;
         transactions = new HashMap<String, Transaction>();
-        instructionBuffer = new LinkedList<String>();
-        lastSiteID = dms.size();
+        instructionBuffer = new ArrayList<String>();
+        untriedInstrCnt = 0;
+        bufferCursor = -1;
+        batchTicks = false;
+        lastSiteID = sites.size();
         newEdgeAdded = false;
         waitForGraph = new WaitForGraph();
+        concurrencyControl = ConcurrencyControl.LOCKING;
+        replication = ReplicationProtocol.AVAILABLE_COPIES;
+        victimPolicy = VictimPolicy.YOUNGEST;
+        abortCounts = new HashMap<String, Integer>();
+        deadlockAborts = 0;
+        lostOperations = 0;
+        restarts = 0;
+        retryLimit = 0;
+        retryBackoff = 1;
+        retryInstructions = new HashMap<String, LinkedList<String>>();
+        retryTicks = new HashMap<String, Integer>();
+        replayQueue = new LinkedList<String>();
+        retriesGivenUp = 0;
+        totalOperations = 0;
+        committedOperations = 0;
+        placement = PlacementMap.standard(sites.size(), PlacementMap.DEFAULT_VAR_COUNT);
+        storage = StorageEngine.HASH;
+        siteLoad = new HashMap<Integer, HashMap<Integer, Integer>>();
+        rebalanceInterval = 0;
+        siteAccessors = new HashMap<Integer, HashSet<String>>();
+        eagerAbort = false;
+        commitSeq = 0;
+        commitLog = new LinkedList<CommitRecord>();
+        siReadTable = new HashMap<Integer, HashSet<Transaction>>();
+        lockWaits = new HashMap<String, HashSet<String>>();
+        waitingInstructions = new HashSet<String>();
+        scheduledAborts = new LinkedHashMap<String, String>();
+        checkpointDir = null;
+        checkpointInterval = 100;
+        durable = false;
+        groupCommitWindow = 0;
+        commitGroup = new ArrayList<Transaction>();
+        commitGroupStart = 0;
+        simulator = null;
+        trace = null;
+        traceSiteID = -1;
+        traceBlockers = new ArrayList<String>();
 
         // Initialize the status for each site as up
         siteStatusTable = new HashMap<Integer, SiteStatus>();
-        for (Integer siteID : dms.keySet()) {
+        for (Integer siteID : sites.keySet()) {
             siteStatusTable.put(siteID, new SiteStatus(RunningStatus.UP, ticks));
         }
     }
@@ -71,49 +218,201 @@ public class TransactionManager {
      */
     public void run(InputStream inputStream) {
         try (Scanner input = new Scanner(inputStream);) {
-            while (!instructionBuffer.isEmpty() || input.hasNextLine()) {
-                ticks += 1;
-
-                // Detect deadlock at the start of ticks when new edge added
-                if (newEdgeAdded) {
-                    newEdgeAdded = false;
-                    ArrayList<String> list = waitForGraph.detectDeadlock();
-                    if (list != null) {
-                        String trancName = findYoungest(list);
-                        abort(trancName, DEADLOCK_ABORT_MESSAGE);
-                    }
-                }
+            while (!instructionBuffer.isEmpty() || input.hasNextLine() || !retryInstructions.isEmpty()
+                || !replayQueue.isEmpty())
+            {
+                startTick();
 
-                // Add new instruction into buffer
-                boolean hasNewInstr = input.hasNextLine();
+                // Add new instruction into buffer, replayed instructions go first
+                boolean hasNewInstr = !replayQueue.isEmpty() || input.hasNextLine();
                 if (hasNewInstr) {
-                    String instr = input.nextLine().trim();
+                    String instr = replayQueue.isEmpty() ? input.nextLine().trim() : replayQueue.poll();
                     // Ignore comment lines and empty lines
                     if (instr.startsWith("//") || instr.length() == 0) {
                         ticks -= 1;
                         continue;
                     }
-                    instructionBuffer.add(instr);
+                    LinkedList<String> replay = retryInstructions.get(getTransactionName(instr));
+                    if (replay != null) {
+                        // The transaction is waiting to be replayed, the instruction follows its earlier ones
+                        replay.add(instr);
+                        hasNewInstr = false;
+                    } else {
+                        instructionBuffer.add(instr);
+                        untriedInstrCnt += 1;
+                    }
                 }
 
                 // Execute instructions in instruction buffer until one that 
-                // is not blocked
+                // is not blocked, instructions waiting in lock queues are
+                // skipped until the lock is granted to them.
+                // Under batch ticks, run every instruction that can proceed in buffer order, passing over
+                // the buffer again while instructions succeed, as one succeeding may unblock an earlier one.
+                // Deadlocks are detected once per batch, at the start of the next tick.
                 boolean allBlocked = true;
-                for (int i = 0; i < instructionBuffer.size(); i++) {
-                    String instr = instructionBuffer.get(i);
-                    if (parse(instr, i < instructionBuffer.size()-1 || !hasNewInstr)) {
-                        instructionBuffer.remove(i);
-                        allBlocked = false;
-                        break;
+                boolean progress = true;
+                while (progress) {
+                    progress = false;
+                    for (bufferCursor = 0; bufferCursor < instructionBuffer.size(); bufferCursor++) {
+                        String instr = instructionBuffer.get(bufferCursor);
+                        if (waitingInstructions.contains(instr)) {
+                            continue;
+                        }
+                        // Instructions are tried in buffer order, so the untried ones are always the last ones
+                        boolean isTried = bufferCursor < instructionBuffer.size() - untriedInstrCnt;
+                        if (!isTried) {
+                            untriedInstrCnt -= 1;
+                        }
+                        if (execute(instr, isTried)) {
+                            instructionBuffer.remove(bufferCursor);
+                            bufferCursor -= 1;
+                            allBlocked = false;
+                            progress = batchTicks;
+                            if (!batchTicks) {
+                                break;
+                            }
+                        }
                     }
                 }
-                if (allBlocked && !input.hasNextLine()) {
+                bufferCursor = -1;
+                if (allBlocked && !input.hasNextLine() && !commitGroup.isEmpty() && !isCommitGroupDue()) {
+                    // Instructions may wait for locks of the open group
+                    runScheduledAborts();
+                    flushCommitGroup();
+                    recordTrace(COMMIT_GROUP_EVENT, false, true);
+                    continue;
+                }
+                // A group closing at the end of this tick may grant the locks the blocked instructions wait for
+                boolean flushed = finishTick();
+                if (allBlocked && !flushed && !input.hasNextLine() && retryInstructions.isEmpty() && replayQueue.isEmpty()) {
                     System.out.println("All following instructions are blocked");
                     System.out.println(instructionBuffer.toString());
                     break;
                 }
             }
         }
+        flushCommitGroup();
+        if (simulator != null) {
+            simulator.drain();
+        }
+    }
+
+    /**
+     * Description: re-drive the TM with the instructions of a trace, at the ticks and in the order they were executed
+     * Input: records of a trace
+     * Output: number of instructions whose outcome or granted site differs from the trace
+     * Side effect: execute the instructions, and record them if tracing is enabled
+     */
+    public int replay(ArrayList<TraceRecord> records) {
+        int mismatches = 0;
+        boolean inTick = false;
+        for (TraceRecord rec : records) {
+            while (ticks < rec.tick) {
+                if (inTick) {
+                    finishTick();
+                }
+                startTick();
+                inTick = true;
+            }
+            if (rec.instruction.equals(COMMIT_GROUP_EVENT)) {
+                runScheduledAborts();
+                flushCommitGroup();
+                recordTrace(COMMIT_GROUP_EVENT, false, true);
+                inTick = false;
+                continue;
+            }
+            boolean suc = execute(rec.instruction, rec.isBlocked);
+            if (suc != rec.success || traceSiteID != rec.siteID) {
+                mismatches += 1;
+            }
+        }
+        if (inTick) {
+            finishTick();
+        }
+        flushCommitGroup();
+        if (simulator != null) {
+            simulator.drain();
+        }
+        return mismatches;
+    }
+
+    /**
+     * Description: start a new tick
+     * Input: N/A
+     * Output: void
+     * Side effect: rebalance if due, abort a victim if a deadlock was formed, start replays of aborted transactions
+     */
+    private void startTick() {
+        ticks += 1;
+        if (simulator != null) {
+            simulator.startTick(ticks);
+        }
+        if (rebalanceInterval > 0 && ticks % rebalanceInterval == 0) {
+            rebalance();
+        }
+
+        // Detect deadlock at the start of ticks when new edge added
+        if (newEdgeAdded) {
+            newEdgeAdded = false;
+            ArrayList<String> list = waitForGraph.detectDeadlock();
+            if (list != null) {
+                String trancName = chooseVictim(list);
+                deadlockAborts += 1;
+                lostOperations += transactions.get(trancName).work;
+                abort(trancName, victimPolicy == VictimPolicy.YOUNGEST ? DEADLOCK_ABORT_MESSAGE
+                    : String.format(DEADLOCK_POLICY_ABORT_MESSAGE, victimPolicy.optionName()));
+            }
+        }
+
+        startRetries();
+    }
+
+    /**
+     * Description: finish the current tick
+     * Input: N/A
+     * Output: true if the open group was committed
+     * Side effect: abort the transactions scheduled for abort, commit the open group if its window is over
+     */
+    private boolean finishTick() {
+        runScheduledAborts();
+        if (isCommitGroupDue()) {
+            flushCommitGroup();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isCommitGroupDue() {
+        return !commitGroup.isEmpty() && ticks - commitGroupStart + 1 >= groupCommitWindow;
+    }
+
+    /**
+     * Description: execute an instruction and record it in the trace
+     * Input: one instruction in string, is blocked or not
+     * Output: instruction succeeds or not
+     */
+    private boolean execute(String instruction, boolean isBlocked) {
+        traceSiteID = -1;
+        traceBlockers.clear();
+        boolean suc = parse(instruction, isBlocked);
+        recordTrace(instruction, isBlocked, suc);
+        return suc;
+    }
+
+    /**
+     * Description: append an executed instruction to the trace if tracing is enabled
+     * Input: instruction, is blocked or not, succeed or not
+     * Output: void
+     */
+    private void recordTrace(String instruction, boolean isBlocked, boolean suc) {
+        if (trace == null) {
+            return;
+        }
+        try {
+            trace.record(ticks, instruction, isBlocked, suc, traceSiteID, traceBlockers);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -133,20 +432,64 @@ public class TransactionManager {
         // Dispatch
         String tName = null;
         boolean suc = false;
+        double startTime = simulator == null ? 0 : simulator.now;
         switch (command) {
             case "begin":
+                if (args.length == 2) {
+                    return begin(args[0], IsolationLevel.valueOf(args[1].toUpperCase().replace('-', '_')));
+                }
                 return (args.length == 1) && begin(args[0]);
             case "beginRO":
                 return (args.length == 1) && beginRO(args[0]);
             case "R":
                 tName = args[0];
                 suc = (args.length == 2) && read(tName, args[1]);
+                if (suc && simulator != null) {
+                    simulator.readLatency.add(simulator.now - startTime);
+                }
+                countWork(tName, instruction, suc);
                 updateBlockedInstrCnt(tName, suc, isBlocked);
+                addLockWait(tName, instruction, suc);
                 return suc;
             case "W":
                 tName = args[0];
                 suc = (args.length == 3) && write(tName, args[1], Integer.parseInt(args[2]));
+                if (suc && simulator != null) {
+                    simulator.writeLatency.add(simulator.now - startTime);
+                }
+                countWork(tName, instruction, suc);
+                updateBlockedInstrCnt(tName, suc, isBlocked);
+                addLockWait(tName, instruction, suc);
+                return suc;
+            case "RU":
+                tName = args[0];
+                suc = (args.length == 2) && readForUpdate(tName, args[1]);
+                if (suc && simulator != null) {
+                    simulator.readLatency.add(simulator.now - startTime);
+                }
+                countWork(tName, instruction, suc);
+                updateBlockedInstrCnt(tName, suc, isBlocked);
+                addLockWait(tName, instruction, suc);
+                return suc;
+            case "ADD":
+                tName = args[0];
+                suc = (args.length == 3) && add(tName, args[1], Integer.parseInt(args[2]));
+                if (suc && simulator != null) {
+                    simulator.writeLatency.add(simulator.now - startTime);
+                }
+                countWork(tName, instruction, suc);
+                updateBlockedInstrCnt(tName, suc, isBlocked);
+                addLockWait(tName, instruction, suc);
+                return suc;
+            case "SCAN":
+                tName = args[0];
+                suc = (args.length == 3) && scan(tName, args[1], args[2]);
+                if (suc && simulator != null) {
+                    simulator.readLatency.add(simulator.now - startTime);
+                }
+                countWork(tName, instruction, suc);
                 updateBlockedInstrCnt(tName, suc, isBlocked);
+                addLockWait(tName, instruction, suc);
                 return suc;
             case "dump":
                 return dump();
@@ -158,6 +501,12 @@ public class TransactionManager {
                 return (args.length == 1) && recover(Integer.parseInt(args[0]));
             case "queryState":
                 return queryState();
+            case "checkpoint":
+                return checkpoint();
+            case "migrate":
+                return (args.length == 3) && migrate(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            case "rebalance":
+                return rebalance();
             default:
                 System.out.println("Unknown instruction");
                 return false;
@@ -172,7 +521,31 @@ public class TransactionManager {
      * Create Transaction with begin time and type, append to TM transaction list
      */
     public boolean begin(String transactionName) {
-        transactions.put(transactionName, new Transaction(transactionName, ticks));
+        return begin(transactionName, IsolationLevel.SERIALIZABLE);
+    }
+
+    /**
+     * Description: handle transaction begin instruction with an isolation level
+     * Input: transaction name, isolation level
+     * Output: succeed or not
+     * Side effect:
+     * Create Transaction with begin time, type and isolation level, append to TM transaction list
+     * Under locking, a read committed transaction releases each read lock right after the read, repeatable read
+     * and serializable transactions keep them until they end
+     */
+    public boolean begin(String transactionName, IsolationLevel isolation) {
+        Transaction t = new Transaction(transactionName, ticks);
+        t.isolation = isolation;
+        t.beginCommitSeq = commitSeq;
+        t.restarts = abortCounts.getOrDefault(transactionName, 0);
+        if (t.restarts > 0) {
+            restarts += 1;
+        }
+        transactions.put(transactionName, t);
+        TransactionIDs.intern(transactionName);
+        if (simulator != null) {
+            simulator.beginTransaction(transactionName);
+        }
         return true;
     }
 
@@ -182,17 +555,21 @@ public class TransactionManager {
      * Output: succeed or not
      * Side effect: 
      * Create Transaction with begin time and type(RO), append to TM transaction list
-     * Notify all up sites to create a snapshot with a given timestamp(the begin time of this Transaction)
-     * Append to the command buffer if blocked(all sites are down, no one can create a snapshot)
+     * The commit sequence number at begin decides which committed versions this Transaction reads,
+     * no site is involved so it never blocks
      */
     public boolean beginRO(String transactionName) {
-        int downCnt = siteStatusTable.size() - getUpSiteCount();
-        if (downCnt > 0) return false;
-
-        for (Entry<Integer, SiteStatus> statusEntry: siteStatusTable.entrySet()) {
-            dms.get(statusEntry.getKey()).takeSnapshot(ticks);
+        Transaction t = new Transaction(transactionName, ticks, true);
+        t.beginCommitSeq = commitSeq;
+        t.restarts = abortCounts.getOrDefault(transactionName, 0);
+        if (t.restarts > 0) {
+            restarts += 1;
+        }
+        transactions.put(transactionName, t);
+        TransactionIDs.intern(transactionName);
+        if (simulator != null) {
+            simulator.beginTransaction(transactionName);
         }
-        transactions.put(transactionName, new Transaction(transactionName, ticks, true));
         return true;
     }
 
@@ -209,6 +586,7 @@ public class TransactionManager {
      *      Add one edge to the wait-for graph if it is a read-write Transaction
      *      Append to the command buffer if blocked
      *      Set check deck-lock to true to perform a deadlock at next tick
+     * Abort a read-only(or SSI) transaction if no site can provide a valid version of a replicated variable
      * Update the pointer of next available site
      */
     public boolean read(String transactionName, String varName) {
@@ -217,12 +595,26 @@ public class TransactionManager {
             return true;
         }
         int varID = Integer.parseInt(varName.substring(1));
-        boolean isReplicatedData = varID % 2 == 0;
+        WriteRecord incrementRec = t.getIncrement(varID);
+        if (incrementRec != null && !resolveIncrement(t, incrementRec)) {
+            return false;
+        }
+        if (t.read(varID) == null && t.readCache.contains(varID)) {
+            // This T still holds the read lock, no other T can have changed the value
+            System.out.println(String.format("%s: %d", varName, t.readCache.get(varID)));
+            return true;
+        }
+        boolean isReplicatedData = placement.isReplicated(varID);
+        if (isReplicatedData && replication != ReplicationProtocol.AVAILABLE_COPIES
+            && (t.isReadOnly || concurrencyControl == ConcurrencyControl.LOCKING))
+        {
+            return readReplicated(t, varName, varID);
+        }
         int siteID = -1;
         if (isReplicatedData) {
-            siteID = findNextSite();
+            siteID = findNextSite(varID);
         } else {
-            int targetSiteID = (varID % 10) + 1;
+            int targetSiteID = placement.getHomeSite(varID);
             if (siteStatusTable.get(targetSiteID).status == RunningStatus.UP) {
                 siteID = targetSiteID;
             }
@@ -230,43 +622,82 @@ public class TransactionManager {
         if (siteID == -1) return false;
 
         Integer val = null;
-        int upCnt = getUpSiteCount();
+        int upCnt = getUpSiteCount(varID);
         int tryCnt = 1;
+        int waitSiteID = -1;
+        t.lockQueued = false;
         HashSet<String> blockTrancSet = new HashSet<>();
         while (val == null) {
-            DataManager dm = dms.get(siteID);
+            Site dm = sites.get(siteID);
             if (t.isReadOnly) {
-                val = dm.readRO(varID, t.beginTime);
+                val = dm.readRO(varID, t.beginCommitSeq, t.beginTime);
             } else {
                 // Try to read from local writes firstlockTable
                 // For situation W(T1, x1, 10)R(T1, x1), R should read the local write value of T1.
                 val = this.transactions.get(transactionName).read(varID);
 
-                if (val == null) {
-                    if (!isReplicatedData || dm.repVarReadableTable.getOrDefault(varID, false)) {
-                        blockTrancSet = dm.acquireLock(transactionName, varID, LockType.READ);
-                        if (blockTrancSet.isEmpty()) {
+                if (val == null && concurrencyControl == ConcurrencyControl.OCC) {
+                    // Optimistic read, record the version seen for validation at commit time
+                    val = dm.readLatest(varID);
+                    if (val != null) {
+                        int version = dm.getVersion(varID);
+                        Integer seen = t.readSet.get(varID);
+                        if (seen == null || version < seen) {
+                            t.readSet.put(varID, version);
+                        }
+                    }
+                } else if (val == null && concurrencyControl == ConcurrencyControl.SSI) {
+                    // Read from the begin snapshot without read lock, track rw-antidependencies
+                    val = dm.readRO(varID, t.beginCommitSeq, t.beginTime);
+                    if (val != null) {
+                        recordSnapshotRead(t, varID);
+                    }
+                } else if (val == null) {
+                    if (!isReplicatedData || dm.isReadable(varID)) {
+                        HashSet<String> blockTrancSetTmp = dm.checkLock(transactionName, varID, LockType.READ);
+                        if (blockTrancSetTmp.isEmpty()) {
+                            dm.acquireLock(transactionName, varID, LockType.READ);
                             val = dm.read(transactionName, varID);
+                            if (t.isolation == IsolationLevel.READ_COMMITTED) {
+                                // Short read lock, another T may change the value once it is released
+                                wakeLockWaiters(dm.releaseReadLock(transactionName, varID));
+                            } else if (val != null) {
+                                t.readCache.put(varID, val);
+                            }
+                        } else if (!isBlockedBySelf(transactionName, blockTrancSetTmp)
+                            && (waitSiteID == -1 || dm.isWaiting(transactionName, varID)))
+                        {
+                            // Wait in one queue only, prefer the site this T already waits at
+                            waitSiteID = siteID;
+                            blockTrancSet = blockTrancSetTmp;
                         }
                     }
                 }
             }
             if (val != null || !isReplicatedData || tryCnt >= upCnt) break;
-            siteID = findNextSite();
+            siteID = findNextSite(varID);
             tryCnt += 1;
         }
         
         if (val != null) {
             System.out.println(String.format("%s: %d", varName, val));
-            if (!t.accessedSites.containsKey(siteID)) {
-                t.accessedSites.put(siteID, this.ticks);
-            }
+            markAccessed(t, siteID, varID);
+        }
+        boolean isSnapshotRead = t.isReadOnly || concurrencyControl == ConcurrencyControl.SSI;
+        if (val == null && isSnapshotRead && isReplicatedData && !canServeSnapshotLater(t, varID)) {
+            // Available copies: no up site holds a valid version and no down site could after recovery
+            scheduledAborts.put(transactionName, NO_VALID_VERSION_ABORT_MESSAGE);
+            return true;
         }
+        if (val == null && waitSiteID != -1) {
+            sites.get(waitSiteID).acquireLock(transactionName, varID, LockType.READ);
+            t.queuedSites.add(waitSiteID);
+            t.lockQueued = true;
 
-        for (String tranc : blockTrancSet) {
-            if (!transactionName.equals(tranc)) {
-                waitForGraph.addEdge(transactionName, tranc);
-                newEdgeAdded = true;
+            for (String tranc : blockTrancSet) {
+                if (!transactionName.equals(tranc)) {
+                    addWaitEdge(transactionName, tranc);
+                }
             }
         }
 
@@ -274,179 +705,1238 @@ public class TransactionManager {
     }
 
     /**
-     * Description: handle transaction write data instruction
-     * Input: transaction name, variable name, the new variable value
+     * Description: handle transaction read-for-update instruction, a read of a variable this T writes later
+     * Input: transaction name, variable name
      * Output: succeed or not
      * Side effect:
-     * Append this command to Transaction’s write command
-     * If acquire write locks success:
-     *      Notify all up sites to update its locks table
-     *      Add accessed site to Transaction’s access sites set
-     * If fail:
-     *      Add edge(s) to the wait-for graph
-     *      Append to the command buffer
-     *      Set check deck-lock to true to perform a deadlock at next tick
-     * Update the pointer of next available site
+     * Under locking, acquire update locks at every site a write of the variable locks(every up copy under
+     * available copies, the write quorum under primary copy and majority quorum). One transaction at a time
+     * holds the update lock of a copy alongside readers, so read-modify-write transactions queue behind
+     * each other instead of deadlocking when they upgrade to write locks.
+     * Otherwise read as the read instruction does
+     * Print the variable in the format “x{number}: {val}”
+     * Add accessed sites to Transaction’s access sites set
+     * If fail: add edge(s) to the wait-for graph and wait in the queues of the blocking sites
      */
-    public boolean write(String transactionName, String varName, int val) { 
-        int varID = Integer.parseInt(varName.substring(1));
-        boolean suc = false;
-        Transaction t = this.transactions.get(transactionName);
+    public boolean readForUpdate(String transactionName, String varName) {
+        Transaction t = transactions.get(transactionName);
         if (t == null) {
             return true;
         }
-        int upCnt = this.getUpSiteCount();
-        if (upCnt == 0) return false;
+        if (t.isReadOnly || concurrencyControl != ConcurrencyControl.LOCKING) {
+            return read(transactionName, varName);
+        }
+        int varID = Integer.parseInt(varName.substring(1));
+        WriteRecord incrementRec = t.getIncrement(varID);
+        if (incrementRec != null && !resolveIncrement(t, incrementRec)) {
+            return false;
+        }
+        Integer val = t.read(varID);
+        if (val != null) {
+            System.out.println(String.format("%s: %d", varName, val));
+            return true;
+        }
 
-        HashSet<String> blockTrancSet = new HashSet<>();
-        if (varID % 2 == 0)
-        {
-            // Acquired write locks from every up site for even index variables
-            int acquireLockCnt = 0;
-            for (Entry<Integer, SiteStatus> entry: siteStatusTable.entrySet()) {
-                int siteID = entry.getKey();
-                DataManager dm = dms.get(siteID);
-                if (entry.getValue().status == RunningStatus.UP) {
-                    HashSet<String> blockTrancSetTmp = dm.checkLock(transactionName, varID, LockType.WRITE);
-                    if (blockTrancSetTmp.isEmpty()) {
-                        acquireLockCnt++;
-                    } else {
-                        blockTrancSet = blockTrancSetTmp;
-                    }
-                }
+        t.lockQueued = false;
+        boolean isReplicatedData = placement.isReplicated(varID);
+        ArrayList<Integer> siteIDs = new ArrayList<Integer>();
+        if (isReplicatedData && replication != ReplicationProtocol.AVAILABLE_COPIES) {
+            ArrayList<Integer> replicas = chooseReplicas(varID, LockType.WRITE);
+            if (replicas == null) {
+                return false;
             }
-            if (acquireLockCnt == upCnt) {
-                WriteRecord writeRec = new WriteRecord(varID, val);
-                for (Entry<Integer, SiteStatus> entry: siteStatusTable.entrySet()) {
-                    int siteID = entry.getKey();
-                    DataManager dm = dms.get(siteID);
-                    if (entry.getValue().status == RunningStatus.UP)
-                    {
-                        dm.acquireLock(transactionName, varID, LockType.WRITE);
-                        writeRec.siteIDs.add(siteID);
-                        if (!t.accessedSites.containsKey(siteID)) {
-                            t.accessedSites.put(siteID, this.ticks);
-                        }
-                    }
-                }
-
-                t.writes.add(writeRec);  // Write to local copy of T, write to site on commit
-                suc = true;
-            } else {
-                for (Entry<Integer, SiteStatus> entry: siteStatusTable.entrySet()) {
-                    int siteID = entry.getKey();
-                    DataManager dm = dms.get(siteID);
-                    if (entry.getValue().status == RunningStatus.UP)
-                    {
-                        dm.setPendingWrite(transactionName, varID);
-                    }
+            siteIDs = replicas;
+        } else if (isReplicatedData) {
+            for (Integer siteID: placement.getSites(varID)) {
+                if (holdsUpCopy(siteID, varID)) {
+                    siteIDs.add(siteID);
                 }
             }
         } else {
-            // Acquired write lock from the target site for odd index variables
-            int siteID = (varID % 10) + 1;
-            DataManager dm = dms.get(siteID);
+            int siteID = placement.getHomeSite(varID);
             if (siteStatusTable.get(siteID).status == RunningStatus.UP) {
-                blockTrancSet = dm.acquireLock(transactionName, varID, LockType.WRITE);
-                if (blockTrancSet.isEmpty()) {
-                    WriteRecord writeRec = new WriteRecord(varID, val);
-                    writeRec.siteIDs.add(siteID);
-                    t.writes.add(writeRec);  // Write to local copy of T, write to site on commit
-                    if (!t.accessedSites.containsKey(siteID)) {
-                        t.accessedSites.put(siteID, this.ticks);
-                    }
-                    suc = true;
-                }
+                siteIDs.add(siteID);
             }
         }
+        if (siteIDs.isEmpty()) {
+            return false;
+        }
 
-        if (!suc) {
+        ArrayList<Reply<HashSet<String>>> replies = new ArrayList<Reply<HashSet<String>>>();
+        for (int siteID: siteIDs) {
+            replies.add(sites.get(siteID).acquireLockAsync(transactionName, varID, LockType.UPDATE));
+        }
+        HashSet<String> blockTrancSet = new HashSet<String>();
+        for (int i = 0; i < siteIDs.size(); i++) {
+            HashSet<String> blockTrancSetTmp = replies.get(i).get();
+            if (!blockTrancSetTmp.isEmpty() && !isBlockedBySelf(transactionName, blockTrancSetTmp)) {
+                t.queuedSites.add(siteIDs.get(i));
+                t.lockQueued = true;
+            }
+            blockTrancSet.addAll(blockTrancSetTmp);
+        }
+        if (!blockTrancSet.isEmpty()) {
             for (String tranc : blockTrancSet) {
                 if (!transactionName.equals(tranc)) {
-                    waitForGraph.addEdge(transactionName, tranc);
-                    newEdgeAdded = true;
+                    addWaitEdge(transactionName, tranc);
                 }
             }
+            return false;
+        }
+        for (int siteID: siteIDs) {
+            markAccessed(t, siteID, varID);
         }
-        return suc;
-    }
 
-   /**
-    * Description: handle transaction write data instruction 
-    * Input: N/A
-    * Output: succeed or not
-    * Side effect:
-    * Print data tables of all sites(no matter down or up)
-    */
-    public boolean dump() {
-        for (DataManager dm : dms.values()) {
-            System.out.println(dm.toString());
+        if (isReplicatedData && replication != ReplicationProtocol.AVAILABLE_COPIES) {
+            ArrayList<Reply<int[]>> versionReplies = new ArrayList<Reply<int[]>>();
+            for (int siteID: siteIDs) {
+                versionReplies.add(sites.get(siteID).readVersionedAsync(varID, Integer.MAX_VALUE));
+            }
+            int[] newest = null;
+            for (Reply<int[]> reply: versionReplies) {
+                int[] version = reply.get();
+                if (version != null && (newest == null || version[0] > newest[0])) {
+                    newest = version;
+                }
+            }
+            val = newest[1];
+        } else {
+            for (int i = 0; i < siteIDs.size() && val == null; i++) {
+                Site dm = sites.get(siteIDs.get(i));
+                if (!isReplicatedData || dm.isReadable(varID)) {
+                    val = dm.read(transactionName, varID);
+                }
+            }
+            if (val == null) {
+                // No copy is readable since its site recovered, the update locks are kept meanwhile
+                return false;
+            }
         }
+        t.readCache.put(varID, val);
+        System.out.println(String.format("%s: %d", varName, val));
         return true;
     }
 
     /**
-     * Description: Perform a commit validation to see if the given transaction can be committed. If it is a read-write transaction, release all the locks it holds.
-     * Input: transaction name
+     * Description: handle transaction scan instruction, read a range of variables in variable ID order
+     * Input: transaction name, first and last variable name of the range
      * Output: succeed or not
-     * Side effect: 
-     * Print whether the given transaction is committed or aborted.
-     * Update lock tables of sites that the given transaction accessed.
-     * Update wait-for graph(remove edges related to the given transaction)
-     * If can commit, update data tables of sites that the given transaction accessed.
+     * Side effect:
+     * Read-write transactions take one range lock at each site the range is read from,
+     *      if blocked, add edge(s) to the wait-for graph, the scan is tried again at the next tick
+     * Read-only transactions read the range from the committed versions visible at their begin
+     * Print the variables in the format “x{number}: {val}”, one per line
+     * Add accessed sites to Transaction’s access sites set
+     * Abort a read-only transaction if no site can provide a valid version of a replicated variable
      */
-    public boolean end(String transactionName) {
-        // Check if the sites have been down after T accessed them
-        boolean commit = true;
-        Transaction t = this.transactions.get(transactionName);
-
-        // If this "begin" instruction of this T is blocked,
-        // then we will not find records of this T
+    public boolean scan(String transactionName, String fromVarName, String toVarName) {
+        Transaction t = transactions.get(transactionName);
         if (t == null) {
             return true;
         }
-        if (t.blockedInstrCnt > 0) {
-            return false;
+        int fromVarID = Math.max(1, Integer.parseInt(fromVarName.substring(1)));
+        int toVarID = Math.min(placement.varCount, Integer.parseInt(toVarName.substring(1)));
+        if (replication != ReplicationProtocol.AVAILABLE_COPIES
+            || (!t.isReadOnly && concurrencyControl != ConcurrencyControl.LOCKING)
+            || hasIncrementIn(t, fromVarID, toVarID)
+            || t.isolation == IsolationLevel.READ_COMMITTED)
+        {
+            return scanByReads(t, fromVarID, toVarID);
         }
 
-        for (Entry<Integer, Integer> entry: t.accessedSites.entrySet()) {
-            int siteID = entry.getKey();
-            int accessTime = entry.getValue();
-            if (this.siteStatusTable.get(siteID).lastDownTime > accessTime) {
-                commit = false;
+        TreeMap<Integer, Integer> values = new TreeMap<Integer, Integer>();
+        if (!t.isReadOnly) {
+            for (int varID = fromVarID; varID <= toVarID; varID++) {
+                Integer val = t.read(varID);
+                if (val != null) {
+                    values.put(varID, val);
+                }
+            }
+        }
+        t.lockQueued = false;
+        HashSet<Integer> triedSiteIDs = new HashSet<Integer>();
+        while (true) {
+            TreeSet<Integer> siteIDs = chooseScanSites(fromVarID, toVarID, values, triedSiteIDs);
+            if (siteIDs == null) {
+                return false;
+            }
+            if (siteIDs.isEmpty()) {
                 break;
             }
+            if (!scanSites(t, siteIDs, fromVarID, toVarID, values)) {
+                return false;
+            }
+            triedSiteIDs.addAll(siteIDs);
         }
-        if (commit) {
-            // If a T has write operations, then T must have accessed to and 
-            // hold write locks from all up sites at the moment of the write
-            // operation issued.
-            for (WriteRecord writeRec: t.writes) {
-                for (Integer siteID: writeRec.siteIDs) {
-                    DataManager dm = this.dms.get(siteID);
-                    boolean suc = dm.write(transactionName, writeRec.varID, writeRec.value);
-                    assert(suc == true);
+
+        if (values.size() < toVarID - fromVarID + 1) {
+            // Available copies: no up site holds a readable copy(or a valid version) of some replicated variables
+            if (t.isReadOnly) {
+                for (int varID = fromVarID; varID <= toVarID; varID++) {
+                    if (!values.containsKey(varID) && !canServeSnapshotLater(t, varID)) {
+                        scheduledAborts.put(transactionName, NO_VALID_VERSION_ABORT_MESSAGE);
+                        return true;
+                    }
                 }
             }
+            return false;
         }
-        for (int siteID: t.accessedSites.keySet()) {
-            DataManager dm = this.dms.get(siteID);
-            dm.releaseLocks(transactionName);
-        }
-        this.transactions.remove(transactionName);
-        waitForGraph.removeNode(transactionName);
-        if (commit) {
-            System.out.println(String.format("%s commits", transactionName));
-        } else {
-            System.out.println(String.format("%s aborts(%s)", transactionName, SITE_FAIL_ABORT_MESSAGE));
+        for (Entry<Integer, Integer> entry : values.entrySet()) {
+            System.out.println(String.format("x%d: %d", entry.getKey(), entry.getValue()));
         }
-
         return true;
     }
 
     /**
-     * Description: Abort one transaction
-     * Input: transaction name, abort reason message
+     * Description: choose the sites to read the variables of a range not read yet from
+     * Input: first and last variable ID of the range, values read so far, IDs of sites already read from
+     * Output: IDs of up sites, empty if no more site can be tried, null if the home site of a
+     * non-replicated variable is down
+     * Side effect: N/A
+     * A non-replicated variable is read at its home site. A replicated variable is read at a chosen site
+     * holding it if any, otherwise at the first up site holding it in placement order not read from yet,
+     * so that the range is read from as few sites as possible.
+     */
+    private TreeSet<Integer> chooseScanSites(int fromVarID, int toVarID, TreeMap<Integer, Integer> values,
+        HashSet<Integer> triedSiteIDs)
+    {
+        TreeSet<Integer> siteIDs = new TreeSet<Integer>();
+        for (int varID = fromVarID; varID <= toVarID; varID++) {
+            if (!values.containsKey(varID) && !placement.isReplicated(varID)) {
+                int siteID = placement.getHomeSite(varID);
+                if (siteStatusTable.get(siteID).status == RunningStatus.DOWN) {
+                    return null;
+                }
+                if (!triedSiteIDs.contains(siteID)) {
+                    siteIDs.add(siteID);
+                }
+            }
+        }
+        for (int varID = fromVarID; varID <= toVarID; varID++) {
+            if (values.containsKey(varID) || !placement.isReplicated(varID)) {
+                continue;
+            }
+            ArrayList<Integer> holders = placement.getSites(varID);
+            if (!Collections.disjoint(holders, siteIDs)) {
+                continue;
+            }
+            for (int siteID : holders) {
+                if (!triedSiteIDs.contains(siteID) && holdsUpCopy(siteID, varID)) {
+                    siteIDs.add(siteID);
+                    break;
+                }
+            }
+        }
+        return siteIDs;
+    }
+
+    /**
+     * Description: read a range of variables at several sites
+     * Input: transaction, IDs of sites, first and last variable ID of the range, values read so far
+     * Output: false if a range lock is blocked
+     * Side effect:
+     * Read-write transactions lock the range at every site, all requests are sent before waiting
+     *      for the replies, and a range lock is followed by the read of the range in the same round trip
+     * If blocked, add edge(s) to the wait-for graph and skip the scan until a queued request is granted,
+     *      the locks granted at other sites are kept
+     * Add the values not read yet to values, and accessed sites to Transaction’s access sites set
+     */
+    private boolean scanSites(Transaction t, TreeSet<Integer> siteIDs, int fromVarID, int toVarID,
+        TreeMap<Integer, Integer> values)
+    {
+        ArrayList<Reply<HashSet<String>>> lockReplies = new ArrayList<Reply<HashSet<String>>>();
+        ArrayList<Reply<TreeMap<Integer, Integer>>> replies = new ArrayList<Reply<TreeMap<Integer, Integer>>>();
+        for (int siteID : siteIDs) {
+            Site dm = sites.get(siteID);
+            if (t.isReadOnly) {
+                replies.add(dm.readRangeROAsync(fromVarID, toVarID, t.beginCommitSeq, t.beginTime));
+            } else {
+                lockReplies.add(dm.acquireRangeLockAsync(t.name, fromVarID, toVarID));
+                replies.add(dm.readRangeAsync(t.name, fromVarID, toVarID));
+            }
+        }
+        HashSet<String> blockTrancSet = new HashSet<String>();
+        int j = 0;
+        for (int siteID : lockReplies.isEmpty() ? Collections.<Integer>emptySet() : siteIDs) {
+            HashSet<String> siteBlockTrancSet = lockReplies.get(j++).get();
+            if (!siteBlockTrancSet.isEmpty()) {
+                blockTrancSet.addAll(siteBlockTrancSet);
+                t.queuedSites.add(siteID);
+            }
+        }
+        if (!blockTrancSet.isEmpty()) {
+            t.lockQueued = !isBlockedBySelf(t.name, blockTrancSet);
+            for (String tranc : blockTrancSet) {
+                if (!t.name.equals(tranc)) {
+                    addWaitEdge(t.name, tranc);
+                }
+            }
+            return false;
+        }
+
+        int i = 0;
+        for (int siteID : siteIDs) {
+            for (Entry<Integer, Integer> entry : replies.get(i++).get().entrySet()) {
+                int varID = entry.getKey();
+                if (!values.containsKey(varID)) {
+                    values.put(varID, entry.getValue());
+                    markAccessed(t, siteID, varID);
+                    if (!t.isReadOnly) {
+                        t.readCache.put(varID, entry.getValue());
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Description: handle a scan as reads of the variables of the range one at a time, used where reads
+     * take no read lock(OCC, SSI) or read several copies(primary copy, majority quorum)
+     * Input: transaction, first and last variable ID of the range
+     * Output: succeed or not
+     * Side effect: same as read for each variable, the variables read before a blocked one are
+     * read again when the scan is tried again
+     */
+    private boolean scanByReads(Transaction t, int fromVarID, int toVarID) {
+        for (int varID = fromVarID; varID <= toVarID; varID++) {
+            if (!read(t.name, "x" + varID)) {
+                return false;
+            }
+            if (scheduledAborts.containsKey(t.name)) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Description: handle transaction write data instruction
+     * Input: transaction name, variable name, the new variable value
+     * Output: succeed or not
+     * Side effect:
+     * Append this command to Transaction’s write command
+     * If acquire write locks success:
+     *      Notify all up sites to update its locks table
+     *      Add accessed site to Transaction’s access sites set
+     * If fail:
+     *      Add edge(s) to the wait-for graph
+     *      Append to the command buffer
+     *      Set check deck-lock to true to perform a deadlock at next tick
+     * Update the pointer of next available site
+     */
+    public boolean write(String transactionName, String varName, int val) { 
+        int varID = Integer.parseInt(varName.substring(1));
+        boolean suc = false;
+        Transaction t = this.transactions.get(transactionName);
+        if (t == null) {
+            return true;
+        }
+        int upCnt = this.getUpSiteCount(varID);
+        if (upCnt == 0) return false;
+        if (concurrencyControl == ConcurrencyControl.OCC) {
+            return writeOptimistic(t, varID, val);
+        }
+        // Reads see the local write from now on, and a queued write lock request gives up
+        // the read lock of this T(setPendingWrite)
+        t.readCache.remove(varID);
+        t.lockQueued = false;
+        boolean isReplicatedData = placement.isReplicated(varID);
+        if (isReplicatedData && replication != ReplicationProtocol.AVAILABLE_COPIES) {
+            return writeReplicated(t, varID, val);
+        }
+
+        HashSet<String> blockTrancSet = new HashSet<>();
+        if (isReplicatedData)
+        {
+            // Acquired write locks from every up site holding replicated variables,
+            // requests to all sites are sent before waiting for the replies
+            int acquireLockCnt = 0;
+            ArrayList<Reply<HashSet<String>>> replies = new ArrayList<Reply<HashSet<String>>>();
+            for (Entry<Integer, SiteStatus> entry: siteStatusTable.entrySet()) {
+                if (holdsUpCopy(entry.getKey(), varID)) {
+                    replies.add(sites.get(entry.getKey()).checkLockAsync(transactionName, varID, LockType.WRITE));
+                }
+            }
+            for (Reply<HashSet<String>> reply: replies) {
+                HashSet<String> blockTrancSetTmp = reply.get();
+                if (blockTrancSetTmp.isEmpty()) {
+                    acquireLockCnt++;
+                } else {
+                    blockTrancSet = blockTrancSetTmp;
+                }
+            }
+            replies.clear();
+            if (acquireLockCnt == upCnt) {
+                WriteRecord writeRec = new WriteRecord(varID, val);
+                for (Entry<Integer, SiteStatus> entry: siteStatusTable.entrySet()) {
+                    int siteID = entry.getKey();
+                    if (holdsUpCopy(siteID, varID))
+                    {
+                        replies.add(sites.get(siteID).acquireLockAsync(transactionName, varID, LockType.WRITE));
+                        writeRec.siteIDs.add(siteID);
+                        markAccessed(t, siteID, varID);
+                    }
+                }
+                for (Reply<HashSet<String>> reply: replies) {
+                    reply.get();
+                }
+
+                t.writes.add(writeRec);  // Write to local copy of T, write to site on commit
+                suc = true;
+            } else {
+                // Wait in the queue of every up site, this T is woken up
+                // if its own dropped read lock lets it go
+                t.lockQueued = true;
+                for (Entry<Integer, SiteStatus> entry: siteStatusTable.entrySet()) {
+                    int siteID = entry.getKey();
+                    if (holdsUpCopy(siteID, varID))
+                    {
+                        t.queuedSites.add(siteID);
+                        replies.add(sites.get(siteID).setPendingWriteAsync(transactionName, varID));
+                    }
+                }
+                for (Reply<HashSet<String>> reply: replies) {
+                    wakeLockWaiters(reply.get());
+                }
+            }
+        } else {
+            // Acquired write lock from the only site holding non-replicated variables
+            int siteID = placement.getHomeSite(varID);
+            Site dm = sites.get(siteID);
+            if (siteStatusTable.get(siteID).status == RunningStatus.UP) {
+                blockTrancSet = dm.acquireLock(transactionName, varID, LockType.WRITE);
+                if (blockTrancSet.isEmpty()) {
+                    WriteRecord writeRec = new WriteRecord(varID, val);
+                    writeRec.siteIDs.add(siteID);
+                    t.writes.add(writeRec);  // Write to local copy of T, write to site on commit
+                    markAccessed(t, siteID, varID);
+                    suc = true;
+                } else if (!isBlockedBySelf(transactionName, blockTrancSet)) {
+                    t.queuedSites.add(siteID);
+                    t.lockQueued = true;
+                }
+            }
+        }
+
+        if (!suc) {
+            for (String tranc : blockTrancSet) {
+                if (!transactionName.equals(tranc)) {
+                    addWaitEdge(transactionName, tranc);
+                }
+            }
+        } else {
+            // The written value replaces an earlier increment of this T
+            t.increments.remove(t.getIncrement(varID));
+            if (concurrencyControl == ConcurrencyControl.SSI) {
+                recordWriteConflicts(t, varID);
+            }
+        }
+        return suc;
+    }
+
+    /**
+     * Description: handle transaction add instruction
+     * Input: transaction name, variable name, delta
+     * Output: succeed or not
+     * Side effect:
+     * Fold the delta into an earlier write or add of this T to the same variable
+     * Otherwise acquire increment locks at the home site, or at every up site holding a readable copy of
+     * a replicated variable. Increment locks are shared by incrementers and conflict with reads and writes,
+     * the delta is added to the committed value on commit.
+     * Optimistic transactions, and replicated variables under primary copy or majority quorum, read the
+     * current value and write the sum instead
+     * If fail:
+     *      Add edge(s) to the wait-for graph
+     *      Wait in the lock queue of every blocking site
+     */
+    public boolean add(String transactionName, String varName, int delta) {
+        int varID = Integer.parseInt(varName.substring(1));
+        Transaction t = this.transactions.get(transactionName);
+        if (t == null) {
+            return true;
+        }
+        Integer localVal = t.read(varID);
+        if (localVal != null) {
+            return write(transactionName, varName, localVal + delta);
+        }
+        WriteRecord incrementRec = t.getIncrement(varID);
+        if (incrementRec != null) {
+            incrementRec.value += delta;
+            return true;
+        }
+        if (this.getUpSiteCount(varID) == 0) return false;
+        if (concurrencyControl == ConcurrencyControl.OCC) {
+            return addOptimistic(t, varID, delta);
+        }
+        t.readCache.remove(varID);
+        t.lockQueued = false;
+        boolean isReplicatedData = placement.isReplicated(varID);
+        if (isReplicatedData && replication != ReplicationProtocol.AVAILABLE_COPIES) {
+            // The write locks keep the newest version among the chosen sites current until commit
+            if (!writeReplicated(t, varID, 0)) {
+                return false;
+            }
+            WriteRecord writeRec = t.writes.get(t.writes.size() - 1);
+            ArrayList<Reply<int[]>> versionReplies = new ArrayList<Reply<int[]>>();
+            for (int siteID: writeRec.siteIDs) {
+                versionReplies.add(sites.get(siteID).readVersionedAsync(varID, Integer.MAX_VALUE));
+            }
+            int[] newest = null;
+            for (Reply<int[]> reply: versionReplies) {
+                int[] version = reply.get();
+                if (version != null && (newest == null || version[0] > newest[0])) {
+                    newest = version;
+                }
+            }
+            writeRec.value = newest[1] + delta;
+            return true;
+        }
+
+        // A recovered copy is not readable until it is written, a delta can not be added to its stale value
+        ArrayList<Integer> siteIDs = new ArrayList<Integer>();
+        if (isReplicatedData) {
+            for (Integer siteID: placement.getSites(varID)) {
+                if (holdsUpCopy(siteID, varID) && sites.get(siteID).isReadable(varID)) {
+                    siteIDs.add(siteID);
+                }
+            }
+        } else {
+            int siteID = placement.getHomeSite(varID);
+            if (siteStatusTable.get(siteID).status == RunningStatus.UP) {
+                siteIDs.add(siteID);
+            }
+        }
+        if (siteIDs.isEmpty()) {
+            return false;
+        }
+
+        ArrayList<Reply<HashSet<String>>> replies = new ArrayList<Reply<HashSet<String>>>();
+        for (int siteID: siteIDs) {
+            replies.add(sites.get(siteID).acquireLockAsync(transactionName, varID, LockType.INCREMENT));
+        }
+        HashSet<String> blockTrancSet = new HashSet<String>();
+        for (int i = 0; i < siteIDs.size(); i++) {
+            HashSet<String> blockTrancSetTmp = replies.get(i).get();
+            if (!blockTrancSetTmp.isEmpty() && !isBlockedBySelf(transactionName, blockTrancSetTmp)) {
+                t.queuedSites.add(siteIDs.get(i));
+                t.lockQueued = true;
+            }
+            blockTrancSet.addAll(blockTrancSetTmp);
+        }
+        if (!blockTrancSet.isEmpty()) {
+            for (String tranc : blockTrancSet) {
+                if (!transactionName.equals(tranc)) {
+                    addWaitEdge(transactionName, tranc);
+                }
+            }
+            return false;
+        }
+
+        incrementRec = new WriteRecord(varID, delta);
+        for (int siteID: siteIDs) {
+            incrementRec.siteIDs.add(siteID);
+            markAccessed(t, siteID, varID);
+        }
+        t.increments.add(incrementRec);  // Add to the committed value of the sites on commit
+        if (concurrencyControl == ConcurrencyControl.SSI) {
+            recordWriteConflicts(t, varID);
+        }
+        return true;
+    }
+
+    /**
+     * Description: buffer an add of an optimistic transaction as a write of the sum
+     * Input: transaction, variable ID, delta
+     * Output: succeed or not(blocked if no up site holds a readable copy)
+     * Side effect: record the version read for validation at commit time, like an optimistic read
+     */
+    private boolean addOptimistic(Transaction t, int varID, int delta) {
+        int siteID = -1;
+        if (placement.isReplicated(varID)) {
+            siteID = findNextSite(varID);
+        } else if (siteStatusTable.get(placement.getHomeSite(varID)).status == RunningStatus.UP) {
+            siteID = placement.getHomeSite(varID);
+        }
+        if (siteID == -1) {
+            return false;
+        }
+        Site dm = sites.get(siteID);
+        Integer val = dm.readLatest(varID);
+        if (val == null) {
+            return false;
+        }
+        int version = dm.getVersion(varID);
+        Integer seen = t.readSet.get(varID);
+        if (seen == null || version < seen) {
+            t.readSet.put(varID, version);
+        }
+        return writeOptimistic(t, varID, val + delta);
+    }
+
+    /**
+     * Description: turn the pending increment of a transaction into a write before it reads the variable
+     * Input: transaction, increment record
+     * Output: succeed or not
+     * Side effect:
+     * Upgrade the increment locks to write locks, which waits for the other incrementers to end
+     * Replace the increment with a write of the current value plus the delta
+     * If fail: add edge(s) to the wait-for graph, the read is tried again at the next tick
+     */
+    private boolean resolveIncrement(Transaction t, WriteRecord incrementRec) {
+        ArrayList<Integer> siteIDs = new ArrayList<Integer>();
+        for (int siteID: incrementRec.siteIDs) {
+            if (siteStatusTable.get(siteID).status == RunningStatus.UP) {
+                siteIDs.add(siteID);
+            }
+        }
+        if (siteIDs.isEmpty()) {
+            return false;
+        }
+        ArrayList<Reply<HashSet<String>>> replies = new ArrayList<Reply<HashSet<String>>>();
+        for (int siteID: siteIDs) {
+            replies.add(sites.get(siteID).checkLockAsync(t.name, incrementRec.varID, LockType.WRITE));
+        }
+        HashSet<String> blockTrancSet = new HashSet<String>();
+        for (Reply<HashSet<String>> reply: replies) {
+            blockTrancSet.addAll(reply.get());
+        }
+        blockTrancSet.remove(t.name);
+        if (!blockTrancSet.isEmpty()) {
+            for (String tranc : blockTrancSet) {
+                addWaitEdge(t.name, tranc);
+            }
+            return false;
+        }
+        replies.clear();
+        for (int siteID: siteIDs) {
+            replies.add(sites.get(siteID).acquireLockAsync(t.name, incrementRec.varID, LockType.WRITE));
+        }
+        for (Reply<HashSet<String>> reply: replies) {
+            reply.get();
+        }
+        Integer val = null;
+        for (int i = 0; i < siteIDs.size() && val == null; i++) {
+            val = sites.get(siteIDs.get(i)).readLatest(incrementRec.varID);
+        }
+        if (val == null) {
+            return false;
+        }
+        t.increments.remove(incrementRec);
+        incrementRec.value += val;
+        t.writes.add(incrementRec);
+        return true;
+    }
+
+    /**
+     * Description: check if a transaction has a pending increment of a variable in a range
+     * Input: transaction, first and last variable ID of the range
+     * Output: true if it has one
+     */
+    private boolean hasIncrementIn(Transaction t, int fromVarID, int toVarID) {
+        for (WriteRecord incrementRec: t.increments) {
+            if (incrementRec.varID >= fromVarID && incrementRec.varID <= toVarID) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Description: choose the sites to read or write a replicated variable at
+     * Input: variable ID, lock type of the access
+     * Output: IDs of up sites, null if not enough sites are up
+     * Side effect: N/A
+     * Primary copy uses the home site of the variable only. Majority quorum writes a majority of
+     * the sites holding the variable and reads enough of them to meet every write quorum,
+     * both in placement order from the home site.
+     */
+    private ArrayList<Integer> chooseReplicas(int varID, LockType lockType) {
+        ArrayList<Integer> holders = placement.getSites(varID);
+        ArrayList<Integer> replicas = new ArrayList<Integer>();
+        int siteCnt = holders.size();
+        int quorum = 1;
+        if (replication == ReplicationProtocol.QUORUM) {
+            int writeQuorum = siteCnt / 2 + 1;
+            quorum = lockType == LockType.WRITE ? writeQuorum : siteCnt - writeQuorum + 1;
+        } else {
+            siteCnt = 1;
+        }
+        for (int i = 0; i < siteCnt && replicas.size() < quorum; i++) {
+            int siteID = holders.get(i);
+            if (siteStatusTable.get(siteID).status == RunningStatus.UP) {
+                replicas.add(siteID);
+            }
+        }
+        return replicas.size() == quorum ? replicas : null;
+    }
+
+    /**
+     * Description: handle a read of a replicated variable under primary copy or majority quorum
+     * Input: transaction, variable name, variable ID
+     * Output: succeed or not
+     * Side effect:
+     * Read-write transactions lock every chosen site, and wait in the queue of the first blocked one
+     * Print the newest version among the chosen sites(the newest one up to its begin for read-only transactions)
+     * Add accessed sites to Transaction’s access sites set
+     */
+    private boolean readReplicated(Transaction t, String varName, int varID) {
+        t.lockQueued = false;
+        Integer val = t.isReadOnly ? null : t.read(varID);
+        if (val != null) {
+            System.out.println(String.format("%s: %d", varName, val));
+            return true;
+        }
+        ArrayList<Integer> replicas = chooseReplicas(varID, LockType.READ);
+        if (replicas == null) {
+            return false;
+        }
+
+        ArrayList<Reply<HashSet<String>>> replies = new ArrayList<Reply<HashSet<String>>>();
+        if (!t.isReadOnly) {
+            for (int siteID: replicas) {
+                replies.add(sites.get(siteID).checkLockAsync(t.name, varID, LockType.READ));
+            }
+            int waitSiteID = -1;
+            HashSet<String> blockTrancSet = null;
+            for (int i = 0; i < replicas.size(); i++) {
+                HashSet<String> blockTrancSetTmp = replies.get(i).get();
+                if (!blockTrancSetTmp.isEmpty() && waitSiteID == -1) {
+                    waitSiteID = replicas.get(i);
+                    blockTrancSet = blockTrancSetTmp;
+                }
+            }
+            if (waitSiteID != -1) {
+                if (!isBlockedBySelf(t.name, blockTrancSet)) {
+                    sites.get(waitSiteID).acquireLock(t.name, varID, LockType.READ);
+                    t.queuedSites.add(waitSiteID);
+                    t.lockQueued = true;
+                    for (String tranc : blockTrancSet) {
+                        if (!t.name.equals(tranc)) {
+                            addWaitEdge(t.name, tranc);
+                        }
+                    }
+                }
+                return false;
+            }
+            replies.clear();
+            for (int siteID: replicas) {
+                replies.add(sites.get(siteID).acquireLockAsync(t.name, varID, LockType.READ));
+            }
+            for (Reply<HashSet<String>> reply: replies) {
+                reply.get();
+            }
+        }
+
+        int maxCommitSeq = t.isReadOnly ? t.beginCommitSeq : Integer.MAX_VALUE;
+        ArrayList<Reply<int[]>> versionReplies = new ArrayList<Reply<int[]>>();
+        for (int siteID: replicas) {
+            versionReplies.add(sites.get(siteID).readVersionedAsync(varID, maxCommitSeq));
+        }
+        int[] newest = null;
+        for (int i = 0; i < replicas.size(); i++) {
+            int[] version = versionReplies.get(i).get();
+            if (version != null && (newest == null || version[0] > newest[0])) {
+                newest = version;
+            }
+            markAccessed(t, replicas.get(i), varID);
+        }
+        if (!t.isReadOnly && t.isolation == IsolationLevel.READ_COMMITTED) {
+            for (int siteID: replicas) {
+                wakeLockWaiters(sites.get(siteID).releaseReadLock(t.name, varID));
+            }
+        } else if (!t.isReadOnly) {
+            t.readCache.put(varID, newest[1]);
+        }
+        System.out.println(String.format("%s: %d", varName, newest[1]));
+        return true;
+    }
+
+    /**
+     * Description: handle a write of a replicated variable under primary copy or majority quorum
+     * Input: transaction, variable ID, the new variable value
+     * Output: succeed or not
+     * Side effect:
+     * Acquire write locks at every chosen site and write to them on commit
+     * If blocked, wait in the queue of every chosen site and add edge(s) to the wait-for graph
+     */
+    private boolean writeReplicated(Transaction t, int varID, int val) {
+        ArrayList<Integer> replicas = chooseReplicas(varID, LockType.WRITE);
+        if (replicas == null) {
+            return false;
+        }
+        ArrayList<Reply<HashSet<String>>> replies = new ArrayList<Reply<HashSet<String>>>();
+        for (int siteID: replicas) {
+            replies.add(sites.get(siteID).checkLockAsync(t.name, varID, LockType.WRITE));
+        }
+        HashSet<String> blockTrancSet = new HashSet<String>();
+        for (Reply<HashSet<String>> reply: replies) {
+            blockTrancSet.addAll(reply.get());
+        }
+        replies.clear();
+
+        if (blockTrancSet.isEmpty()) {
+            WriteRecord writeRec = new WriteRecord(varID, val);
+            for (int siteID: replicas) {
+                replies.add(sites.get(siteID).acquireLockAsync(t.name, varID, LockType.WRITE));
+                writeRec.siteIDs.add(siteID);
+                markAccessed(t, siteID, varID);
+            }
+            for (Reply<HashSet<String>> reply: replies) {
+                reply.get();
+            }
+            t.writes.add(writeRec);  // Write to local copy of T, write to sites on commit
+            if (concurrencyControl == ConcurrencyControl.SSI) {
+                recordWriteConflicts(t, varID);
+            }
+            return true;
+        }
+
+        t.lockQueued = true;
+        for (int siteID: replicas) {
+            t.queuedSites.add(siteID);
+            replies.add(sites.get(siteID).setPendingWriteAsync(t.name, varID));
+        }
+        for (Reply<HashSet<String>> reply: replies) {
+            wakeLockWaiters(reply.get());
+        }
+        for (String tranc : blockTrancSet) {
+            if (!t.name.equals(tranc)) {
+                addWaitEdge(t.name, tranc);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Description: check if a down site may provide a valid version of a replicated variable to
+     * a snapshot read after it recovers, which is true if it holds the variable and failed after the
+     * transaction began
+     * Input: transaction, variable ID
+     * Output: true if the read should wait for recovery
+     * Side effect: N/A
+     */
+    private boolean canServeSnapshotLater(Transaction t, int varID) {
+        for (int siteID: placement.getSites(varID)) {
+            SiteStatus status = siteStatusTable.get(siteID);
+            if (status.status == RunningStatus.DOWN && status.lastDownTime > t.beginTime) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Description: SSI, record a snapshot read and the rw-antidependencies it creates
+     * Input: reader transaction, variable ID
+     * Output: void
+     * Side effect:
+     * Add the reader to the SIREAD records of the variable
+     * Mark reader -rw-> writer for every concurrent T which wrote or holds a write of the variable
+     */
+    private void recordSnapshotRead(Transaction reader, int varID) {
+        HashSet<Transaction> readers = siReadTable.get(varID);
+        if (readers == null) {
+            readers = new HashSet<Transaction>();
+            siReadTable.put(varID, readers);
+        }
+        readers.add(reader);
+
+        for (Transaction writer: transactions.values()) {
+            if (writer != reader && !writer.isReadOnly
+                && (writer.read(varID) != null || writer.getIncrement(varID) != null))
+            {
+                markConflict(reader, writer);
+            }
+        }
+        for (CommitRecord commitRec: commitLog) {
+            if (commitRec.commitSeq > reader.beginCommitSeq && commitRec.varIDs.contains(varID)) {
+                markConflict(reader, commitRec.transaction);
+            }
+        }
+    }
+
+    /**
+     * Description: SSI, record the rw-antidependencies created by a granted write
+     * Input: writer transaction, variable ID
+     * Output: void
+     * Side effect: Mark reader -rw-> writer for every concurrent T which read the variable from its snapshot
+     */
+    private void recordWriteConflicts(Transaction writer, int varID) {
+        HashSet<Transaction> readers = siReadTable.get(varID);
+        if (readers == null) {
+            return;
+        }
+        for (Transaction reader: readers) {
+            boolean isConcurrent = reader.commitSeq == 0 || reader.commitSeq > writer.beginCommitSeq;
+            if (reader != writer && isConcurrent) {
+                markConflict(reader, writer);
+            }
+        }
+    }
+
+    /**
+     * Description: SSI, mark a rw-antidependency from reader to writer
+     * Input: reader transaction, writer transaction
+     * Output: void
+     * Side effect:
+     * Add the conflict edge to both transactions
+     * Doom the active one if the other committed as a pivot of a dangerous structure
+     */
+    private void markConflict(Transaction reader, Transaction writer) {
+        reader.outConflicts.add(writer);
+        writer.inConflicts.add(reader);
+        if (writer.commitSeq > 0 && hasLiveConflict(writer.outConflicts)) {
+            reader.doomed = true;
+        }
+        if (reader.commitSeq > 0 && hasLiveConflict(reader.inConflicts)) {
+            writer.doomed = true;
+        }
+    }
+
+    /**
+     * Description: SSI, check if any transaction of a conflict set is active or committed
+     * Input: conflict set
+     * Output: true if some transaction in the set has not aborted
+     * Side effect: N/A
+     */
+    private boolean hasLiveConflict(HashSet<Transaction> conflicts) {
+        for (Transaction other: conflicts) {
+            if (other.commitSeq > 0 || transactions.get(other.name) == other) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Description: buffer a write of an optimistic transaction without acquiring any lock
+     * Input: transaction, variable ID, the new variable value
+     * Output: succeed or not(blocked if the site of a non-replicated variable is down)
+     * Side effect:
+     * Append this command to Transaction’s write command with all up sites holding the variable
+     * Add accessed sites to Transaction’s access sites set
+     */
+    private boolean writeOptimistic(Transaction t, int varID, int val) {
+        WriteRecord writeRec = new WriteRecord(varID, val);
+        if (placement.isReplicated(varID)) {
+            for (Integer siteID: placement.getSites(varID)) {
+                if (siteStatusTable.get(siteID).status == RunningStatus.UP) {
+                    writeRec.siteIDs.add(siteID);
+                }
+            }
+        } else {
+            int siteID = placement.getHomeSite(varID);
+            if (siteStatusTable.get(siteID).status == RunningStatus.DOWN) {
+                return false;
+            }
+            writeRec.siteIDs.add(siteID);
+        }
+        for (Integer siteID: writeRec.siteIDs) {
+            markAccessed(t, siteID, varID);
+        }
+        t.writes.add(writeRec);
+        return true;
+    }
+
+   /**
+    * Description: handle transaction write data instruction 
+    * Input: N/A
+    * Output: succeed or not
+    * Side effect:
+    * Print data tables of all sites(no matter down or up)
+    */
+    public boolean dump() {
+        for (Site site : sites.values()) {
+            System.out.println(site.queryState());
+        }
+        return true;
+    }
+
+    /**
+     * Description: Perform a commit validation to see if the given transaction can be committed. If it is a read-write transaction, release all the locks it holds.
+     * Input: transaction name
+     * Output: succeed or not
+     * Side effect: 
+     * Print whether the given transaction is committed or aborted.
+     * Update lock tables of sites that the given transaction accessed.
+     * Update wait-for graph(remove edges related to the given transaction)
+     * Validate the read set of an optimistic transaction against transactions committed after it began.
+     * If can commit, update data tables of sites that the given transaction accessed.
+     */
+    public boolean end(String transactionName) {
+        // Check if the sites have been down after T accessed them
+        boolean commit = true;
+        Transaction t = this.transactions.get(transactionName);
+
+        // If this "begin" instruction of this T is blocked,
+        // then we will not find records of this T
+        if (t == null) {
+            return true;
+        }
+        if (t.blockedInstrCnt > 0) {
+            return false;
+        }
+
+        String abortMessage = SITE_FAIL_ABORT_MESSAGE;
+        for (Entry<Integer, Integer> entry: t.accessedSites.entrySet()) {
+            int siteID = entry.getKey();
+            int accessTime = entry.getValue();
+            if (this.siteStatusTable.get(siteID).lastDownTime > accessTime) {
+                commit = false;
+                break;
+            }
+        }
+        boolean isOptimistic = !t.isReadOnly && concurrencyControl == ConcurrencyControl.OCC;
+        if (commit && isOptimistic && !validate(t)) {
+            commit = false;
+            abortMessage = VALIDATION_ABORT_MESSAGE;
+        }
+        if (commit && !t.isReadOnly && concurrencyControl == ConcurrencyControl.SSI) {
+            if (hasConcurrentUpdate(t)) {
+                commit = false;
+                abortMessage = WRITE_CONFLICT_ABORT_MESSAGE;
+            } else if (t.doomed || (hasLiveConflict(t.inConflicts) && hasLiveConflict(t.outConflicts))) {
+                commit = false;
+                abortMessage = DANGEROUS_STRUCTURE_ABORT_MESSAGE;
+            }
+        }
+        if (commit && !t.isReadOnly && groupCommitWindow > 0 && concurrencyControl == ConcurrencyControl.LOCKING) {
+            // Write locks are kept until the group is applied, so no one sees the writes before they commit
+            if (commitGroup.isEmpty()) {
+                commitGroupStart = ticks;
+            }
+            commitGroup.add(t);
+            return true;
+        }
+        if (commit && !t.isReadOnly) {
+            int version = ++commitSeq;
+            t.commitSeq = version;
+            CommitRecord commitRec = new CommitRecord(version, t);
+            // If a T has write operations, then T must have accessed to and 
+            // hold write locks from all up sites at the moment of the write
+            // operation issued.
+            // Commit writes to all sites are sent before waiting for any reply
+            ArrayList<Reply<Boolean>> writeReplies = new ArrayList<Reply<Boolean>>();
+            for (WriteRecord writeRec: t.writes) {
+                for (Integer siteID: writeRec.siteIDs) {
+                    Site dm = this.sites.get(siteID);
+                    if (isOptimistic) {
+                        dm.applyWrite(writeRec.varID, writeRec.value, version, ticks);
+                    } else {
+                        writeReplies.add(dm.writeAsync(transactionName, writeRec.varID, writeRec.value, version, ticks));
+                    }
+                }
+                if (replication == ReplicationProtocol.PRIMARY_COPY && placement.isReplicated(writeRec.varID)) {
+                    // Other up replicas apply the write asynchronously, the commit does not wait for them
+                    for (Integer siteID: placement.getSites(writeRec.varID)) {
+                        if (holdsUpCopy(siteID, writeRec.varID) && !writeRec.siteIDs.contains(siteID)) {
+                            sites.get(siteID).applyWrite(writeRec.varID, writeRec.value, version, ticks);
+                        }
+                    }
+                }
+                commitRec.varIDs.add(writeRec.varID);
+            }
+            for (WriteRecord incrementRec: t.increments) {
+                for (Integer siteID: incrementRec.siteIDs) {
+                    writeReplies.add(sites.get(siteID).incrementAsync(transactionName, incrementRec.varID,
+                        incrementRec.value, version, ticks));
+                }
+                commitRec.varIDs.add(incrementRec.varID);
+            }
+            for (Reply<Boolean> reply: writeReplies) {
+                boolean suc = reply.get();
+                assert(suc == true);
+            }
+            if (concurrencyControl != ConcurrencyControl.LOCKING) {
+                commitLog.add(commitRec);
+            }
+            if (checkpointDir != null) {
+                for (WriteRecord writeRec: t.writes) {
+                    for (Integer siteID: writeRec.siteIDs) {
+                        sites.get(siteID).flushLog();
+                    }
+                }
+                for (WriteRecord incrementRec: t.increments) {
+                    for (Integer siteID: incrementRec.siteIDs) {
+                        sites.get(siteID).flushLog();
+                    }
+                }
+                if (commitSeq % checkpointInterval == 0) {
+                    checkpoint();
+                }
+            }
+        }
+        releaseLocks(t);
+        unindexAccesses(t);
+        this.transactions.remove(transactionName);
+        TransactionIDs.release(transactionName);
+        waitForGraph.removeNode(transactionName);
+        if (concurrencyControl != ConcurrencyControl.LOCKING) {
+            pruneCommitLog();
+        }
+        if (commit) {
+            committedOperations += t.work;
+            System.out.println(String.format("%s commits", transactionName));
+        } else {
+            abortCounts.put(transactionName, abortCounts.getOrDefault(transactionName, 0) + 1);
+            System.out.println(String.format("%s aborts(%s)", transactionName, abortMessage));
+            LinkedList<String> replay = new LinkedList<String>();
+            replay.add(String.format("end(%s)", transactionName));
+            scheduleRetry(t, replay);
+        }
+        if (simulator != null) {
+            simulator.endTransaction(transactionName, commit);
+        }
+
+        return true;
+    }
+
+    /**
+     * Description: commit the transactions of the open commit group together
+     * Input: N/A
+     * Output: void
+     * Side effect:
+     * Number the transactions in the order they ended
+     * Apply the writes of the whole group to each site in one pass, and flush the redo log of each
+     * written site once
+     * Release the locks of the whole group at once, then print that the transactions commit
+     */
+    private void flushCommitGroup() {
+        if (commitGroup.isEmpty()) {
+            return;
+        }
+        int firstSeq = commitSeq + 1;
+        for (Transaction t: commitGroup) {
+            t.commitSeq = ++commitSeq;
+        }
+        ArrayList<Reply<Boolean>> writeReplies = new ArrayList<Reply<Boolean>>();
+        for (Entry<Integer, Site> entry: sites.entrySet()) {
+            int siteID = entry.getKey();
+            Site site = entry.getValue();
+            boolean written = false;
+            for (Transaction t: commitGroup) {
+                for (WriteRecord writeRec: t.writes) {
+                    if (writeRec.siteIDs.contains(siteID)) {
+                        writeReplies.add(site.writeAsync(t.name, writeRec.varID, writeRec.value, t.commitSeq, ticks));
+                        written = true;
+                    } else if (replication == ReplicationProtocol.PRIMARY_COPY && placement.isReplicated(writeRec.varID)
+                        && holdsUpCopy(siteID, writeRec.varID))
+                    {
+                        site.applyWrite(writeRec.varID, writeRec.value, t.commitSeq, ticks);
+                    }
+                }
+                for (WriteRecord incrementRec: t.increments) {
+                    if (incrementRec.siteIDs.contains(siteID)) {
+                        writeReplies.add(site.incrementAsync(t.name, incrementRec.varID, incrementRec.value,
+                            t.commitSeq, ticks));
+                        written = true;
+                    }
+                }
+            }
+            if (written && checkpointDir != null) {
+                site.flushLog();
+            }
+        }
+        for (Reply<Boolean> reply: writeReplies) {
+            boolean suc = reply.get();
+            assert(suc == true);
+        }
+        if (checkpointDir != null && commitSeq / checkpointInterval > (firstSeq - 1) / checkpointInterval) {
+            checkpoint();
+        }
+
+        ArrayList<Transaction> group = commitGroup;
+        commitGroup = new ArrayList<Transaction>();
+        releaseLocks(group);
+        for (Transaction t: group) {
+            unindexAccesses(t);
+            this.transactions.remove(t.name);
+            TransactionIDs.release(t.name);
+            waitForGraph.removeNode(t.name);
+            committedOperations += t.work;
+            System.out.println(String.format("%s commits", t.name));
+            if (simulator != null) {
+                simulator.endTransaction(t.name, true);
+            }
+        }
+    }
+
+    /**
+     * Description: backward validation of an optimistic transaction
+     * Input: transaction
+     * Output: true if no transaction committed after this T began overwrote a version this T read
+     * Side effect: N/A
+     */
+    private boolean validate(Transaction t) {
+        for (CommitRecord commitRec: commitLog) {
+            if (commitRec.commitSeq <= t.beginCommitSeq) {
+                continue;
+            }
+            for (Integer varID: commitRec.varIDs) {
+                Integer version = t.readSet.get(varID);
+                if (version != null && commitRec.commitSeq > version) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Description: SSI first-committer-wins check
+     * Input: transaction
+     * Output: true if a variable this T wrote has been committed by another T after this T began
+     * Side effect: N/A
+     */
+    private boolean hasConcurrentUpdate(Transaction t) {
+        for (WriteRecord writeRec: t.writes) {
+            for (Integer siteID: writeRec.siteIDs) {
+                if (sites.get(siteID).getVersion(writeRec.varID) > t.beginCommitSeq) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Description: drop commit records and SIREAD records which can not conflict with any active transaction
+     * Input: N/A
+     * Output: void
+     * Side effect:
+     * Remove commit records committed before every active transaction began
+     * Remove SIREAD records of aborted transactions and of transactions committed before every active transaction began
+     */
+    private void pruneCommitLog() {
+        int minBeginSeq = commitSeq;
+        for (Transaction t: transactions.values()) {
+            minBeginSeq = Math.min(minBeginSeq, t.beginCommitSeq);
+        }
+        while (!commitLog.isEmpty() && commitLog.getFirst().commitSeq <= minBeginSeq) {
+            commitLog.removeFirst();
+        }
+
+        Iterator<HashSet<Transaction>> it = siReadTable.values().iterator();
+        while (it.hasNext()) {
+            HashSet<Transaction> readers = it.next();
+            Iterator<Transaction> readerIt = readers.iterator();
+            while (readerIt.hasNext()) {
+                Transaction reader = readerIt.next();
+                boolean isActive = transactions.get(reader.name) == reader;
+                if (!isActive && reader.commitSeq <= minBeginSeq) {
+                    readerIt.remove();
+                }
+            }
+            if (readers.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Description: Abort one transaction
+     * Input: transaction name, abort reason message
      * Output: void
      * Side effect: 
      * Print whether the given transaction is  aborted.
@@ -455,23 +1945,135 @@ public class TransactionManager {
      */
     private void abort(String transactionName, String message) {
         Transaction t = this.transactions.get(transactionName);
-        for (int siteID: t.accessedSites.keySet()) {
-            DataManager dm = this.dms.get(siteID);
-            dm.releaseLocks(transactionName);
+        releaseLocks(t);
+        removeLockWait(transactionName);
+
+        // Remove buffered instructions related to this aborted Transaction
+        // Keep the cursor of run and the count of untried instructions in step with the removals
+        LinkedList<String> replay = new LinkedList<String>();
+        Iterator<String> it = instructionBuffer.iterator();
+        int index = 0;
+        while (it.hasNext()) {
+            String instr = it.next();
+            if (instr.contains(transactionName)){
+                if (index >= instructionBuffer.size() - untriedInstrCnt) {
+                    untriedInstrCnt -= 1;
+                }
+                if (index < bufferCursor) {
+                    bufferCursor -= 1;
+                }
+                it.remove();
+                if (transactionName.equals(getTransactionName(instr))) {
+                    replay.add(instr);
+                }
+            } else {
+                index += 1;
+            }
+        }
+
+        waitForGraph.removeNode(transactionName);
+        unindexAccesses(t);
+        this.transactions.remove(transactionName);
+        TransactionIDs.release(transactionName);
+        abortCounts.put(transactionName, abortCounts.getOrDefault(transactionName, 0) + 1);
+        if (concurrencyControl != ConcurrencyControl.LOCKING) {
+            pruneCommitLog();
+        }
+        System.out.println(String.format("%s aborts(%s)", transactionName, message));
+        if (simulator != null) {
+            simulator.endTransaction(transactionName, false);
+        }
+        scheduleRetry(t, replay);
+    }
+
+    /**
+     * Description: schedule the replay of an aborted transaction if auto-retry is enabled
+     * Input: aborted transaction, its instructions not done yet
+     * Output: void
+     * Side effect:
+     * Replay the begin, reads and writes of the transaction followed by the instructions not done yet,
+     * after a backoff doubled on every abort of the transaction
+     * Give up once the transaction aborted more often than the retry limit
+     */
+    private void scheduleRetry(Transaction t, LinkedList<String> pending) {
+        if (retryLimit == 0) {
+            return;
+        }
+        int attempt = abortCounts.get(t.name);
+        if (attempt > retryLimit) {
+            retriesGivenUp += 1;
+            System.out.println(String.format("%s gives up after %d retries", t.name, retryLimit));
+            return;
+        }
+        LinkedList<String> replay = new LinkedList<String>();
+        if (t.isolation != IsolationLevel.SERIALIZABLE) {
+            replay.add(String.format("begin(%s, %s)", t.name, t.isolation.name().toLowerCase().replace('_', '-')));
+        } else {
+            replay.add(String.format("%s(%s)", t.isReadOnly ? "beginRO" : "begin", t.name));
         }
+        replay.addAll(t.issued);
+        replay.addAll(pending);
+        int backoff = retryBackoff << (attempt - 1);
+        retryInstructions.put(t.name, replay);
+        retryTicks.put(t.name, ticks + backoff);
+        System.out.println(String.format("%s retries in %d ticks", t.name, backoff));
+    }
 
-        // Remove buffered instructions related to this aborted Transaction
-        Iterator<String> it = instructionBuffer.iterator();
+    /**
+     * Description: start replaying transactions whose backoff is over
+     * Input: N/A
+     * Output: void
+     * Side effect: their instructions are read one per tick like new input
+     */
+    private void startRetries() {
+        Iterator<Entry<String, Integer>> it = retryTicks.entrySet().iterator();
         while (it.hasNext()) {
-            String instr = it.next();
-            if (instr.contains(transactionName)){
+            Entry<String, Integer> entry = it.next();
+            if (entry.getValue() <= ticks) {
+                replayQueue.addAll(retryInstructions.remove(entry.getKey()));
                 it.remove();
             }
         }
+    }
 
-        waitForGraph.removeNode(transactionName);
-        this.transactions.remove(transactionName);
-        System.out.println(String.format("%s aborts(%s)", transactionName, message));
+    /**
+     * Description: get the transaction an instruction belongs to
+     * Input: instruction
+     * Output: transaction name, null if the instruction is not one of a transaction
+     */
+    private static String getTransactionName(String instruction) {
+        String[] tokens = instruction.replaceAll("\\)", "").split("\\(");
+        if (tokens.length < 2) {
+            return null;
+        }
+        switch (tokens[0]) {
+            case "begin":
+            case "beginRO":
+            case "R":
+            case "RU":
+            case "W":
+            case "ADD":
+            case "SCAN":
+            case "end":
+                return tokens[1].replaceAll(" ", "").split(",")[0];
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Description: abort transactions scheduled for abort while executing an instruction
+     * Input: N/A
+     * Output: void
+     * Side effect: abort each scheduled transaction that is still active
+     */
+    private void runScheduledAborts() {
+        for (Entry<String, String> entry: scheduledAborts.entrySet()) {
+            if (transactions.containsKey(entry.getKey())) {
+                abort(entry.getKey(), entry.getValue());
+            }
+        }
+        scheduledAborts.clear();
     }
 
     /**
@@ -481,10 +2083,31 @@ public class TransactionManager {
      * Side effect: 
      * Set the status of the given site as down in the site status table
      * Notify the given site to down
+     * Wake up all instructions waiting for a lock
      */
     public boolean fail(Integer siteID) {
+        // Transactions of the open commit group have already decided to commit
+        flushCommitGroup();
         siteStatusTable.put(siteID, new SiteStatus(RunningStatus.DOWN, ticks));
-        dms.get(siteID).fail();
+        sites.get(siteID).fail(ticks);
+        HashSet<String> accessors = siteAccessors.remove(siteID);
+        if (accessors != null) {
+            for (String tName: accessors) {
+                Transaction t = transactions.get(tName);
+                if (t == null) {
+                    continue;
+                }
+                // Read locks at the failed site are lost
+                t.readCache.clear();
+                if (eagerAbort) {
+                    // This T can not commit any more, release its locks at other sites now
+                    scheduledAborts.put(tName, SITE_FAIL_ABORT_MESSAGE);
+                }
+            }
+        }
+
+        // Lock queues of the failed site are erased, let every waiting instruction retry
+        removeAllLockWaits();
         return true;
     }
 
@@ -495,11 +2118,279 @@ public class TransactionManager {
      * Side effect:
      * Set the status of the given site as up
      * Notify the given site to recover
+     * Wake up all instructions waiting for a lock, so that waiting writers queue up at the recovered site
      */
     public boolean recover(Integer siteID) {
         int lastDownTime = siteStatusTable.get(siteID).lastDownTime;
         siteStatusTable.put(siteID, new SiteStatus(RunningStatus.UP, lastDownTime));
-        dms.get(siteID).recover();
+        sites.get(siteID).recover();
+        removeAllLockWaits();
+        return true;
+    }
+
+    /**
+     * Description: send requests to another set of sites, e.g. sites running in other processes
+     * Input: sites with the same IDs as the current ones
+     * Output: void
+     * Side effect: close the current sites, in-process DMs are no longer used
+     */
+    public void useSites(HashMap<Integer, Site> sites) {
+        close();
+        this.sites = sites;
+        this.dms = new HashMap<Integer, DataManager>();
+        if (simulator != null) {
+            enableSimulation(simulator);
+        }
+    }
+
+    /**
+     * Description: choose the storage engine of the sites, must be called before any instruction runs
+     * Input: storage engine name
+     * Output: void
+     * Side effect: recreate the in-process sites with the storage engine
+     */
+    public void setStorage(String storage) {
+        this.storage = storage;
+        setPlacement(placement);
+    }
+
+    /**
+     * Description: place variables by a placement map, must be called before any instruction runs
+     * Input: placement map
+     * Output: void
+     * Side effect: recreate the in-process sites with the new placement, restore them again from
+     * the checkpoint directory if checkpoints are enabled
+     */
+    public void setPlacement(PlacementMap placement) {
+        if (dms.size() != sites.size()) {
+            throw new IllegalStateException("Placement of sites in other processes is fixed when they are launched");
+        }
+        this.placement = placement;
+        for (Integer siteID : dms.keySet()) {
+            DataManager dm = new DataManager(siteID, placement, storage);
+            RedoLog redoLog = dms.put(siteID, dm).redoLog;
+            if (redoLog != null) {
+                try {
+                    redoLog.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            sites.put(siteID, dm);
+        }
+        if (checkpointDir != null) {
+            enableCheckpoints(checkpointDir);
+        }
+        if (simulator != null) {
+            enableSimulation(simulator);
+        }
+    }
+
+    /**
+     * Description: send requests to the sites through a simulated network
+     * Input: network simulator
+     * Output: void
+     * Side effect: wrap every site into a SimulatedSite, sites keep running in process or remotely
+     */
+    public void enableSimulation(NetworkSimulator simulator) {
+        this.simulator = simulator;
+        for (Entry<Integer, Site> entry: sites.entrySet()) {
+            entry.setValue(new SimulatedSite(entry.getValue(), simulator));
+        }
+    }
+
+    /**
+     * Description: close the connections to all sites and the trace
+     * Input: N/A
+     * Output: void
+     */
+    public void close() {
+        for (Site site: sites.values()) {
+            site.close();
+        }
+        if (trace != null) {
+            try {
+                trace.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Description: move the copy of a variable from one site to another while transactions keep running
+     * Input: variable name, ID of the site holding the copy, ID of the site taking it over
+     * Output: succeed or not(wait until both sites are up)
+     * Side effect:
+     * Hand the value, committed history, locks and waiting requests of the copy over to the new site
+     * Route later accesses to the new site, which takes the place of the old one in the placement
+     * Transactions holding or waiting for a lock of the copy release it at the new site, and
+     * write to the new site on commit
+     * Take a checkpoint if enabled, since the redo log of the new site misses the history
+     */
+    public boolean migrate(String varName, int fromSiteID, int toSiteID) {
+        int varID = Integer.parseInt(varName.substring(1));
+        if (!placement.isStoredAt(varID, fromSiteID) || placement.isStoredAt(varID, toSiteID)) {
+            System.out.println(String.format("Cannot move %s from site %d to site %d", varName, fromSiteID, toSiteID));
+            return true;
+        }
+        if (siteStatusTable.get(fromSiteID).status == RunningStatus.DOWN
+            || siteStatusTable.get(toSiteID).status == RunningStatus.DOWN)
+        {
+            return false;
+        }
+
+        VariableState state = sites.get(fromSiteID).exportVariable(varID);
+        sites.get(toSiteID).importVariable(varID, state);
+        placement.move(varID, fromSiteID, toSiteID);
+
+        HashSet<String> lockTrancSet = new HashSet<String>();
+        if (state.lockEntry != null) {
+            lockTrancSet.add(state.lockEntry.getWriter());
+            lockTrancSet.addAll(state.lockEntry.getReaders());
+            for (LockRequest request : state.lockEntry.getWaiters()) {
+                lockTrancSet.add(request.transactionName);
+            }
+        }
+        for (Transaction t : transactions.values()) {
+            for (WriteRecord writeRec : t.writes) {
+                if (writeRec.varID == varID && writeRec.siteIDs.remove(fromSiteID)) {
+                    writeRec.siteIDs.add(toSiteID);
+                }
+            }
+            for (WriteRecord incrementRec : t.increments) {
+                if (incrementRec.varID == varID && incrementRec.siteIDs.remove(fromSiteID)) {
+                    incrementRec.siteIDs.add(toSiteID);
+                }
+            }
+            if (lockTrancSet.contains(t.name)) {
+                // Locks at the new site are lost if it fails from now on
+                t.queuedSites.add(toSiteID);
+                if (!t.accessedSites.containsKey(toSiteID)) {
+                    t.accessedSites.put(toSiteID, ticks);
+                    indexAccess(t, toSiteID);
+                }
+            }
+        }
+        HashMap<Integer, Integer> load = siteLoad.get(fromSiteID);
+        if (load != null) {
+            load.remove(varID);
+        }
+        checkpoint();
+        System.out.println(String.format("%s moves from site %d to site %d", varName, fromSiteID, toSiteID));
+        return true;
+    }
+
+    /**
+     * Description: move a hot variable off the most loaded site
+     * Input: N/A
+     * Output: succeed or not
+     * Side effect:
+     * Compare the accesses of up sites since the last rebalance, move the most accessed variable of
+     * the busiest site, which narrows the gap, to the least busy site not holding it
+     * Reset the access counters
+     */
+    public boolean rebalance() {
+        int hotSiteID = -1;
+        int coldSiteID = -1;
+        int maxLoad = Integer.MIN_VALUE;
+        int minLoad = Integer.MAX_VALUE;
+        for (Entry<Integer, SiteStatus> entry: siteStatusTable.entrySet()) {
+            if (entry.getValue().status == RunningStatus.DOWN) {
+                continue;
+            }
+            int load = 0;
+            for (int cnt : siteLoad.getOrDefault(entry.getKey(), new HashMap<Integer, Integer>()).values()) {
+                load += cnt;
+            }
+            if (load > maxLoad) {
+                maxLoad = load;
+                hotSiteID = entry.getKey();
+            }
+            if (load < minLoad) {
+                minLoad = load;
+                coldSiteID = entry.getKey();
+            }
+        }
+
+        int hotVarID = -1;
+        int hotVarCnt = 0;
+        if (hotSiteID != -1 && hotSiteID != coldSiteID) {
+            for (Entry<Integer, Integer> entry: siteLoad.getOrDefault(hotSiteID, new HashMap<Integer, Integer>()).entrySet()) {
+                int cnt = entry.getValue();
+                if (cnt > hotVarCnt && cnt < maxLoad - minLoad && !placement.isStoredAt(entry.getKey(), coldSiteID)) {
+                    hotVarID = entry.getKey();
+                    hotVarCnt = cnt;
+                }
+            }
+        }
+        siteLoad.clear();
+        if (hotVarID != -1) {
+            migrate("x" + hotVarID, hotSiteID, coldSiteID);
+        }
+        return true;
+    }
+
+    /**
+     * Description: restore sites from checkpoints and redo logs in a directory, then keep logging
+     * committed writes and taking checkpoints there
+     * Input: checkpoint directory
+     * Output: void
+     * Side effect:
+     * Load the saved placement, which holds the moves of variables
+     * Load the checkpoint of each site by memory-mapping it and replay the tail of its redo log
+     * Move the commit sequence number and time past the restored state
+     * Attach a redo log to each site
+     */
+    public void enableCheckpoints(Path dir) {
+        try {
+            Files.createDirectories(dir);
+            Path placementPath = dir.resolve(PLACEMENT_FILE);
+            if (Files.exists(placementPath)) {
+                placement.load(placementPath);
+            }
+            for (DataManager dm: dms.values()) {
+                Path checkpointPath = dir.resolve(String.format("site-%d.ckpt", dm.siteID));
+                Path logPath = dir.resolve(String.format("site-%d.log", dm.siteID));
+                int[] restored = new int[] { 0, 0 };
+                if (Files.exists(checkpointPath)) {
+                    restored = Checkpoint.load(dm, checkpointPath);
+                }
+                restored = RedoLog.replay(dm, logPath, restored[0], restored[1]);
+                commitSeq = Math.max(commitSeq, restored[0]);
+                ticks = Math.max(ticks, restored[1]);
+                dm.redoLog = new RedoLog(logPath, durable);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (SiteStatus status: siteStatusTable.values()) {
+            status.lastDownTime = ticks;
+        }
+        checkpointDir = dir;
+    }
+
+    /**
+     * Description: take a checkpoint of every site
+     * Input: N/A
+     * Output: succeed or not(false if checkpoints are not enabled)
+     * Side effect: save the placement, write each site's checkpoint and truncate its redo log covered by
+     * the checkpoint once the checkpoint is on disk
+     */
+    public boolean checkpoint() {
+        if (checkpointDir == null) {
+            return false;
+        }
+        try {
+            placement.write(checkpointDir.resolve(PLACEMENT_FILE));
+            for (DataManager dm: dms.values()) {
+                Path checkpointPath = checkpointDir.resolve(String.format("site-%d.ckpt", dm.siteID));
+                Checkpoint.write(dm, commitSeq, ticks, checkpointPath);
+                dm.redoLog.truncate();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
         return true;
     }
 
@@ -522,8 +2413,8 @@ public class TransactionManager {
         System.out.println("Data Managers");
         System.out.println(String.join("", Collections.nCopies(70, "-")));
 
-        for (DataManager dm : dms.values()) {
-            System.out.println(dm.toString());
+        for (Site site : sites.values()) {
+            System.out.println(site.queryState());
         }
 
         return true;
@@ -561,6 +2452,107 @@ public class TransactionManager {
         }
     }
 
+    /**
+     * Description: release locks and waiting requests of a transaction at every site it locked or waited at
+     * Input: transaction
+     * Output: void
+     * Side effect: wake up transactions granted a lock on release
+     */
+    private void releaseLocks(Transaction t) {
+        releaseLocks(Collections.singletonList(t));
+    }
+
+    /**
+     * Description: release locks of several transactions, requests to all sites are sent before waiting for any reply
+     * Input: transactions
+     * Output: void
+     * Side effect: wake up transactions granted a lock on release
+     */
+    private void releaseLocks(List<Transaction> trancs) {
+        ArrayList<Reply<HashSet<String>>> replies = new ArrayList<Reply<HashSet<String>>>();
+        for (Transaction t: trancs) {
+            HashSet<Integer> siteIDs = new HashSet<Integer>(t.accessedSites.keySet());
+            siteIDs.addAll(t.queuedSites);
+            for (int siteID: siteIDs) {
+                replies.add(this.sites.get(siteID).releaseLocksAsync(t.name));
+            }
+        }
+        for (Reply<HashSet<String>> reply: replies) {
+            wakeLockWaiters(reply.get());
+        }
+    }
+
+    /**
+     * Description: check if a transaction is blocked only by a lock of its own,
+     * such a request is retried instead of waiting for a lock grant
+     * Input: transaction name, blocking transaction set
+     * Output: true if the only blocking transaction is the transaction itself
+     */
+    private boolean isBlockedBySelf(String tName, HashSet<String> blockTrancSet) {
+        return blockTrancSet.size() == 1 && blockTrancSet.contains(tName);
+    }
+
+    /**
+     * Description: mark the instruction of a transaction as waiting for a lock grant
+     * Input: transaction name, instruction, succeed or not
+     * Output: void
+     * Side effect: the instruction is skipped by run until the transaction is granted a lock
+     */
+    private void addLockWait(String tName, String instruction, boolean suc) {
+        Transaction t = this.transactions.get(tName);
+        if (suc || t == null || !t.lockQueued) {
+            return;
+        }
+        HashSet<String> instrs = lockWaits.get(tName);
+        if (instrs == null) {
+            instrs = new HashSet<String>();
+            lockWaits.put(tName, instrs);
+        }
+        instrs.add(instruction);
+        waitingInstructions.add(instruction);
+    }
+
+    /**
+     * Description: stop skipping the waiting instructions of a transaction
+     * Input: transaction name
+     * Output: void
+     * Side effect: waiting instructions of the transaction are retried at the next tick
+     */
+    private void removeLockWait(String tName) {
+        Transaction t = this.transactions.get(tName);
+        if (t != null) {
+            t.lockQueued = false;
+        }
+        HashSet<String> instrs = lockWaits.remove(tName);
+        if (instrs != null) {
+            waitingInstructions.removeAll(instrs);
+        }
+    }
+
+    /**
+     * Description: stop skipping all waiting instructions
+     * Input: N/A
+     * Output: void
+     * Side effect: all waiting instructions are retried at the next tick
+     */
+    private void removeAllLockWaits() {
+        for (String tName: new ArrayList<String>(lockWaits.keySet())) {
+            removeLockWait(tName);
+        }
+    }
+
+    /**
+     * Description: wake up transactions granted a lock
+     * Input: set of transaction names
+     * Output: void
+     * Side effect: waiting instructions of these transactions are retried at the next tick
+     */
+    private void wakeLockWaiters(HashSet<String> grantedTrancSet) {
+        for (String tName: grantedTrancSet) {
+            removeLockWait(tName);
+        }
+    }
+
     /**
      * Description: find ID of next site to balance the workload of replicated data accessing
      * Input: N/A
@@ -568,7 +2560,7 @@ public class TransactionManager {
      * Side effect: N/A
      */
     public int findNextSite() {
-        int maxSiteID = dms.size();
+        int maxSiteID = sites.size();
         int tryCnt = 0;
         do {
             if (tryCnt == maxSiteID) {
@@ -581,6 +2573,113 @@ public class TransactionManager {
         return lastSiteID;
     }
 
+    /**
+     * Description: find ID of next site holding a variable to balance the workload of replicated data accessing
+     * Input: variable ID
+     * Output: ID of next up site holding the variable, -1 if none
+     * Side effect: N/A
+     */
+    public int findNextSite(int varID) {
+        int maxSiteID = sites.size();
+        int tryCnt = 0;
+        do {
+            if (tryCnt == maxSiteID) {
+                return -1;
+            }
+            lastSiteID += 1;
+            if (lastSiteID > maxSiteID) lastSiteID = 1;
+            tryCnt += 1;
+        } while (!holdsUpCopy(lastSiteID, varID));
+        return lastSiteID;
+    }
+
+    /**
+     * Description: count how many up sites hold a variable
+     * Input: variable ID
+     * Output: count of up sites holding the variable
+     * Side effect: N/A
+     */
+    public int getUpSiteCount(int varID) {
+        int upCnt = 0;
+        for (Integer siteID: placement.getSites(varID)) {
+            if (siteStatusTable.get(siteID).status == RunningStatus.UP) upCnt += 1;
+        }
+        return upCnt;
+    }
+
+    /**
+     * Description: add an edge to the wait-for graph
+     * Input: waiting transaction name, blocking transaction name
+     * Output: void
+     * Side effect: check deadlock at the start of the next tick
+     */
+    private void addWaitEdge(String waiter, String blocker) {
+        waitForGraph.addEdge(waiter, blocker);
+        newEdgeAdded = true;
+        traceBlockers.add(blocker);
+    }
+
+    /**
+     * Description: record that a transaction accessed a site in the index used on site failure
+     * Input: transaction, site ID
+     * Output: void
+     */
+    private void indexAccess(Transaction t, int siteID) {
+        HashSet<String> accessors = siteAccessors.get(siteID);
+        if (accessors == null) {
+            accessors = new HashSet<String>();
+            siteAccessors.put(siteID, accessors);
+        }
+        accessors.add(t.name);
+    }
+
+    /**
+     * Description: remove a finished transaction from the index of site accessors
+     * Input: transaction
+     * Output: void
+     */
+    private void unindexAccesses(Transaction t) {
+        for (int siteID: t.accessedSites.keySet()) {
+            HashSet<String> accessors = siteAccessors.get(siteID);
+            if (accessors != null) {
+                accessors.remove(t.name);
+            }
+        }
+    }
+
+    /**
+     * Description: add a site to the sites accessed by a transaction and count the access as load of the site
+     * Input: transaction, site ID, variable ID
+     * Output: void
+     * Side effect: N/A
+     */
+    private void markAccessed(Transaction t, int siteID, int varID) {
+        if (!t.accessedSites.containsKey(siteID)) {
+            t.accessedSites.put(siteID, this.ticks);
+            indexAccess(t, siteID);
+        }
+        if (traceSiteID == -1) {
+            traceSiteID = siteID;
+        }
+        t.accessedCopies.add((long) siteID << 32 | varID);
+        HashMap<Integer, Integer> load = siteLoad.get(siteID);
+        if (load == null) {
+            load = new HashMap<Integer, Integer>();
+            siteLoad.put(siteID, load);
+        }
+        load.put(varID, load.getOrDefault(varID, 0) + 1);
+    }
+
+    /**
+     * Description: check if a site is up and holds a copy of a variable
+     * Input: site ID, variable ID
+     * Output: true if the site can serve the variable
+     * Side effect: N/A
+     */
+    private boolean holdsUpCopy(int siteID, int varID) {
+        return siteStatusTable.get(siteID).status == RunningStatus.UP && placement.isStoredAt(varID, siteID);
+    }
+
     /**
      * Description: count how many sites are up
      * Input: N/A
@@ -615,20 +2714,59 @@ public class TransactionManager {
     }
 
     /**
-     * Description: find the youngest transaction in a loop
+     * Description: count a read or write done by a transaction, used to weigh deadlock victims,
+     * and record it for replay
+     * Input: transaction name, instruction, succeed or not
+     * Output: void
+     */
+    private void countWork(String tName, String instruction, boolean suc) {
+        Transaction t = transactions.get(tName);
+        if (suc && t != null) {
+            t.work += 1;
+            t.issued.add(instruction);
+            totalOperations += 1;
+        }
+    }
+
+    /**
+     * Description: get the cost of aborting a transaction under the victim policy
+     * Input: transaction
+     * Output: cost, the cheapest transaction of a cycle is the victim
+     */
+    private int victimCost(Transaction t) {
+        switch (victimPolicy) {
+            case FEWEST_LOCKS:
+                return t.accessedCopies.size();
+            case SMALLEST_WRITE_SET:
+                return t.writes.size() + t.increments.size();
+            case LEAST_WORK:
+                return t.work;
+            case FEWEST_RESTARTS:
+                return t.restarts;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Description: choose the transaction to abort in a deadlock loop
      * Input: array list containing all transactions' names in the loop
-     * Output: transaction name of the youngest in the loop
+     * Output: transaction name of the cheapest transaction under the victim policy, the youngest of equally cheap ones
      * Side effect: N/A
      */
-    private String findYoungest(ArrayList<String> list) {
+    private String chooseVictim(ArrayList<String> list) {
+        int minCost = Integer.MAX_VALUE;
         int maxBegin = Integer.MIN_VALUE;
-        String maxName = "";
+        String victimName = "";
         for (String tranc : list) {
-            if (transactions.get(tranc).beginTime > maxBegin) {
-                maxBegin = transactions.get(tranc).beginTime;
-                maxName = tranc;
+            Transaction t = transactions.get(tranc);
+            int cost = victimCost(t);
+            if (cost < minCost || (cost == minCost && t.beginTime > maxBegin)) {
+                minCost = cost;
+                maxBegin = t.beginTime;
+                victimName = tranc;
             }
         }
-        return maxName;
+        return victimName;
     }
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+package repcrecdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Variable length encoding of integers shared by trace files and version chains.
+ * A non-negative integer is written in 7-bit groups, low group first, with the high bit set on every
+ * byte but the last. Signed integers are zigzag mapped first so that small magnitudes stay short.
+ */
+final class VarInt {
+    private VarInt() {
+    }
+
+    /**
+     * Description: write a non-negative integer into a byte array
+     * Input: byte array with room for 5 bytes at the offset, offset, integer
+     * Output: offset after the integer
+     */
+    static int write(byte[] data, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            data[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Description: read a non-negative integer from a byte array
+     * Input: byte array, one element array holding the offset
+     * Output: integer
+     * Side effect: move the offset past the integer
+     */
+    static int read(byte[] data, int[] offset) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[offset[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Description: write a non-negative integer to a stream
+     * Input: output stream, integer
+     * Output: void
+     */
+    static void write(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Description: read a non-negative integer from a stream
+     * Input: input stream
+     * Output: integer, EOFException if the stream ends before its first byte
+     */
+    static int read(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Description: map a signed integer to an unsigned one, small magnitudes to small numbers
+     * Input: signed integer
+     * Output: 0, -1, 1, -2, 2... as 0, 1, 2, 3, 4...
+     */
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Description: undo zigzag
+     * Input: unsigned integer
+     * Output: signed integer
+     */
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -8,16 +8,28 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.TreeMap;
 
 class RepCRecDBTest {
     @Test void testInitialization() {
@@ -49,11 +61,7 @@ class RepCRecDBTest {
     @Test void testInstrBeginRO() {
         TransactionManager tm = RepCRecDB.init();
         String instructions = "beginRO(T1)\nbeginRO(T2)\n";
-        for (DataManager dm: tm.dms.values()) {
-            assertEquals(0, dm.snapshots.size());
-        }
 
-        // All up sites should have two snapshots after creating two transactions
         tm.run(stringToInputStream(instructions));
         assertEquals(2, tm.transactions.size());
         Transaction t1 = tm.transactions.get("T1");
@@ -65,22 +73,15 @@ class RepCRecDBTest {
         assertEquals("T2", t2.name);
         assertTrue(t2.isReadOnly);
         assertTrue(t1.beginTime < t2.beginTime);
+        assertEquals(tm.commitSeq, t2.beginCommitSeq);
 
-        for (DataManager dm: tm.dms.values()) {
-            assertEquals(2, dm.snapshots.size());
-            assertNotNull(dm.snapshots.get(tm.ticks-1));
-            assertNotNull(dm.snapshots.get(tm.ticks));
-        }
-
-        // If some sites are down, the readRO instruction should be blocked
+        // A read-only transaction begins right away even if some sites are down
         instructions = "beginRO(T3)\n";
         tm.siteStatusTable.put(1, new SiteStatus(RunningStatus.DOWN, tm.ticks));
         tm.run(stringToInputStream(instructions));
-        assertEquals(2, tm.transactions.size());
-        assertNull(tm.transactions.get("T3"));
-        for (DataManager dm: tm.dms.values()) {
-            assertEquals(2, dm.snapshots.size());
-        }
+        assertEquals(3, tm.transactions.size());
+        assertNotNull(tm.transactions.get("T3"));
+        assertEquals(0, tm.instructionBuffer.size());
     }
 
     @Test void testInstrFail() {
@@ -127,7 +128,8 @@ class RepCRecDBTest {
         assertEquals("x2: 20\n", outContent.toString());
         assertEquals(1, tm.lastSiteID);
 
-        tm.dms.get(2).dataTable.put(2, 30);
+        tm.commitSeq += 1;
+        tm.dms.get(2).applyWrite(2, 30, tm.commitSeq, tm.ticks);
         tm.run(stringToInputStream("beginRO(T2)"));
         tm.siteStatusTable.put(tm.lastSiteID, new SiteStatus(RunningStatus.DOWN, tm.ticks));
         tm.run(stringToInputStream("R(T2, x2)"));
@@ -137,6 +139,45 @@ class RepCRecDBTest {
         System.setOut(System.out);
     }
 
+    @Test void testReadROWithFailedSites() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+        TransactionManager tm = RepCRecDB.init();
+
+        // Versions are kept per site, an RO transaction reads the version committed before it began
+        tm.run(stringToInputStream("begin(T1)\nW(T1, x2, 200)\nbeginRO(T2)\nend(T1)\nfail(4)\nbeginRO(T3)"
+            + "\nR(T2, x2)\nR(T3, x2)"));
+        assertTrue(outContent.toString().contains("T1 commits\nx2: 20\nx2: 200"));
+
+        // Non-replicated variables wait for their site to recover
+        tm.run(stringToInputStream("R(T2, x3)"));
+        assertEquals(1, tm.instructionBuffer.size());
+        tm.run(stringToInputStream("recover(4)"));
+        assertEquals("x3: 30", getLastLineFromOutput(outContent.toString()));
+
+        // Sites failed after the last commit of x4 can not serve it, and RO aborts
+        // if none of them could serve it after recovery either
+        outContent.reset();
+        String failAll = "";
+        for (int i = 1; i <= 10; i++) {
+            failAll += "fail(" + i + ")\n";
+        }
+        tm.run(stringToInputStream(failAll + "recover(1)\nbeginRO(T5)\nR(T5, x4)"));
+        assertEquals("T5 aborts(No site holds a valid version)", getLastLineFromOutput(outContent.toString()));
+        assertNull(tm.transactions.get("T5"));
+
+        // Only down sites holding the variable could serve it later, site 7 does not hold x8 or x7
+        for (String scan : Arrays.asList("R(T1, x8)", "SCAN(T1, x7, x8)")) {
+            outContent.reset();
+            tm = RepCRecDB.init();
+            RepCRecDB.configure(tm, "--placement=range:2");
+            tm.run(stringToInputStream("fail(4)\nfail(5)\nrecover(4)\nrecover(5)\nbeginRO(T1)\nfail(7)\n" + scan));
+            assertEquals("T1 aborts(No site holds a valid version)\n", outContent.toString());
+        }
+
+        System.setOut(System.out);
+    }
+
     @Test void testInstrRead() {
         ByteArrayOutputStream outContent = new ByteArrayOutputStream();
         System.setOut(new PrintStream(outContent));
@@ -157,7 +198,10 @@ class RepCRecDBTest {
         tm.run(stringToInputStream("R(T2, x1)"));
         assertEquals("x1: 10", getLastLineFromOutput(outContent.toString()));
 
+        // The forged lock entry drops the read locks of T1 and T2, and so do their cached reads
         tm.dms.get(2).lockTable.put(1, new LockEntry(LockType.WRITE, "T1"));
+        tm.transactions.get("T1").readCache.remove(1);
+        tm.transactions.get("T2").readCache.remove(1);
         tm.run(stringToInputStream("R(T1, x1)"));  // Should be blocked
         assertEquals(1, tm.instructionBuffer.size());
 
@@ -167,6 +211,60 @@ class RepCRecDBTest {
         System.setOut(System.out);
     }
 
+    @Test void testReadCache() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // Repeated reads under a held read lock do not go to the site
+        TransactionManager tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nR(T1, x1)"));
+        tm.dms.get(2).dataTable.put(1, 99);
+        tm.run(stringToInputStream("R(T1, x1)\nR(T1, x1)"));
+        assertEquals("x1: 10\nx1: 10\nx1: 10\n", outContent.toString());
+        assertEquals(1, tm.siteLoad.get(2).get(1));
+
+        // A write waiting for T2's read lock gives up T1's read lock, the next read goes to the site again
+        outContent.reset();
+        tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nR(T1, x2)\nR(T2, x2)\nW(T1, x2, 22)\nend(T2)\nR(T1, x2)\nend(T1)"));
+        assertEquals("x2: 20\nx2: 20\nT2 commits\nx2: 22\nT1 commits\n", outContent.toString());
+        assertEquals(0, tm.transactions.size());
+
+        // Failed sites lose the read locks
+        outContent.reset();
+        tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nR(T1, x3)\nfail(4)"));
+        assertEquals(0, tm.transactions.get("T1").readCache.size());
+
+        ReadCache cache = new ReadCache();
+        for (int varID = 1; varID <= 100; varID++) {
+            cache.put(varID, varID * 10);
+        }
+        for (int varID = 1; varID <= 100; varID += 3) {
+            cache.remove(varID);
+        }
+        for (int varID = 1; varID <= 100; varID++) {
+            assertEquals(varID % 3 != 1, cache.contains(varID));
+            if (cache.contains(varID)) {
+                assertEquals(varID * 10, cache.get(varID));
+            }
+        }
+        assertEquals(66, cache.size());
+
+        // Tables past 2^16 slots still spread their keys, a run of 300000 keys stays fast
+        cache = new ReadCache();
+        for (int varID = 1; varID <= 300000; varID++) {
+            cache.put(varID, -varID);
+        }
+        for (int varID = 1; varID <= 300000; varID++) {
+            assertEquals(-varID, cache.get(varID));
+        }
+        assertFalse(cache.contains(300001));
+        assertEquals(300000, cache.size());
+
+        System.setOut(System.out);
+    }
+
     @Test void testInstrWrite() {
         ByteArrayOutputStream outContent = new ByteArrayOutputStream();
         System.setOut(new PrintStream(outContent));
@@ -233,6 +331,913 @@ class RepCRecDBTest {
         System.setOut(System.out);
     }
 
+    @Test void testLockWaitQueue() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+        TransactionManager tm = RepCRecDB.init();
+        DataManager dm2 = tm.dms.get(2);
+
+        // Requests wait in arrival order, a reader behind a waiting writer waits too
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nbegin(T3)\nbegin(T4)\nW(T1, x1, 100)"
+            + "\nR(T2, x1)\nW(T3, x1, 300)\nR(T4, x1)"));
+        assertEquals(3, tm.instructionBuffer.size());
+        assertEquals(3, tm.waitingInstructions.size());
+        LockEntry lockEntry = dm2.lockTable.get(1);
+        assertEquals("T1", lockEntry.getWriter());
+        assertEquals(3, lockEntry.waitQueue.size());
+        assertEquals("T2", lockEntry.waitQueue.get(0).transactionName);
+        assertEquals("T3", lockEntry.waitQueue.get(1).transactionName);
+        assertEquals("T4", lockEntry.waitQueue.get(2).transactionName);
+
+        // The lock is handed over to the head of the queue on release
+        tm.run(stringToInputStream("end(T1)"));
+        assertTrue(outContent.toString().contains("T1 commits\nx1: 100"));
+        assertTrue(lockEntry.isReader("T2"));
+        assertEquals(2, lockEntry.waitQueue.size());
+        tm.run(stringToInputStream("end(T2)"));
+        assertEquals("T3", lockEntry.getWriter());
+        assertEquals(1, tm.instructionBuffer.size());
+
+        // Shared readers are granted together
+        tm.run(stringToInputStream("begin(T5)\nR(T5, x1)\nend(T3)"));
+        assertTrue(outContent.toString().contains("T3 commits\nx1: 300\nx1: 300"));
+        assertTrue(lockEntry.isReader("T4"));
+        assertTrue(lockEntry.isReader("T5"));
+        assertEquals(0, tm.instructionBuffer.size());
+
+        // All locks and waiting requests are gone once everyone ends
+        tm.run(stringToInputStream("end(T4)\nend(T5)"));
+        assertEquals(0, dm2.lockTable.size());
+        assertEquals(0, tm.waitingInstructions.size());
+
+        System.setOut(System.out);
+    }
+
+    @Test void testOptimisticConcurrencyControl() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+        TransactionManager tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--cc=occ");
+
+        // Reads and writes never block or take locks
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nR(T1, x2)\nW(T2, x2, 200)\nR(T2, x2)\nW(T1, x4, 400)"));
+        assertEquals(0, tm.instructionBuffer.size());
+        for (DataManager dm : tm.dms.values()) {
+            assertEquals(0, dm.lockTable.size());
+        }
+        assertEquals(Integer.valueOf(0), tm.transactions.get("T1").readSet.get(2));
+
+        // T2 commits first and overwrites the version T1 read, T1 fails validation
+        tm.run(stringToInputStream("end(T2)\nend(T1)"));
+        assertTrue(outContent.toString().contains("T2 commits\nT1 aborts(Validation failed)"));
+        assertEquals(200, tm.dms.get(1).dataTable.get(2));
+        assertEquals(40, tm.dms.get(1).dataTable.get(4));
+        assertEquals(1, tm.dms.get(1).getVersion(2));
+
+        // Reading the committed version after the conflicting commit passes validation
+        tm.run(stringToInputStream("begin(T3)\nR(T3, x2)\nW(T3, x2, 300)\nend(T3)"));
+        assertEquals("T3 commits", getLastLineFromOutput(outContent.toString()));
+        assertEquals(0, tm.commitLog.size());
+
+        // Site failure after access still aborts
+        tm.run(stringToInputStream("begin(T4)\nW(T4, x1, 100)\nfail(2)\nend(T4)"));
+        assertEquals("T4 aborts(Accessed site(s) failed)", getLastLineFromOutput(outContent.toString()));
+        assertEquals(10, tm.dms.get(2).dataTable.get(1));
+
+        System.setOut(System.out);
+    }
+
+    @Test void testSerializableSnapshotIsolation() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+        TransactionManager tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--cc=ssi");
+
+        // Reads come from the begin snapshot and are not blocked by write locks
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nW(T1, x2, 200)\nR(T2, x2)\nR(T2, x1)"));
+        assertEquals(0, tm.instructionBuffer.size());
+        assertTrue(outContent.toString().contains("x2: 20\nx1: 10"));
+        tm.run(stringToInputStream("end(T1)\nend(T2)"));
+        assertTrue(outContent.toString().contains("T1 commits\nT2 commits"));
+
+        // Write skew: both read x4 and x6 then write one each, only one may commit
+        outContent.reset();
+        tm.run(stringToInputStream("begin(T3)\nbegin(T4)\nR(T3, x4)\nR(T3, x6)\nR(T4, x4)\nR(T4, x6)"
+            + "\nW(T3, x4, 0)\nW(T4, x6, 0)\nend(T3)\nend(T4)"));
+        assertTrue(outContent.toString().contains("T3 aborts(Dangerous structure detected)\nT4 commits"));
+        assertEquals(40, tm.dms.get(1).dataTable.get(4));
+        assertEquals(0, tm.dms.get(1).dataTable.get(6));
+
+        // First committer wins on concurrent updates of the same variable
+        outContent.reset();
+        tm.run(stringToInputStream("begin(T5)\nbegin(T6)\nW(T5, x8, 1)\nW(T6, x8, 2)\nend(T5)\nend(T6)"));
+        assertTrue(outContent.toString().contains("T5 commits\nT6 aborts(Concurrent update committed)"));
+        assertEquals(1, tm.dms.get(1).dataTable.get(8));
+        assertEquals(0, tm.siReadTable.size());
+
+        System.setOut(System.out);
+    }
+
+    @Test void testCheckpointRestart() throws Exception {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+        Path dir = Files.createTempDirectory("repcrecdb");
+        TransactionManager tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--checkpoint-interval=2");
+        RepCRecDB.configure(tm, "--checkpoint-dir=" + dir);
+
+        // A checkpoint is taken at the second commit, the third one stays in the log tail
+        tm.run(stringToInputStream("begin(T1)\nW(T1, x2, 200)\nend(T1)\nfail(3)\nrecover(3)"
+            + "\nbegin(T2)\nW(T2, x1, 100)\nend(T2)\nbegin(T3)\nW(T3, x3, 300)\nend(T3)"));
+        DataManager dm3 = tm.dms.get(3);
+        assertEquals(Checkpoint.HEADER_SIZE + 4 + 10 * Checkpoint.ENTRY_SIZE,
+            Files.size(dir.resolve("site-3.ckpt")));
+        assertEquals(0, Files.size(dir.resolve("site-2.log")));
+        assertEquals(RedoLog.RECORD_SIZE, Files.size(dir.resolve("site-4.log")));
+
+        // Restart from the checkpoints and the log tail
+        TransactionManager restarted = RepCRecDB.init();
+        RepCRecDB.configure(restarted, "--checkpoint-dir=" + dir);
+        for (DataManager dm : tm.dms.values()) {
+            assertEquals(dm.toString(), restarted.dms.get(dm.siteID).toString());
+        }
+        assertEquals(3, restarted.commitSeq);
+        assertEquals(300, restarted.dms.get(4).dataTable.get(3));
+        assertEquals(3, restarted.dms.get(4).getVersion(3));
+        assertFalse(restarted.dms.get(3).repVarReadableTable.get(4));
+        assertFalse(restarted.dms.get(3).repVarReadableTable.get(2));
+        assertEquals(dm3.failTimes, restarted.dms.get(3).failTimes);
+        assertEquals(tm.ticks, restarted.ticks);
+
+        // Sites rebuilt by a later storage or placement option are restored and logged all the same
+        restarted = RepCRecDB.init();
+        RepCRecDB.configure(restarted, "--checkpoint-dir=" + dir);
+        RepCRecDB.configure(restarted, "--storage=array");
+        RepCRecDB.configure(restarted, "--placement=standard");
+        assertEquals(300, restarted.dms.get(4).dataTable.get(3));
+        assertEquals(3, restarted.commitSeq);
+        restarted.run(stringToInputStream("begin(T4)\nW(T4, x1, 5)\nend(T4)\ncheckpoint()"));
+        assertEquals(0, Files.size(dir.resolve("site-2.log")));
+        assertEquals(5, restarted.dms.get(2).dataTable.get(1));
+
+        System.setOut(System.out);
+    }
+
+    @Test void testRemoteSites() throws Exception {
+        // Serve every site from a thread of this JVM over a localhost socket
+        HashMap<Integer, Site> sites = new HashMap<Integer, Site>();
+        ArrayList<Thread> servers = new ArrayList<Thread>();
+        for (int i = 1; i <= 10; i++) {
+            ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            SiteServer server = new SiteServer(new DataManager(i));
+            Thread thread = new Thread(() -> {
+                try (ServerSocket ss = serverSocket; Socket socket = ss.accept()) {
+                    server.serve(socket);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            servers.add(thread);
+            sites.put(i, new RemoteSite(i, "127.0.0.1", serverSocket.getLocalPort()));
+        }
+
+        String instructions = "begin(T1)\nbegin(T2)\nW(T1, x2, 22)\nR(T2, x2)\nend(T1)\nfail(3)"
+            + "\nbegin(T3)\nR(T3, x2)\nW(T3, x3, 33)\nrecover(3)\nend(T2)\nend(T3)\ndump()";
+        ByteArrayOutputStream localOut = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(localOut));
+        RepCRecDB.init().run(stringToInputStream(instructions));
+        ByteArrayOutputStream remoteOut = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(remoteOut));
+        TransactionManager tm = new TransactionManager(sites, new HashMap<Integer, DataManager>());
+        tm.run(stringToInputStream(instructions));
+        System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.out)));
+        assertEquals(localOut.toString(), remoteOut.toString());
+
+        // Fail and recover are sent without waiting for a reply
+        RemoteSite site3 = (RemoteSite) sites.get(3);
+        assertEquals(site3.requests - 2, site3.roundTrips);
+
+        // A refused commit write or increment is reported back to the TM
+        assertFalse(site3.write("T9", 4, 44, 99, 99));
+        assertFalse(site3.increment("T9", 4, 1, 99, 99));
+        assertTrue(site3.acquireLock("T9", 4, LockType.WRITE).isEmpty());
+        assertTrue(site3.write("T9", 4, 44, 99, 99));
+
+        tm.close();
+        for (Thread thread : servers) {
+            thread.join();
+        }
+    }
+
+    @Test void testNetworkSimulation() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+        TransactionManager tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--sim-latency=10,3:50");
+        tm.run(stringToInputStream("begin(T1)\nW(T1, x2, 1)\nend(T1)"));
+        assertEquals("T1 commits\n", outContent.toString());
+        assertEquals(1, tm.dms.get(3).dataTable.get(2));
+
+        // Lock requests to all sites are in flight together, so each fan-out
+        // waits for the slowest site once: check locks, acquire locks, commit writes, release locks
+        assertEquals(400, tm.simulator.commitLatency.percentile(100), 1e-9);
+        assertEquals(0, tm.simulator.abortLatency.samples.size());
+        assertEquals(10, tm.simulator.lockHoldTime.samples.size());
+        assertEquals(200, tm.simulator.lockHoldTime.mean(), 1e-9);
+
+        System.setOut(System.out);
+    }
+
+    @Test void testReplicationProtocols() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // Majority quorum: x2 is written at 6 of 10 sites counted from its home site 3,
+        // read quorums of 5 sites always include the newest version
+        TransactionManager tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--replication=quorum");
+        tm.run(stringToInputStream("begin(T1)\nW(T1, x2, 22)\nend(T1)\nfail(3)\nfail(4)"
+            + "\nbegin(T2)\nW(T2, x2, 33)\nend(T2)\nrecover(3)\nrecover(4)\nbegin(T3)\nR(T3, x2)\nend(T3)"));
+        assertEquals("T1 commits\nT2 commits\nx2: 33\nT3 commits\n", outContent.toString());
+        assertEquals(22, tm.dms.get(3).dataTable.get(2));
+        assertEquals(33, tm.dms.get(10).dataTable.get(2));
+        assertEquals(20, tm.dms.get(1).dataTable.get(2));
+
+        // Primary copy: x2 is locked at site 3 only and waits while site 3 is down,
+        // the other up replicas apply the commit afterwards
+        outContent.reset();
+        tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--replication=primary-copy");
+        tm.run(stringToInputStream("begin(T1)\nfail(5)\nW(T1, x2, 22)\nfail(3)\nR(T1, x8)\nrecover(3)\nend(T1)"));
+        assertEquals("x8: 80\nT1 aborts(Accessed site(s) failed)\n", outContent.toString());
+        outContent.reset();
+        tm.run(stringToInputStream("begin(T2)\nfail(3)\nW(T2, x2, 33)\nrecover(3)\nend(T2)"));
+        assertEquals("T2 commits\n", outContent.toString());
+        assertEquals(33, tm.dms.get(3).dataTable.get(2));
+        assertEquals(33, tm.dms.get(1).dataTable.get(2));
+        assertEquals(20, tm.dms.get(5).dataTable.get(2));
+
+        System.setOut(System.out);
+    }
+
+    @Test void testPlacement() {
+        PlacementMap standard = PlacementMap.standard(10, 20);
+        for (int siteID = 1; siteID <= 10; siteID++) {
+            for (int varID = 1; varID <= 20; varID++) {
+                assertEquals(varID % 2 == 0 || 1 + (varID % 10) == siteID, standard.isStoredAt(varID, siteID));
+            }
+        }
+        PlacementMap hash = PlacementMap.parse("hash:3", 10, 20);
+        for (int varID = 1; varID <= 20; varID++) {
+            assertEquals(3, new HashSet<Integer>(hash.getSites(varID)).size());
+            assertTrue(hash.isReplicated(varID));
+        }
+        assertEquals(hash.getSites(7), PlacementMap.parse("hash:3", 10, 20).getSites(7));
+
+        // Ranges of 2 variables per home site, replicated to the next site
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+        TransactionManager tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--placement=range:2");
+        assertEquals(Arrays.asList(4, 5), tm.placement.getSites(8));
+        assertEquals(4, tm.dms.get(3).dataTable.size());
+        tm.run(stringToInputStream("begin(T1)\nfail(1)\nW(T1, x8, 88)\nR(T1, x7)\nend(T1)"));
+        assertEquals("x7: 70\nT1 commits\n", outContent.toString());
+        assertEquals(88, tm.dms.get(4).dataTable.get(8));
+        assertEquals(88, tm.dms.get(5).dataTable.get(8));
+        assertNull(tm.dms.get(6).dataTable.get(8));
+
+        // Sites holding no variable are dumped with an empty variable list
+        outContent.reset();
+        tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--placement=hash:1");
+        DataManager empty = null;
+        for (DataManager dm : tm.dms.values()) {
+            if (dm.dataTable.size() == 0) {
+                empty = dm;
+            }
+        }
+        assertNotNull(empty);
+        assertEquals(String.format("site %d - ", empty.siteID), empty.toString());
+        tm.run(stringToInputStream("dump()"));
+        assertTrue(outContent.toString().contains(String.format("site %d - \n", empty.siteID)));
+
+        System.setOut(System.out);
+    }
+
+    @Test void testMigration() throws Exception {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // T1 holds the write lock of x3 and T2 waits for it when x3 moves from site 4 to site 6
+        TransactionManager tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nW(T1, x3, 33)\nR(T2, x3)\nmigrate(x3, 4, 6)\n"
+            + "end(T1)\nend(T2)\nmigrate(x3, 4, 7)"));
+        assertEquals("x3 moves from site 4 to site 6\nT1 commits\nx3: 33\nT2 commits\n"
+            + "Cannot move x3 from site 4 to site 7\n", outContent.toString());
+        assertEquals(Arrays.asList(6), tm.placement.getSites(3));
+        assertNull(tm.dms.get(4).dataTable.get(3));
+        assertEquals(33, tm.dms.get(6).dataTable.get(3));
+        assertEquals(0, tm.dms.get(6).lockTable.size());
+
+        // The moved copy stays at its new site after a restart from the checkpoint directory
+        outContent.reset();
+        Path dir = Files.createTempDirectory("repcrecdb");
+        tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--checkpoint-dir=" + dir);
+        tm.run(stringToInputStream("begin(T1)\nW(T1, x3, 33)\nend(T1)\nmigrate(x3, 4, 6)"));
+        TransactionManager restarted = RepCRecDB.init();
+        RepCRecDB.configure(restarted, "--checkpoint-dir=" + dir);
+        assertEquals(Arrays.asList(6), restarted.placement.getSites(3));
+        restarted.run(stringToInputStream("begin(T2)\nR(T2, x3)\nW(T2, x3, 44)\nend(T2)\nbegin(T3)\nR(T3, x3)\nend(T3)"));
+        assertEquals("T1 commits\nx3 moves from site 4 to site 6\nx3: 33\nT2 commits\nx3: 44\nT3 commits\n",
+            outContent.toString());
+        assertEquals(44, restarted.dms.get(6).dataTable.get(3));
+        assertNull(restarted.dms.get(4).dataTable.get(3));
+
+        // Site 2 serves 5 reads, x1 moves to the idle site 1
+        outContent.reset();
+        tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nR(T1, x1)\nR(T1, x1)\nR(T1, x1)\nR(T1, x11)\nR(T1, x11)\nR(T1, x3)\n"
+            + "end(T1)\nrebalance()\nbegin(T2)\nR(T2, x1)\nend(T2)"));
+        assertTrue(outContent.toString().contains("x1 moves from site 2 to site 1\nx1: 10\nT2 commits\n"));
+        assertEquals(Arrays.asList(1), tm.placement.getSites(1));
+        assertEquals(1, tm.siteLoad.get(1).get(1));
+
+        System.setOut(System.out);
+    }
+
+    @Test void testGroupCommit() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // T1 and T2 end within one window of 3 ticks, T3 waits for the lock T1 holds until the group is applied
+        TransactionManager tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--group-commit=3");
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nbegin(T3)\nW(T1, x2, 22)\nW(T2, x3, 33)\n"
+            + "end(T1)\nR(T3, x2)\nend(T2)\nend(T3)"));
+        assertEquals("T1 commits\nT2 commits\nx2: 22\nT3 commits\n", outContent.toString());
+        assertEquals(1, tm.dms.get(5).getVersion(2));
+        assertEquals(2, tm.dms.get(4).getVersion(3));
+        assertEquals(0, tm.transactions.size());
+
+        // A failure applies the open group first
+        outContent.reset();
+        tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--group-commit=10");
+        tm.run(stringToInputStream("begin(T1)\nW(T1, x1, 11)\nend(T1)\nfail(2)\nbegin(T2)\nW(T2, x4, 44)\nend(T2)"));
+        assertEquals("T1 commits\nT2 commits\n", outContent.toString());
+        assertEquals(44, tm.dms.get(1).dataTable.get(4));
+        tm.recover(2);
+        assertEquals(11, tm.dms.get(2).dataTable.get(1));
+
+        // The window closes at the end of the last tick while every buffered instruction waits for the group
+        outContent.reset();
+        tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--group-commit=3");
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nW(T1, x1, 5)\nend(T1)\nR(T2, x1)\nend(T2)"));
+        assertEquals("T1 commits\nx1: 5\nT2 commits\n", outContent.toString());
+        assertEquals(0, tm.transactions.size());
+
+        System.setOut(System.out);
+    }
+
+    @Test void testEagerAbort() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // T1 accessed site 4, its write lock of x1 at site 2 is released as soon as site 4 fails
+        String instrs = "begin(T1)\nbegin(T2)\nR(T1, x3)\nW(T1, x1, 11)\nW(T2, x1, 12)\nfail(4)";
+        TransactionManager tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--eager-abort");
+        tm.run(stringToInputStream(instrs));
+        assertEquals(String.format("x3: 30\nT1 aborts(%s)\n", TransactionManager.SITE_FAIL_ABORT_MESSAGE),
+            outContent.toString());
+        assertFalse(tm.transactions.containsKey("T1"));
+        assertTrue(tm.siteAccessors.get(2).contains("T2"));
+        tm.run(stringToInputStream("end(T1)\nend(T2)"));
+        assertEquals(12, tm.dms.get(2).dataTable.get(1));
+        assertTrue(tm.siteAccessors.get(2).isEmpty());
+
+        // By default T1 keeps its locks and T2 waits until T1 ends
+        outContent.reset();
+        tm = RepCRecDB.init();
+        tm.run(stringToInputStream(instrs));
+        assertTrue(tm.transactions.containsKey("T1"));
+        assertTrue(tm.instructionBuffer.contains("W(T2, x1, 12)"));
+        tm.run(stringToInputStream("end(T1)\nend(T2)"));
+        assertTrue(outContent.toString().endsWith(
+            String.format("T1 aborts(%s)\nT2 commits\n", TransactionManager.SITE_FAIL_ABORT_MESSAGE)));
+
+        System.setOut(System.out);
+    }
+
+    @Test void testVictimPolicy() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // T1 is the youngest but has done the most work, T2 holds the write locks of x2 at all 10 sites
+        String instrs = "begin(T2)\nbegin(T1)\nW(T1, x1, 11)\nW(T1, x3, 33)\nW(T1, x5, 55)\nW(T2, x2, 22)\n"
+            + "W(T1, x2, 21)\nW(T2, x1, 12)\nend(T1)\nend(T2)";
+        HashMap<String, String> victims = new HashMap<String, String>();
+        victims.put("--victim=youngest", "T1");
+        victims.put("--victim=fewest-locks", "T1");
+        victims.put("--victim=smallest-write-set", "T2");
+        victims.put("--victim=least-work", "T2");
+        victims.put("--victim=fewest-restarts", "T1");
+        for (Entry<String, String> entry : victims.entrySet()) {
+            outContent.reset();
+            TransactionManager tm = RepCRecDB.init();
+            RepCRecDB.configure(tm, entry.getKey());
+            tm.run(stringToInputStream(instrs));
+            String message = tm.victimPolicy == VictimPolicy.YOUNGEST ? TransactionManager.DEADLOCK_ABORT_MESSAGE
+                : String.format(TransactionManager.DEADLOCK_POLICY_ABORT_MESSAGE, entry.getKey().substring("--victim=".length()));
+            assertTrue(outContent.toString().contains(String.format("%s aborts(%s)", entry.getValue(), message)),
+                entry.getKey());
+            assertEquals(1, tm.deadlockAborts);
+            assertEquals(entry.getValue().equals("T1") ? 3 : 1, tm.lostOperations);
+        }
+
+        // T1 has aborted twice before, T2 is restarted instead
+        TransactionManager tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--victim=fewest-restarts");
+        tm.abortCounts.put("T1", 2);
+        tm.run(stringToInputStream(instrs));
+        assertTrue(outContent.toString().contains("T2 aborts(Deadlock detected, fewest-restarts victim killed)"));
+        assertEquals(1, tm.restarts);
+        assertEquals(1, tm.abortCounts.get("T2"));
+
+        System.setOut(System.out);
+    }
+
+    @Test void testRetry() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // T2 is the deadlock victim, it is replayed after T1 commits and reaches its end given during the backoff
+        TransactionManager tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--retry=2");
+        RepCRecDB.configure(tm, "--retry-backoff=3");
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nW(T1, x1, 11)\nW(T2, x3, 33)\nW(T1, x3, 31)\n"
+            + "W(T2, x1, 12)\nend(T1)\nend(T2)"));
+        assertEquals(String.format("T2 aborts(%s)\nT2 retries in 3 ticks\nT1 commits\nT2 commits\n",
+            TransactionManager.DEADLOCK_ABORT_MESSAGE), outContent.toString());
+        assertEquals(12, tm.dms.get(2).dataTable.get(1));
+        assertEquals(33, tm.dms.get(4).dataTable.get(3));
+        assertEquals(1, tm.restarts);
+        assertEquals(4, tm.committedOperations);
+        assertEquals(5, tm.totalOperations);
+
+        // Aborts at end are retried too, the replayed read waits for the site to recover
+        outContent.reset();
+        tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--retry=1");
+        tm.run(stringToInputStream("begin(T1)\nR(T1, x3)\nfail(4)\nend(T1)\nrecover(4)"));
+        assertEquals(String.format("x3: 30\nT1 aborts(%s)\nT1 retries in 1 ticks\nx3: 30\nT1 commits\n",
+            TransactionManager.SITE_FAIL_ABORT_MESSAGE), outContent.toString());
+
+        // The backoff doubles on every abort, and the transaction gives up after the limit
+        outContent.reset();
+        tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--retry=2");
+        tm.abortCounts.put("T1", 1);
+        tm.run(stringToInputStream("begin(T1)\nR(T1, x3)\nfail(4)\nend(T1)\nrecover(4)"));
+        assertTrue(outContent.toString().contains("T1 retries in 2 ticks\n"));
+        outContent.reset();
+        tm.abortCounts.put("T1", 2);
+        tm.run(stringToInputStream("begin(T1)\nR(T1, x3)\nfail(4)\nend(T1)"));
+        assertTrue(outContent.toString().endsWith("T1 gives up after 2 retries\n"));
+        assertEquals(1, tm.retriesGivenUp);
+
+        System.setOut(System.out);
+    }
+
+    @Test void testTrace() throws Exception {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+        Path dir = Files.createTempDirectory("repcrecdb");
+
+        // A deadlock, lock waits and a commit group closed early because only waiting instructions are left
+        String instrs = "begin(T1)\nbegin(T2)\nbegin(T3)\nW(T1, x1, 11)\nW(T2, x2, 22)\nR(T3, x3)\n"
+            + "W(T1, x2, 12)\nW(T2, x1, 21)\nend(T1)\nR(T3, x1)";
+        TransactionManager tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--group-commit=5");
+        RepCRecDB.configure(tm, "--trace=" + dir.resolve("run.trace"));
+        tm.run(stringToInputStream(instrs));
+        tm.close();
+        String output = outContent.toString();
+        assertTrue(output.contains("T1 commits\nx1: 11\n"));
+
+        ArrayList<TraceRecord> records = Trace.read(dir.resolve("run.trace"));
+        assertEquals(tm.trace.records, records.size());
+        assertEquals("begin(T1)", records.get(0).instruction);
+        TraceRecord blocked = records.stream().filter(rec -> rec.instruction.equals("W(T1, x2, 12)")).findFirst().get();
+        assertFalse(blocked.success);
+        assertEquals(Arrays.asList("T2"), blocked.blockers);
+        assertEquals(4, records.stream().filter(rec -> rec.instruction.equals("R(T3, x3)")).findFirst().get().siteID);
+        assertTrue(records.stream().anyMatch(rec -> rec.instruction.equals(TransactionManager.COMMIT_GROUP_EVENT)));
+
+        // Replay reproduces the run and its trace
+        outContent.reset();
+        TransactionManager replayTm = RepCRecDB.init();
+        RepCRecDB.configure(replayTm, "--group-commit=5");
+        RepCRecDB.configure(replayTm, "--trace=" + dir.resolve("replay.trace"));
+        assertEquals(0, replayTm.replay(records));
+        replayTm.close();
+        assertEquals(output, outContent.toString());
+        assertEquals(tm.ticks, replayTm.ticks);
+        for (int siteID = 1; siteID <= 10; siteID++) {
+            assertEquals(tm.dms.get(siteID).queryState(), replayTm.dms.get(siteID).queryState());
+        }
+        assertTrue(Arrays.equals(Files.readAllBytes(dir.resolve("run.trace")), Files.readAllBytes(dir.resolve("replay.trace"))));
+
+        System.setOut(System.out);
+    }
+
+    @Test void testStorageEngines() throws Exception {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+        String instrs = "begin(T1)\nbeginRO(T2)\nW(T1, x2, 22)\nW(T1, x3, 33)\nR(T2, x2)\nend(T1)\nfail(4)\n"
+            + "begin(T3)\nR(T3, x2)\nR(T2, x3)\nmigrate(x5, 6, 7)\nrecover(4)\nend(T3)\nend(T2)\ndump()";
+        TransactionManager tm = RepCRecDB.init();
+        tm.run(stringToInputStream(instrs));
+        String expected = outContent.toString();
+
+        for (String storage : new String[] { "array", "offheap", "skiplist" }) {
+            outContent.reset();
+            tm = RepCRecDB.init();
+            RepCRecDB.configure(tm, "--storage=" + storage);
+            tm.run(stringToInputStream(instrs));
+            assertEquals(expected, outContent.toString(), storage);
+
+            // Growing past the variable count, removal and clearing
+            StorageEngine engine = StorageEngine.create(storage, 4);
+            for (int varID = 1; varID <= 40; varID += 3) {
+                engine.put(varID, -varID);
+            }
+            assertEquals(14, engine.size());
+            assertEquals(-22, engine.get(22));
+            assertNull(engine.get(23));
+            assertEquals(-7, engine.remove(7));
+            assertNull(engine.remove(7));
+            assertFalse(engine.containsKey(7));
+            assertEquals(13, engine.keys().length);
+            assertEquals(40, engine.keys()[12]);
+            engine.clear();
+            assertEquals(0, engine.size());
+            assertEquals(0, engine.keys().length);
+        }
+
+        // Checkpoints restore into any engine
+        Path dir = Files.createTempDirectory("repcrecdb");
+        tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--storage=offheap");
+        RepCRecDB.configure(tm, "--checkpoint-dir=" + dir);
+        tm.run(stringToInputStream("begin(T1)\nW(T1, x4, 44)\nend(T1)\ncheckpoint()"));
+        tm.close();
+        TransactionManager restarted = RepCRecDB.init();
+        RepCRecDB.configure(restarted, "--storage=array");
+        RepCRecDB.configure(restarted, "--checkpoint-dir=" + dir);
+        assertEquals(44, restarted.dms.get(3).dataTable.get(4));
+        assertEquals(tm.dms.get(3).queryState(), restarted.dms.get(3).queryState());
+
+        System.setOut(System.out);
+    }
+
+    @Test void testVariableCount() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+        for (String storage : new String[] { "hash", "array", "offheap", "skiplist" }) {
+            outContent.reset();
+            TransactionManager tm = RepCRecDB.init();
+            RepCRecDB.configure(tm, "--variables=1000");
+            RepCRecDB.configure(tm, "--storage=" + storage);
+            assertEquals(1000, tm.placement.varCount);
+            tm.run(stringToInputStream("begin(T1)\nR(T1, x999)\nW(T1, x1000, 7)\nend(T1)\nbeginRO(T2)\nR(T2, x1000)\nend(T2)"));
+            assertEquals("x999: 9990\nT1 commits\nx1000: 7\nT2 commits\n", outContent.toString(), storage);
+        }
+        assertThrows(IllegalArgumentException.class, () -> RepCRecDB.configure(RepCRecDB.init(), "--variables=0"));
+
+        // Off-heap buffers hold at most Integer.MAX_VALUE bytes
+        assertThrows(IllegalArgumentException.class, () -> StorageEngine.create("offheap", Integer.MAX_VALUE));
+        StorageEngine engine = StorageEngine.create("offheap", 4);
+        assertThrows(IllegalArgumentException.class, () -> engine.put(Integer.MAX_VALUE / 4, 1));
+        assertNull(engine.get(Integer.MAX_VALUE));
+        assertFalse(engine.containsKey(Integer.MAX_VALUE));
+
+        System.setOut(System.out);
+    }
+
+    @Test void testScan() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // One range lock at site 2 covers x1 and the replicated x2 and x4, x3 is a local write
+        TransactionManager tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nW(T1, x3, 33)\nSCAN(T1, x1, x4)"));
+        assertEquals("x1: 10\nx2: 20\nx3: 33\nx4: 40\n", outContent.toString());
+        HashSet<Integer> readSiteIDs = new HashSet<Integer>(tm.transactions.get("T1").accessedSites.keySet());
+        readSiteIDs.remove(4);
+        assertEquals(new HashSet<Integer>(Arrays.asList(2)), readSiteIDs);
+        for (int varID = 1; varID <= 4; varID++) {
+            assertEquals(varID != 3, tm.dms.get(2).lockTable.containsKey(varID));
+        }
+
+        // A write lock in the range blocks the scan until the writer commits
+        outContent.reset();
+        tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nW(T2, x4, 44)\nSCAN(T1, x1, x5)\nend(T2)"));
+        assertEquals("T2 commits\nx1: 10\nx2: 20\nx3: 30\nx4: 44\nx5: 50\n", outContent.toString());
+
+        // A blocked scan queues like a point read, a writer arriving after it waits for the scan
+        outContent.reset();
+        tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nbegin(T3)\nW(T1, x2, 21)\nSCAN(T2, x1, x3)\nW(T3, x2, 23)\n"
+            + "end(T1)\nend(T2)\nend(T3)"));
+        assertEquals("T1 commits\nx1: 10\nx2: 21\nx3: 30\nT2 commits\nT3 commits\n", outContent.toString());
+
+        // Read-only transactions scan their snapshot, and wait for a down home site
+        outContent.reset();
+        tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nbeginRO(T2)\nW(T1, x2, 22)\nend(T1)\nfail(2)\nSCAN(T2, x1, x2)\nrecover(2)"));
+        assertEquals("T1 commits\nx1: 10\nx2: 20\n", outContent.toString());
+
+        // Range locks are granted for the whole range at a site or not at all
+        DataManager dm = new DataManager(1);
+        dm.acquireLock("T2", 4, LockType.WRITE);
+        assertEquals(new HashSet<String>(Arrays.asList("T2")), dm.acquireRangeLock("T1", 2, 6));
+        assertNull(dm.lockTable.get(2));
+        assertTrue(dm.isWaiting("T1", 4));
+        assertFalse(dm.isWaiting("T1", 6));
+        assertTrue(dm.acquireRangeLock("T1", 6, 10).isEmpty());
+        assertEquals("{6=60, 8=80, 10=100}", dm.readRange("T1", 1, 20).toString());
+
+        System.setOut(System.out);
+    }
+
+    @Test void testVersionChain() throws Exception {
+        // Lookups from the nearest base match a TreeMap of the same versions
+        VersionChain chain = new VersionChain();
+        TreeMap<Integer, Version> versions = new TreeMap<Integer, Version>();
+        Random random = new Random(42);
+        int seq = 0;
+        for (int i = 0; i < 1000; i++) {
+            seq += 1 + random.nextInt(5);
+            int value = random.nextInt(2000) - 1000;
+            chain.add(seq, value, seq / 3);
+            versions.put(seq, new Version(value, seq / 3));
+        }
+        for (int maxSeq = -1; maxSeq <= seq + 1; maxSeq++) {
+            Entry<Integer, Version> entry = versions.floorEntry(maxSeq);
+            int[] version = chain.floor(maxSeq);
+            if (entry == null) {
+                assertNull(version);
+            } else {
+                assertArrayEquals(new int[] { entry.getKey(), entry.getValue().value, entry.getValue().commitTime }, version);
+            }
+        }
+        assertTrue(chain.encodedSize() < 8 * versions.size());
+
+        // A version older than the last one is merged in order
+        chain.add(2, 7, 0);
+        versions.put(2, new Version(7, 0));
+        assertEquals(versions.size(), chain.size());
+        assertEquals(7, chain.floor(2)[1]);
+        assertEquals(versions.keySet(), chain.toMap().keySet());
+
+        // The byte array and stream encodings of VarInt agree, and zigzag round trips the extremes
+        byte[] data = new byte[5 * 6];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int length = 0;
+        for (int value : new int[] { 0, 127, 128, Integer.MAX_VALUE, Integer.MIN_VALUE, -1 }) {
+            length = VarInt.write(data, length, VarInt.zigzag(value));
+            VarInt.write(out, VarInt.zigzag(value));
+            assertEquals(value, VarInt.unzigzag(VarInt.zigzag(value)));
+        }
+        assertArrayEquals(Arrays.copyOf(data, length), bytes.toByteArray());
+        assertEquals(1 + 2 + 2 + 5 + 5 + 1, length);
+        int[] offset = { 0 };
+        assertEquals(Integer.MAX_VALUE, VarInt.unzigzag(VarInt.read(data, new int[] { 5 })));
+        assertEquals(0, VarInt.read(data, offset));
+        assertEquals(1, offset[0]);
+    }
+
+    @Test void testVersionChainConcurrentReads() throws Exception {
+        // Readers never see a version that is not fully published
+        VersionChain chain = new VersionChain();
+        chain.add(0, 0, 0);
+        int versionCnt = 200000;
+        boolean[] failed = { false };
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                Random random = new Random();
+                while (chain.lastSeq() < versionCnt) {
+                    int lastSeq = chain.lastSeq();
+                    int maxSeq = random.nextInt(lastSeq + 1);
+                    int[] version = chain.floor(maxSeq);
+                    if (version == null || version[0] != maxSeq || version[1] != 2 * maxSeq || version[2] != maxSeq) {
+                        failed[0] = true;
+                        return;
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (int seq = 1; seq <= versionCnt; seq++) {
+            chain.add(seq, 2 * seq, seq);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertFalse(failed[0]);
+    }
+
+    @Test void testCompactLocks() {
+        // Readers spill from the inline array to a set past INLINE_READERS and back to none
+        LockEntry lockEntry = new LockEntry(LockType.READ, "T1");
+        for (int i = 2; i <= 20; i++) {
+            lockEntry.setLock(LockType.READ, "T" + i);
+        }
+        lockEntry.setLock(LockType.READ, "T3");
+        assertEquals(20, lockEntry.getReaderCount());
+        assertTrue(lockEntry.isReader("T20"));
+        assertFalse(lockEntry.isReader("T21"));
+        for (int i = 1; i <= 20; i++) {
+            lockEntry.remove("T" + i);
+        }
+        assertTrue(lockEntry.isFree());
+        lockEntry.setLock(LockType.WRITE, "T7");
+        assertTrue(lockEntry.isWriter("T7"));
+        assertEquals("T7", lockEntry.getWriter());
+
+        // Lock table entries survive the removal of entries in their probe sequence
+        LockTable lockTable = new LockTable();
+        for (int varID = 1; varID <= 1000; varID++) {
+            lockTable.put(varID, new LockEntry(LockType.READ, "T" + varID));
+        }
+        for (int varID = 1; varID <= 1000; varID += 2) {
+            assertNotNull(lockTable.remove(varID));
+        }
+        assertEquals(500, lockTable.size());
+        for (int varID = 1; varID <= 1000; varID++) {
+            assertEquals(varID % 2 == 0, lockTable.containsKey(varID));
+            if (varID % 2 == 0) {
+                assertTrue(lockTable.get(varID).isReader("T" + varID));
+            }
+        }
+        assertEquals(500, lockTable.keys().length);
+
+        // Lock tables past 2^16 slots still spread their keys
+        lockTable = new LockTable();
+        LockEntry shared = new LockEntry(LockType.READ, "T1");
+        for (int varID = 1; varID <= 240000; varID++) {
+            lockTable.put(varID, shared);
+        }
+        for (int varID = 1; varID <= 240000; varID++) {
+            assertNotNull(lockTable.get(varID));
+        }
+        assertNull(lockTable.get(240001));
+
+        // Checks do not assign IDs, a transaction's ID lives from its begin to its end
+        int ids = TransactionIDs.size();
+        assertFalse(lockEntry.isReader("Tunknown"));
+        assertFalse(lockEntry.isWriter("Tunknown"));
+        assertEquals(ids, TransactionIDs.size());
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+        TransactionManager tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(Tx1)\nbegin(Tx2)\nW(Tx1, x1, 5)\nW(Tx2, x1, 6)"));
+        assertNotEquals(0, TransactionIDs.of("Tx1"));
+        assertNotEquals(0, TransactionIDs.of("Tx2"));
+        tm.run(stringToInputStream("end(Tx1)\nend(Tx2)"));
+        assertEquals(0, TransactionIDs.of("Tx1"));
+        assertEquals(0, TransactionIDs.of("Tx2"));
+        assertEquals(ids, TransactionIDs.size());
+        System.setOut(System.out);
+    }
+
+    @Test void testIncrement() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // Increments of different transactions share the lock and both deltas commit, a reader waits for them
+        TransactionManager tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nbegin(T3)\nADD(T1, x2, 5)\nADD(T2, x2, 7)\nR(T3, x2)\n"
+            + "end(T1)\nend(T2)\nend(T3)"));
+        assertEquals("T1 commits\nT2 commits\nx2: 32\nT3 commits\n", outContent.toString());
+        for (DataManager dm : tm.dms.values()) {
+            assertEquals(32, dm.dataTable.get(2).intValue());
+        }
+
+        // A transaction reads its own increments, and a later write replaces them
+        outContent.reset();
+        tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nADD(T1, x1, 1)\nADD(T1, x1, 2)\nR(T1, x1)\nADD(T1, x3, 5)\n"
+            + "W(T1, x3, 100)\nADD(T1, x3, 1)\nend(T1)"));
+        assertEquals("x1: 13\nT1 commits\n", outContent.toString());
+        assertEquals(13, tm.dms.get(2).dataTable.get(1).intValue());
+        assertEquals(101, tm.dms.get(4).dataTable.get(3).intValue());
+
+        // Increment locks conflict with read and write locks
+        DataManager dm = new DataManager(2);
+        assertTrue(dm.acquireLock("T1", 1, LockType.INCREMENT).isEmpty());
+        assertTrue(dm.acquireLock("T2", 1, LockType.INCREMENT).isEmpty());
+        assertEquals(new HashSet<String>(Arrays.asList("T1", "T2")), dm.checkLock("T3", 1, LockType.READ));
+        assertEquals(new HashSet<String>(Arrays.asList("T1", "T2")), dm.checkLock("T3", 1, LockType.WRITE));
+        assertTrue(dm.increment("T1", 1, 5, 1, 1));
+        assertFalse(dm.increment("T3", 1, 5, 2, 2));
+        assertEquals(15, dm.readLatest(1).intValue());
+
+        System.setOut(System.out);
+    }
+
+    @Test void testUpdateLocks() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // Read-modify-write with read locks deadlocks on the upgrade, with update locks the second one queues
+        TransactionManager tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nR(T1, x1)\nR(T2, x1)\nW(T1, x1, 11)\nW(T2, x1, 12)\n"
+            + "end(T1)\nend(T2)"));
+        assertEquals("x1: 10\nx1: 10\nT2 aborts(Deadlock detected, younger killed)\nT1 commits\n", outContent.toString());
+        outContent.reset();
+        tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2)\nbegin(T3)\nR(T3, x2)\nRU(T1, x2)\nRU(T2, x2)\n"
+            + "W(T1, x2, 21)\nend(T3)\nend(T1)\nW(T2, x2, 22)\nend(T2)"));
+        assertEquals("x2: 20\nx2: 20\nT3 commits\nT1 commits\nx2: 21\nT2 commits\n", outContent.toString());
+        assertEquals(22, tm.dms.get(1).dataTable.get(2).intValue());
+
+        // An update lock joins readers, new readers and updaters wait for its holder only
+        DataManager dm = new DataManager(2);
+        assertTrue(dm.acquireLock("T1", 1, LockType.READ).isEmpty());
+        assertTrue(dm.acquireLock("T2", 1, LockType.UPDATE).isEmpty());
+        assertEquals(new HashSet<String>(Arrays.asList("T2")), dm.checkLock("T3", 1, LockType.READ));
+        assertEquals(new HashSet<String>(Arrays.asList("T2")), dm.acquireLock("T4", 1, LockType.UPDATE));
+        assertEquals(10, dm.read("T2", 1).intValue());
+
+        // The holder upgrades ahead of the queue once the other readers are gone
+        assertEquals(new HashSet<String>(Arrays.asList("T1", "T2")), dm.acquireLock("T2", 1, LockType.WRITE));
+        assertEquals("T2", dm.lockTable.get(1).getWaiters().get(0).transactionName);
+        assertEquals(new HashSet<String>(Arrays.asList("T2")), dm.releaseLocks("T1"));
+        assertTrue(dm.lockTable.get(1).isWriter("T2"));
+        assertEquals(new HashSet<String>(Arrays.asList("T4")), dm.releaseLocks("T2"));
+        assertTrue(dm.lockTable.get(1).isUpdater("T4"));
+
+        System.setOut(System.out);
+    }
+
+    @Test void testIsolationLevels() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // Read committed releases read locks right after the read, a writer does not wait and the value
+        // read again may change. Repeatable read keeps its read lock and blocks the writer.
+        TransactionManager tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1, read-committed)\nbegin(T2)\nR(T1, x1)\nW(T2, x1, 11)\nend(T2)\n"
+            + "R(T1, x1)\nbegin(T3, repeatable-read)\nbegin(T4)\nR(T3, x3)\nW(T4, x3, 33)\nend(T3)\nend(T4)\nend(T1)"));
+        assertEquals("x1: 10\nT2 commits\nx1: 11\nx3: 30\nT3 commits\nT4 commits\nT1 commits\n", outContent.toString());
+
+        // A read committed read still waits for an uncommitted write, and holds no lock once it is done
+        outContent.reset();
+        tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nbegin(T2, read-committed)\nW(T1, x5, 55)\nR(T2, x5)\nend(T1)"));
+        assertEquals("T1 commits\nx5: 55\n", outContent.toString());
+        assertFalse(tm.dms.get(6).lockTable.containsKey(5));
+
+        System.setOut(System.out);
+    }
+
+    @Test void testBatchTicks() {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // An instruction never tried because an earlier one ran first is not counted as blocked
+        TransactionManager tm = RepCRecDB.init();
+        tm.run(stringToInputStream("begin(T1)\nW(T1, x1, 11)\nbegin(T2)\nR(T2, x1)\nend(T1)\nR(T2, x2)"));
+        assertEquals(0, tm.transactions.get("T2").blockedInstrCnt.intValue());
+
+        // One release unblocks every queued reader in the same tick
+        String instructions = "begin(T1)\nW(T1, x1, 11)\nbegin(T2)\nbegin(T3)\nbegin(T4)\nR(T2, x1)\nR(T3, x1)\n"
+            + "R(T4, x1)\nend(T1)\nend(T2)\nend(T3)\nend(T4)";
+        outContent.reset();
+        tm = RepCRecDB.init();
+        tm.run(stringToInputStream(instructions));
+        int ticks = tm.ticks;
+        outContent.reset();
+        tm = RepCRecDB.init();
+        RepCRecDB.configure(tm, "--batch-ticks");
+        tm.run(stringToInputStream(instructions));
+        assertEquals("T1 commits\nx1: 11\nx1: 11\nx1: 11\nT2 commits\nT3 commits\nT4 commits\n", outContent.toString());
+        assertEquals(12, tm.ticks.intValue());
+        assertTrue(tm.ticks < ticks);
+        assertTrue(tm.instructionBuffer.isEmpty());
+
+        System.setOut(System.out);
+    }
+
     @Test void testIntegration() {
         File[] files = new File("tests").listFiles();
         for (File file : files) {